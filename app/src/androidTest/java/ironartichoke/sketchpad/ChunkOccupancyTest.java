@@ -0,0 +1,106 @@
+package ironartichoke.sketchpad;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.TreeSet;
+
+import ironartichoke.sketchpad.base.NotepadTestBase;
+import ironartichoke.sketchpad.util.ChunkOccupancy;
+import ironartichoke.sketchpad.util.ChunkUtils;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * A test class containing tests for the bitmap of the occupied chunks on a sheet.
+ */
+public class ChunkOccupancyTest extends NotepadTestBase
+{
+	/**
+	 * Test that chunks are added and removed like in an ordinary set, in sparse columns and in a column dense enough
+	 * to be stored as a bitmap.
+	 */
+	@Test
+	public void behavesLikeASet()
+	{
+		Random random = new Random(29);
+		ChunkOccupancy occupancy = new ChunkOccupancy();
+		TreeSet<Long> expected = new TreeSet<>();
+		for (int c = 0; c < 20000; c++)
+		{
+			// Half of the chunks fall into a single column, which fills up past the size of an array container.
+			int x = c % 2 == 0 ? 100 : random.nextInt(200);
+			long chunkId = ChunkUtils.pack(x, random.nextInt(10000));
+			assertEquals(expected.add(chunkId), occupancy.add(chunkId));
+		}
+		for (int c = 0; c < 10000; c++)
+		{
+			long chunkId = ChunkUtils.pack(random.nextInt(200), random.nextInt(10000));
+			assertEquals(expected.remove(chunkId), occupancy.remove(chunkId));
+		}
+
+		// Does it hold the same chunks, in ascending order?
+		assertEquals(expected.size(), occupancy.getCardinality());
+		assertArrayEquals(toArray(expected), occupancy.toArray());
+		for (long chunkId : expected)
+		{
+			assertTrue(occupancy.contains(chunkId));
+		}
+		assertFalse(occupancy.contains(ChunkUtils.pack(300, 0)));
+
+		// Is it empty once every chunk is removed?
+		for (long chunkId : expected)
+		{
+			assertTrue(occupancy.remove(chunkId));
+		}
+		assertEquals(0, occupancy.getCardinality());
+		assertEquals(0, occupancy.toArray().length);
+	}
+
+	/**
+	 * Test that the set reads back the same as it was written, with both kinds of container.
+	 * @throws IOException
+	 */
+	@Test
+	public void writeAndRead() throws IOException
+	{
+		ChunkOccupancy occupancy = new ChunkOccupancy();
+		for (int y = 0; y < 5000; y++)
+		{
+			occupancy.add(ChunkUtils.pack(7, y));
+		}
+		occupancy.add(ChunkUtils.pack(3, 12));
+		occupancy.add(ChunkUtils.pack(9, 40000));
+
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		occupancy.write(new DataOutputStream(bos));
+		ChunkOccupancy read = ChunkOccupancy.read(new DataInputStream(new ByteArrayInputStream(bos.toByteArray())));
+
+		assertEquals(occupancy.getCardinality(), read.getCardinality());
+		assertArrayEquals(occupancy.toArray(), read.toArray());
+	}
+
+	/**
+	 * Converts a set of chunk IDs to an array.
+	 * @param chunkIds The chunk IDs.
+	 * @return The chunk IDs, in the order of the set.
+	 */
+	private static long[] toArray(TreeSet<Long> chunkIds)
+	{
+		long[] array = new long[chunkIds.size()];
+		int i = 0;
+		for (long chunkId : chunkIds)
+		{
+			array[i++] = chunkId;
+		}
+		return array;
+	}
+}
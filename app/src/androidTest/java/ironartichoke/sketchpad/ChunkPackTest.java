@@ -0,0 +1,146 @@
+package ironartichoke.sketchpad;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import ironartichoke.sketchpad.base.NotepadTestBase;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * A test class containing tests for the pack file that stores the chunks of a sheet.
+ */
+public class ChunkPackTest extends NotepadTestBase
+{
+	@Rule
+	public TemporaryFolder sheetDirectory = new TemporaryFolder();
+
+	/**
+	 * Test that chunks read back as they were written after the pack is opened again,
+	 * including a chunk that outgrew its slot and a removed chunk.
+	 * @throws IOException
+	 */
+	@Test
+	public void writeAndReadAfterReopening() throws IOException
+	{
+		Random random = new Random(30);
+		byte[][] chunks = new byte[10][];
+		ChunkPack pack = new ChunkPack(sheetDirectory.getRoot());
+		for (int c = 0; c < chunks.length; c++)
+		{
+			chunks[c] = createData(random, 100 + random.nextInt(2000));
+			pack.write(c, chunks[c]);
+		}
+		// One chunk grows a little and stays in its slot, and another grows enough to be moved.
+		chunks[3] = createData(random, chunks[3].length + 10);
+		pack.write(3, chunks[3]);
+		chunks[5] = createData(random, 10000);
+		pack.write(5, chunks[5]);
+		pack.remove(7);
+		pack.commit();
+
+		ChunkPack reopened = new ChunkPack(sheetDirectory.getRoot());
+		assertEquals(chunks.length - 1, reopened.getChunkIds().length);
+		for (int c = 0; c < chunks.length; c++)
+		{
+			if (c == 7)
+			{
+				assertFalse(reopened.contains(c));
+				assertNull(reopened.read(c));
+			}
+			else
+			{
+				assertTrue(reopened.contains(c));
+				assertArrayEquals(chunks[c], reopened.read(c));
+			}
+		}
+	}
+
+	/**
+	 * Test that defragmenting a pack that is mostly dead space shrinks it into a single new pack file,
+	 * keeping every remaining chunk, and that the pack reads the same once opened again.
+	 * @throws IOException
+	 */
+	@Test
+	public void defragmentKeepsChunks() throws IOException
+	{
+		Random random = new Random(31);
+		byte[][] chunks = new byte[100][];
+		ChunkPack pack = new ChunkPack(sheetDirectory.getRoot());
+		for (int c = 0; c < chunks.length; c++)
+		{
+			chunks[c] = createData(random, 1000 + random.nextInt(1000));
+			pack.write(c, chunks[c]);
+		}
+		pack.commit();
+		long fullLength = getPackLength();
+
+		for (int c = 0; c < chunks.length; c++)
+		{
+			if (c % 5 != 0) pack.remove(c);
+		}
+		pack.defragment();
+
+		// Is only the new, smaller pack file left?
+		assertTrue(getPackLength() < fullLength / 2);
+		for (int c = 0; c < chunks.length; c += 5)
+		{
+			assertArrayEquals(chunks[c], pack.read(c));
+		}
+
+		ChunkPack reopened = new ChunkPack(sheetDirectory.getRoot());
+		assertEquals(chunks.length / 5, reopened.getChunkIds().length);
+		for (int c = 0; c < chunks.length; c++)
+		{
+			if (c % 5 == 0)
+			{
+				assertArrayEquals(chunks[c], reopened.read(c));
+			}
+			else
+			{
+				assertFalse(reopened.contains(c));
+			}
+		}
+	}
+
+	/**
+	 * Gets the length of the only pack file in the sheet folder.
+	 * @return The length, in bytes.
+	 */
+	private long getPackLength()
+	{
+		File packFile = null;
+		File[] files = sheetDirectory.getRoot().listFiles();
+		for (File file : files)
+		{
+			if (file.getName().endsWith(".pack"))
+			{
+				assertNull(packFile);
+				packFile = file;
+			}
+		}
+		return packFile.length();
+	}
+
+	/**
+	 * Creates a random serialized chunk.
+	 * @param random The random number generator.
+	 * @param length The length, in bytes.
+	 * @return The data.
+	 */
+	private static byte[] createData(Random random, int length)
+	{
+		byte[] data = new byte[length];
+		random.nextBytes(data);
+		return data;
+	}
+}
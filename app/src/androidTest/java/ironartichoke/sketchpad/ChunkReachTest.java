@@ -0,0 +1,45 @@
+package ironartichoke.sketchpad;
+
+import org.junit.Test;
+
+import ironartichoke.sketchpad.base.NotepadTestBase;
+import ironartichoke.sketchpad.util.ChunkReach;
+import ironartichoke.sketchpad.util.ChunkUtils;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * A test class containing tests for the chunks that strokes reach into beyond the chunk that stores them.
+ */
+public class ChunkReachTest extends NotepadTestBase
+{
+	/**
+	 * Test that a stroke crossing a chunk border reaches into the chunk beyond it, and that the chunk storing it is
+	 * found from that chunk, until the stroke is gone.
+	 */
+	@Test
+	public void strokesReachIntoNeighboringChunks()
+	{
+		long chunkId = ChunkUtils.convertCoordsToChunk(0, 0);
+		long leftChunkId = ChunkUtils.convertCoordsToChunk(-1, 0);
+		PackedStrokes strokes = new PackedStrokes(chunkId);
+		PackedStrokesTest.addLine(strokes, 0, false, 10, 10, 100, 100);
+		assertEquals(0, strokes.getReachedChunks().length);
+
+		// Does a stroke crossing the left edge reach into the chunk to the left, and only that chunk?
+		PackedStrokesTest.addLine(strokes, 1, false, -100, 10, ChunkUtils.CHUNK_SIZE / 2, 10);
+		long[] reachedChunkIds = strokes.getReachedChunks();
+		assertArrayEquals(new long[]{leftChunkId}, reachedChunkIds);
+
+		// Is the chunk storing the stroke found from the chunk it reaches into, and forgotten once it no longer reaches?
+		ChunkReach reach = new ChunkReach();
+		assertTrue(reach.set(chunkId, reachedChunkIds));
+		assertFalse(reach.set(chunkId, reachedChunkIds));
+		assertArrayEquals(new long[]{chunkId}, reach.getChunksReachingInto(leftChunkId));
+		assertTrue(reach.set(chunkId, new long[0]));
+		assertEquals(0, reach.getChunksReachingInto(leftChunkId).length);
+	}
+}
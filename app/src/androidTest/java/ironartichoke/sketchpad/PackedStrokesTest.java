@@ -0,0 +1,167 @@
+package ironartichoke.sketchpad;
+
+import org.junit.Test;
+
+import ironartichoke.sketchpad.base.NotepadTestBase;
+import ironartichoke.sketchpad.util.ChunkUtils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * A test class containing tests for the packed in-memory stroke storage and geometric erasing.
+ */
+public class PackedStrokesTest extends NotepadTestBase
+{
+	/**
+	 * Test that coarser levels of detail keep fewer points, always including both ends of the stroke.
+	 */
+	@Test
+	public void levelsOfDetail()
+	{
+		// A straight line followed by a wavy line.
+		int points = 400;
+		int[] coordSteps = new int[points * 2];
+		for (int p = 0; p < points; p++)
+		{
+			coordSteps[p * 2] = p * 2 * StrokeCodec.PRECISION;
+			coordSteps[p * 2 + 1] = p < points / 2 ? 0 : (int) (Math.sin(p * 0.3) * 20 * StrokeCodec.PRECISION);
+		}
+		PackedStrokes strokes = new PackedStrokes(ChunkUtils.convertCoordsToChunk(0, 0));
+		strokes.add(0, (byte) 0, Stroke.DEFAULT_THICKNESS, false, coordSteps, coordSteps.length);
+
+		// Does level 0 keep every point, and does each level keep no more points than the one before it?
+		assertEquals(points, strokes.getNumberOfPoints(0, 0));
+		for (int level = 1; level < PackedStrokes.LEVELS; level++)
+		{
+			assertTrue(strokes.getNumberOfPoints(level, 0) >= 2);
+			assertTrue(strokes.getNumberOfPoints(level, 0) <= strokes.getNumberOfPoints(level - 1, 0));
+		}
+		// Is the straight half reduced to its ends?
+		assertTrue(strokes.getNumberOfPoints(1, 0) < points / 2);
+	}
+
+	/**
+	 * Test that the level of detail gets coarser as the camera zooms out.
+	 */
+	@Test
+	public void detailLevelForZoom()
+	{
+		assertEquals(0, PackedStrokes.getDetailLevel(1f));
+		assertEquals(PackedStrokes.LEVELS - 1, PackedStrokes.getDetailLevel(0.1f));
+		int previous = 0;
+		for (float zoom = 4f; zoom >= 0.1f; zoom *= 0.9f)
+		{
+			int level = PackedStrokes.getDetailLevel(zoom);
+			assertTrue(level >= previous);
+			previous = level;
+		}
+	}
+
+	/**
+	 * Test that an eraser crossing the middle of a stroke splits it into two pieces, cut where the eraser covers it.
+	 */
+	@Test
+	public void eraseSplitsStroke()
+	{
+		// A long, straight stroke with a single segment on either side of the eraser.
+		int[] coordSteps = {
+				-200 * StrokeCodec.PRECISION, 0,
+				10 * StrokeCodec.PRECISION, 0,
+				200 * StrokeCodec.PRECISION, 0};
+		PackedStrokes strokes = new PackedStrokes(ChunkUtils.convertCoordsToChunk(0, 0));
+		strokes.add(7, (byte) 0, Stroke.DEFAULT_THICKNESS, false, coordSteps, coordSteps.length);
+
+		// A vertical eraser stroke through the origin.
+		Stroke eraser = createEraser(0, -100, 0, 100);
+		float radius = Stroke.getRealThickness(eraser.getThicknessByte(), true) * 0.5f;
+		PackedStrokes remaining = strokes.erase(new StrokeEraser(eraser));
+
+		// Are there two pieces that keep the stroke's ID and ends, and stop where the eraser begins?
+		assertNotNull(remaining);
+		assertEquals(2, remaining.size());
+		for (int s = 0; s < remaining.size(); s++)
+		{
+			assertEquals(7, remaining.getId(s));
+			assertFalse(remaining.isEraser(s));
+		}
+		int left = remaining.getCoordX(0, 0) < 0 ? 0 : 1;
+		int right = 1 - left;
+		assertEquals(-200, remaining.getCoordX(left, 0), 0.001f);
+		assertEquals(-radius, remaining.getCoordX(left, remaining.getNumberOfPoints(left) - 1), radius * 0.5f);
+		assertEquals(radius, remaining.getCoordX(right, 0), radius * 0.5f);
+		assertEquals(200, remaining.getCoordX(right, remaining.getNumberOfPoints(right) - 1), 0.001f);
+
+		// Are the original strokes untouched?
+		assertEquals(1, strokes.size());
+		assertEquals(3, strokes.getNumberOfPoints(0));
+	}
+
+	/**
+	 * Test that strokes completely covered by the eraser are deleted, and that strokes it misses are kept as they were.
+	 */
+	@Test
+	public void eraseDeletesCoveredStrokes()
+	{
+		PackedStrokes strokes = new PackedStrokes(ChunkUtils.convertCoordsToChunk(0, 0));
+		int[] covered = {0, 0, StrokeCodec.PRECISION, StrokeCodec.PRECISION};
+		int[] missed = {500 * StrokeCodec.PRECISION, 0, 600 * StrokeCodec.PRECISION, 0};
+		strokes.add(1, (byte) 0, Stroke.DEFAULT_THICKNESS, false, missed, missed.length);
+		strokes.add(2, (byte) 0, Stroke.DEFAULT_THICKNESS, false, covered, covered.length);
+
+		// Does an eraser that misses every stroke change nothing?
+		assertNull(strokes.erase(new StrokeEraser(createEraser(-300, -300, -250, -300))));
+
+		// Is the covered stroke deleted, while the other keeps its points and levels of detail?
+		PackedStrokes remaining = strokes.erase(new StrokeEraser(createEraser(-20, 0, 20, 0)));
+		assertNotNull(remaining);
+		assertEquals(1, remaining.size());
+		assertEquals(1, remaining.getId(0));
+		for (int level = 0; level < PackedStrokes.LEVELS; level++)
+		{
+			assertEquals(strokes.getNumberOfPoints(level, 0), remaining.getNumberOfPoints(level, 0));
+		}
+		for (int c = 0; c < missed.length; c++)
+		{
+			assertEquals(missed[c], remaining.getCoordSteps(0, c));
+		}
+	}
+
+	/**
+	 * Adds a straight stroke with the default thickness.
+	 * @param strokes The packed strokes.
+	 * @param id The stroke ID.
+	 * @param isEraser Whether the stroke was drawn with the eraser tool.
+	 * @param x1 The X coordinate of the first point.
+	 * @param y1 The Y coordinate of the first point.
+	 * @param x2 The X coordinate of the last point.
+	 * @param y2 The Y coordinate of the last point.
+	 */
+	static void addLine(PackedStrokes strokes, long id, boolean isEraser, int x1, int y1, int x2, int y2)
+	{
+		int[] coordSteps = {
+				x1 * StrokeCodec.PRECISION, y1 * StrokeCodec.PRECISION,
+				x2 * StrokeCodec.PRECISION, y2 * StrokeCodec.PRECISION};
+		strokes.add(id, (byte) 0, Stroke.DEFAULT_THICKNESS, isEraser, coordSteps, coordSteps.length);
+	}
+
+	/**
+	 * Creates a straight eraser stroke.
+	 * @param x1 The X coordinate of the first point.
+	 * @param y1 The Y coordinate of the first point.
+	 * @param x2 The X coordinate of the last point.
+	 * @param y2 The Y coordinate of the last point.
+	 * @return The eraser stroke.
+	 */
+	private static Stroke createEraser(float x1, float y1, float x2, float y2)
+	{
+		Stroke eraser = new Stroke();
+		eraser.isEraser = true;
+		eraser.addRealCoords(x1, y1);
+		eraser.addRealCoords(x2, y2);
+		return eraser;
+	}
+}
@@ -1,10 +1,12 @@
 package ironartichoke.sketchpad;
 
+import android.graphics.Point;
 import android.support.test.espresso.action.GeneralLocation;
 import android.support.test.espresso.action.GeneralSwipeAction;
 import android.support.test.espresso.action.Press;
 import android.support.test.espresso.action.Swipe;
 import android.support.test.espresso.action.ViewActions;
+import android.view.MotionEvent;
 
 import org.junit.Test;
 
@@ -57,6 +59,40 @@ public class ProjectTest extends NotepadTestBase
 		assertEquals(5, project().getLoadedStroke(0).getNumberOfPoints());
 	}
 
+	/**
+	 * Test that the touch samples batched into a single move event all become points of the stroke.
+	 */
+	@Test
+	public void drawWithHistoricalSamples() throws InterruptedException
+	{
+		// Reset the camera.
+		view.setZoomAndPan(NotepadView.ZOOM_DEFAULT, 0, 0);
+
+		Point size = new Point();
+		activity.getWindowManager().getDefaultDisplay().getSize(size);
+		float centerX = size.x / 2f;
+		float centerY = size.y / 2f;
+
+		// Simulate a drawing action with 5 points, where the last 4 arrive in one move event.
+		long downTime = System.currentTimeMillis();
+		MotionEvent down = MotionEvent.obtain(downTime, downTime, MotionEvent.ACTION_DOWN, centerX, centerY, 0);
+		MotionEvent move = MotionEvent.obtain(downTime, downTime + 10, MotionEvent.ACTION_MOVE, centerX + 100, centerY, 0);
+		move.addBatch(downTime + 20, centerX, centerY + 100, 1, 1, 0);
+		move.addBatch(downTime + 30, centerX - 100, centerY, 1, 1, 0);
+		move.addBatch(downTime + 40, centerX, centerY - 100, 1, 1, 0);
+		MotionEvent up = MotionEvent.obtain(downTime, downTime + 50, MotionEvent.ACTION_UP, centerX, centerY - 100, 0);
+		view.dispatchTouchEvent(down);
+		view.dispatchTouchEvent(move);
+		view.dispatchTouchEvent(up);
+
+		// Wait for the stroke to be committed.
+		Thread.sleep(TestUtils.DRAG_DELAY);
+
+		// Does there exist a single loaded stroke, defined by 5 points?
+		assertEquals(1, project().getLoadedStrokes().size());
+		assertEquals(5, project().getLoadedStroke(0).getNumberOfPoints());
+	}
+
 	/**
 	 * Test that chunk saving and loading are working correctly.
 	 * @throws InterruptedException
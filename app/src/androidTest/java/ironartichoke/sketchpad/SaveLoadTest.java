@@ -173,8 +173,8 @@ public class SaveLoadTest extends NotepadTestBase
 		// 1. The temporary directory exists.
 		assertTrue(IOUtils.getWorkingDirectory().exists());
 
-		// 2. The project metadata file exists.
-		assertTrue(new File(IOUtils.getWorkingDirectory(), "meta").exists());
+		// 2. The project index file exists.
+		assertTrue(new File(IOUtils.getWorkingDirectory(), "index").exists());
 
 		// 3. The project name is correct.
 		assertEquals(projectName, project().getName());
@@ -186,8 +186,8 @@ public class SaveLoadTest extends NotepadTestBase
 			File sheetDir = new File(IOUtils.getWorkingDirectory(), Long.toString(sheet.getId()));
 			assertTrue(sheetDir.exists());
 
-			// ii. The sheet metadata file exists.
-			assertTrue(new File(sheetDir, "meta").exists());
+			// ii. The legacy sheet metadata file has been superseded by the index.
+			assertFalse(new File(sheetDir, "meta").exists());
 		}
 	}
 }
@@ -0,0 +1,98 @@
+package ironartichoke.sketchpad;
+
+import android.support.v4.util.LongSparseArray;
+
+import org.junit.Test;
+
+import ironartichoke.sketchpad.base.NotepadTestBase;
+import ironartichoke.sketchpad.util.ChunkOccupancy;
+import ironartichoke.sketchpad.util.ChunkReach;
+import ironartichoke.sketchpad.util.ChunkUtils;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ * A test class containing tests for the cache of the loaded chunks of recently viewed sheets.
+ */
+public class SheetCacheTest extends NotepadTestBase
+{
+	/**
+	 * Test that the least recently viewed sheet is dropped once too many sheets are cached,
+	 * and that putting a sheet back makes it the most recently viewed again.
+	 */
+	@Test
+	public void dropsLeastRecentlyViewedSheet()
+	{
+		SheetCache cache = new SheetCache();
+		Project.Sheet[] sheets = new Project.Sheet[SheetCache.MAX_SHEETS + 1];
+		for (int s = 0; s < sheets.length; s++)
+		{
+			sheets[s] = createSheet(s);
+		}
+
+		for (int s = 0; s < SheetCache.MAX_SHEETS; s++)
+		{
+			cache.put(sheets[s], createChunks());
+		}
+		// The first sheet is viewed again, so the second becomes the least recently viewed.
+		cache.put(sheets[0], createChunks());
+		cache.put(sheets[SheetCache.MAX_SHEETS], createChunks());
+
+		assertNull(cache.take(sheets[1]));
+		assertNotNull(cache.take(sheets[0]));
+		for (int s = 2; s < sheets.length; s++)
+		{
+			assertNotNull(cache.take(sheets[s]));
+		}
+	}
+
+	/**
+	 * Test that a sheet's chunks are only handed back once, and not after the sheet has been dropped.
+	 */
+	@Test
+	public void takeAndDrop()
+	{
+		SheetCache cache = new SheetCache();
+		Project.Sheet sheet = createSheet(0);
+		Project.Sheet droppedSheet = createSheet(1);
+		LongSparseArray<Project.Sheet.Chunk> chunks = createChunks();
+		cache.put(sheet, chunks);
+		cache.put(droppedSheet, createChunks());
+		cache.drop(droppedSheet);
+
+		assertSame(chunks, cache.take(sheet));
+		assertNull(cache.take(sheet));
+		assertNull(cache.take(droppedSheet));
+
+		cache.put(sheet, chunks);
+		cache.clear();
+		assertNull(cache.take(sheet));
+	}
+
+	/**
+	 * Creates a sheet without a folder.
+	 * @param id The sheet ID.
+	 * @return The sheet.
+	 */
+	private static Project.Sheet createSheet(long id)
+	{
+		return new Project.Sheet(id, "Sheet " + id, 0, 0, 1, new ChunkOccupancy(), new ChunkReach(), true);
+	}
+
+	/**
+	 * Creates the loaded chunks of a sheet, with a stroke in one chunk.
+	 * @return The chunks, by ID.
+	 */
+	private static LongSparseArray<Project.Sheet.Chunk> createChunks()
+	{
+		long chunkId = ChunkUtils.convertCoordsToChunk(0, 0);
+		PackedStrokes strokes = new PackedStrokes(chunkId);
+		int[] coordSteps = {0, 0, 10 * StrokeCodec.PRECISION, 10 * StrokeCodec.PRECISION};
+		strokes.add(1, (byte) 0, Stroke.DEFAULT_THICKNESS, false, coordSteps, coordSteps.length);
+		LongSparseArray<Project.Sheet.Chunk> chunks = new LongSparseArray<>();
+		chunks.put(chunkId, new Project.Sheet.Chunk(chunkId, strokes));
+		return chunks;
+	}
+}
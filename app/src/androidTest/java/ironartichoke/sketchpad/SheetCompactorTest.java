@@ -0,0 +1,84 @@
+package ironartichoke.sketchpad;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import ironartichoke.sketchpad.base.NotepadTestBase;
+import ironartichoke.sketchpad.util.ChunkUtils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * A test class containing tests for dropping painted over strokes from sheets.
+ */
+public class SheetCompactorTest extends NotepadTestBase
+{
+	/**
+	 * Test that compaction drops strokes painted over by later eraser strokes, and eraser strokes with nothing left under them,
+	 * while keeping strokes that are only partly painted over.
+	 */
+	@Test
+	public void compactionDropsPaintedOverStrokes()
+	{
+		PackedStrokes strokes = new PackedStrokes(ChunkUtils.convertCoordsToChunk(0, 0));
+		PackedStrokesTest.addLine(strokes, 0, true, 500, 500, 600, 500); // Drawn before anything it could cover.
+		PackedStrokesTest.addLine(strokes, 1, false, -20, 0, 20, 0); // Painted over by stroke 3.
+		PackedStrokesTest.addLine(strokes, 2, false, -20, 30, 20, 30); // Painted over on the left by stroke 4.
+		PackedStrokesTest.addLine(strokes, 3, true, -40, 0, 40, 0);
+		PackedStrokesTest.addLine(strokes, 4, true, -40, 30, 0, 30);
+		SheetCompactor.CompactedChunk chunk = new SheetCompactor.CompactedChunk(strokes.getChunkId(), strokes, 0);
+		List<PackedStrokes> neighborhood = Collections.singletonList(strokes);
+		SheetCompactor.findPaintedOverStrokes(chunk, neighborhood);
+		SheetCompactor.findUnneededErasers(chunk, neighborhood);
+
+		// Are strokes 0, 1 and 3 dropped, while strokes 2 and 4 are kept?
+		boolean[] expected = {true, true, false, true, false};
+		for (int s = 0; s < expected.length; s++)
+		{
+			assertEquals(expected[s], chunk.isRemoved[s]);
+		}
+		SheetCompactor.Report report = SheetCompactor.createReport(Collections.singletonList(chunk));
+		assertEquals(1, report.strokes);
+		assertEquals(2, report.erasers);
+		assertEquals(3 * (2 + 1) * 2, report.vertices);
+
+		// Do the remaining strokes keep their order?
+		PackedStrokes remaining = strokes.remove(chunk.isRemoved);
+		assertEquals(2, remaining.size());
+		assertEquals(2, remaining.getId(0));
+		assertEquals(4, remaining.getId(1));
+	}
+
+	/**
+	 * Test that compaction finds the eraser strokes that paint over a stroke in the neighboring chunks given to it.
+	 */
+	@Test
+	public void compactionChecksNeighboringChunks()
+	{
+		PackedStrokes strokes = new PackedStrokes(ChunkUtils.convertCoordsToChunk(0, 0));
+		PackedStrokesTest.addLine(strokes, 0, false, -20, 0, 20, 0);
+		PackedStrokes neighbor = new PackedStrokes(ChunkUtils.convertCoordsToChunk(ChunkUtils.CHUNK_SIZE, 0));
+		PackedStrokesTest.addLine(neighbor, 1, true, -40, 0, 40, 0);
+
+		// Is the stroke kept while the chunk holding the eraser stroke isn't given?
+		SheetCompactor.CompactedChunk chunk = new SheetCompactor.CompactedChunk(strokes.getChunkId(), strokes, 0);
+		SheetCompactor.findPaintedOverStrokes(chunk, Collections.singletonList(strokes));
+		assertFalse(chunk.isRemoved[0]);
+
+		// Is it dropped once it is, and is the eraser stroke then left with nothing under it?
+		List<PackedStrokes> neighborhood = new ArrayList<>();
+		neighborhood.add(strokes);
+		neighborhood.add(neighbor);
+		SheetCompactor.findPaintedOverStrokes(chunk, neighborhood);
+		assertTrue(chunk.isRemoved[0]);
+		SheetCompactor.CompactedChunk neighborChunk = new SheetCompactor.CompactedChunk(neighbor.getChunkId(), neighbor, 0);
+		neighborhood.set(0, strokes.remove(chunk.isRemoved));
+		SheetCompactor.findUnneededErasers(neighborChunk, neighborhood);
+		assertTrue(neighborChunk.isRemoved[0]);
+	}
+}
@@ -0,0 +1,155 @@
+package ironartichoke.sketchpad;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import ironartichoke.sketchpad.base.NotepadTestBase;
+import ironartichoke.sketchpad.util.ChunkUtils;
+import ironartichoke.sketchpad.util.TestUtils;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * A test class containing tests for the compact chunk encoding.
+ */
+public class StrokeCodecTest extends NotepadTestBase
+{
+	/**
+	 * Test that coordinates survive encoding and decoding exactly, once quantized to the codec's precision.
+	 * @throws IOException
+	 */
+	@Test
+	public void coordinateRoundTrip() throws IOException
+	{
+		Random random = new Random(42);
+		float[] coords = new float[2000];
+		float x = -123456.7f;
+		float y = 98765.4f;
+		Stroke live = new Stroke();
+		for (int c = 0; c < coords.length; c += 2)
+		{
+			x += random.nextFloat() * 20 - 10;
+			y += random.nextFloat() * 20 - 10;
+			coords[c] = x;
+			coords[c + 1] = y;
+			live.addRealCoords(x, y);
+		}
+		long chunkId = ChunkUtils.convertCoordsToChunk((int) coords[0], (int) coords[1]);
+		PackedStrokes strokes = new PackedStrokes(chunkId);
+		strokes.add(live);
+
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		StrokeCodec.writeCoords(new DataOutputStream(bos), strokes, 0);
+		byte[] encoded = bos.toByteArray();
+		int[] decoded = StrokeCodec.readCoords(new DataInputStream(new ByteArrayInputStream(encoded)));
+
+		// Is every coordinate within half a grid step of the original?
+		assertEquals(coords.length, decoded.length);
+		for (int c = 0; c < coords.length; c++)
+		{
+			assertEquals(StrokeCodec.quantize(coords[c]), decoded[c]);
+			assertEquals(coords[c], StrokeCodec.dequantize(decoded[c]), 0.5f / StrokeCodec.PRECISION);
+		}
+
+		// Does the packed in-memory form hold exactly the decoded coordinates?
+		PackedStrokes packed = new PackedStrokes(chunkId);
+		packed.add(0, (byte) 0, Stroke.DEFAULT_THICKNESS, false, decoded, decoded.length);
+		for (int c = 0; c < decoded.length; c++)
+		{
+			assertEquals(decoded[c], packed.getCoordSteps(0, c));
+		}
+
+		// Does encoding the decoded coordinates give exactly the same bytes?
+		bos.reset();
+		StrokeCodec.writeCoords(new DataOutputStream(bos), packed, 0);
+		assertArrayEquals(encoded, bos.toByteArray());
+
+		// Is the encoding smaller than raw floats?
+		assertTrue(encoded.length * 2 < coords.length * 4);
+	}
+
+	/**
+	 * Test that a stroke reaching far outside its chunk keeps its shape in the packed in-memory form.
+	 */
+	@Test
+	public void packedCoordinatesOfLargeStroke()
+	{
+		long chunkId = ChunkUtils.convertCoordsToChunk(0, 0);
+		int[] coordSteps = new int[]{
+				-20000 * StrokeCodec.PRECISION, -20000 * StrokeCodec.PRECISION,
+				0, 0,
+				20000 * StrokeCodec.PRECISION + 3, 20000 * StrokeCodec.PRECISION + 5};
+		Stroke stroke = new PackedStrokes(chunkId).add(0, (byte) 0, Stroke.DEFAULT_THICKNESS, false, coordSteps, coordSteps.length);
+
+		// Is every coordinate within a pixel of the original?
+		for (int c = 0; c < coordSteps.length; c++)
+		{
+			assertEquals(coordSteps[c], stroke.getCoordSteps(c), StrokeCodec.PRECISION);
+		}
+	}
+
+	/**
+	 * Test that varints of all magnitudes survive encoding and decoding.
+	 * @throws IOException
+	 */
+	@Test
+	public void varintRoundTrip() throws IOException
+	{
+		int[] ints = {0, 1, -1, 63, -64, 64, -65, 8191, -8192, Integer.MAX_VALUE, Integer.MIN_VALUE};
+		long[] longs = {0L, 1L, -1L, System.currentTimeMillis(), Long.MAX_VALUE, Long.MIN_VALUE};
+
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		DataOutputStream dos = new DataOutputStream(bos);
+		for (int i : ints) StrokeCodec.writeVarint(dos, i);
+		for (long l : longs) StrokeCodec.writeVarlong(dos, l);
+
+		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(bos.toByteArray()));
+		for (int i : ints) assertEquals(i, StrokeCodec.readVarint(dis));
+		for (long l : longs) assertEquals(l, StrokeCodec.readVarlong(dis));
+	}
+
+	/**
+	 * Test that a chunk of drawn strokes survives encoding and decoding.
+	 * @throws IOException
+	 */
+	@Test
+	public void chunkRoundTrip() throws IOException
+	{
+		// Draw a stroke in each of the four center chunks.
+		TestUtils.drawSample(activity, view);
+
+		Project.Sheet.Chunk chunk = project().getChunkFromId(ChunkUtils.convertCoordsToChunk(75, 75));
+		byte[] encoded = StrokeCodec.encodeChunk(chunk);
+		Project.Sheet.Chunk decoded = StrokeCodec.decodeChunk(encoded);
+
+		// Does the decoded chunk have the same ID and strokes?
+		assertEquals(chunk.getId(), decoded.getId());
+		assertEquals(chunk.getTotalStrokes(), decoded.getTotalStrokes());
+		for (int s = 0; s < chunk.getTotalStrokes(); s++)
+		{
+			Stroke original = chunk.getStroke(s);
+			Stroke copy = decoded.getStroke(s);
+			assertEquals(original.getId(), copy.getId());
+			assertEquals(original.chunkId, copy.chunkId);
+			assertEquals(original.getColorByte(), copy.getColorByte());
+			assertEquals(original.getThicknessByte(), copy.getThicknessByte());
+			assertEquals(original.isEraser, copy.isEraser);
+			assertEquals(original.getNumberOfPoints(), copy.getNumberOfPoints());
+			for (int c = 0; c < original.getNumberOfPoints() * 2; c++)
+			{
+				assertEquals(original.getCoordSteps(c), copy.getCoordSteps(c));
+			}
+		}
+
+		// Does encoding the decoded chunk give exactly the same bytes?
+		assertArrayEquals(encoded, StrokeCodec.encodeChunk(decoded));
+	}
+}
@@ -0,0 +1,76 @@
+package ironartichoke.sketchpad;
+
+import android.support.test.InstrumentationRegistry;
+import android.util.Log;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * A benchmark of the spatial index of a chunk's strokes against a linear scan. Timings depend on the device and on
+ * whatever else it is doing, so this isn't part of the test suite. It only runs when the instrumentation is started
+ * with <code>-e benchmark true</code>, and writes its results to the log.
+ */
+public class StrokeIndexBenchmark
+{
+	/** The tag of the benchmark results in the log. */
+	private static final String TAG = "StrokeIndexBenchmark";
+	/** The number of range queries timed for each case. */
+	private static final int QUERIES = 1000;
+
+	@Before
+	public void before()
+	{
+		assumeTrue("true".equals(InstrumentationRegistry.getArguments().getString("benchmark")));
+	}
+
+	/**
+	 * Benchmark range queries against a linear scan at 10,000 and 100,000 strokes, with rectangles the size of a view
+	 * at a zoom of 1 and the size of an eraser stroke.
+	 */
+	@Test
+	public void benchmarkRangeQueries()
+	{
+		for (int count : new int[]{10000, 100000})
+		{
+			Random random = new Random(count);
+			PackedStrokes strokes = StrokeIndexTest.createStrokes(random, count);
+			for (int size : new int[]{1000, 100})
+			{
+				int[][] rectangles = new int[QUERIES][];
+				for (int q = 0; q < QUERIES; q++)
+				{
+					rectangles[q] = StrokeIndexTest.createRectangle(random, size);
+				}
+
+				int[][] scanned = new int[QUERIES][];
+				long start = System.nanoTime();
+				for (int q = 0; q < QUERIES; q++)
+				{
+					scanned[q] = StrokeIndexTest.scan(strokes, rectangles[q]);
+				}
+				long scanTime = System.nanoTime() - start;
+
+				int[][] queried = new int[QUERIES][];
+				start = System.nanoTime();
+				for (int q = 0; q < QUERIES; q++)
+				{
+					queried[q] = StrokeIndexTest.query(strokes, rectangles[q]);
+				}
+				long queryTime = System.nanoTime() - start;
+
+				Log.i(TAG, count + " strokes, " + size + " px queries: linear scan " + scanTime / QUERIES / 1000 + " us, index "
+						+ queryTime / QUERIES / 1000 + " us per query");
+				for (int q = 0; q < QUERIES; q++)
+				{
+					assertArrayEquals(scanned[q], queried[q]);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,107 @@
+package ironartichoke.sketchpad;
+
+import com.carrotsearch.hppc.IntArrayList;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import ironartichoke.sketchpad.base.NotepadTestBase;
+import ironartichoke.sketchpad.util.ChunkUtils;
+
+import static org.junit.Assert.assertArrayEquals;
+
+/**
+ * A test class containing tests for the spatial index of a chunk's strokes.
+ * @see StrokeIndexBenchmark
+ */
+public class StrokeIndexTest extends NotepadTestBase
+{
+	/**
+	 * Test that range queries find exactly the strokes that a linear scan of their bounds finds,
+	 * including strokes that reach outside the chunk.
+	 */
+	@Test
+	public void queryMatchesLinearScan()
+	{
+		Random random = new Random(44);
+		PackedStrokes strokes = createStrokes(random, 2000);
+		for (int q = 0; q < 200; q++)
+		{
+			int[] rectangle = createRectangle(random, q % 2 == 0 ? 100 : 3000);
+			assertArrayEquals(scan(strokes, rectangle), query(strokes, rectangle));
+		}
+	}
+
+	/**
+	 * Creates short strokes spread over a chunk, with a few long strokes that reach outside it.
+	 * @param random The random number generator.
+	 * @param count The number of strokes.
+	 * @return The strokes.
+	 */
+	static PackedStrokes createStrokes(Random random, int count)
+	{
+		PackedStrokes strokes = new PackedStrokes(ChunkUtils.convertCoordsToChunk(0, 0));
+		int half = ChunkUtils.CHUNK_SIZE / 2;
+		int[] coordSteps = new int[4];
+		for (int s = 0; s < count; s++)
+		{
+			int x = random.nextInt(ChunkUtils.CHUNK_SIZE) - half;
+			int y = random.nextInt(ChunkUtils.CHUNK_SIZE) - half;
+			int length = s % 100 == 0 ? ChunkUtils.CHUNK_SIZE : 5 + random.nextInt(60);
+			coordSteps[0] = x * StrokeCodec.PRECISION;
+			coordSteps[1] = y * StrokeCodec.PRECISION;
+			coordSteps[2] = (x + length) * StrokeCodec.PRECISION;
+			coordSteps[3] = (y + random.nextInt(60)) * StrokeCodec.PRECISION;
+			strokes.add(s, (byte) 0, Stroke.DEFAULT_THICKNESS, false, coordSteps, coordSteps.length);
+		}
+		return strokes;
+	}
+
+	/**
+	 * Creates a square within the chunk.
+	 * @param random The random number generator.
+	 * @param size The size of the square, in pixels.
+	 * @return The left, top, right and bottom bounds of the square.
+	 */
+	static int[] createRectangle(Random random, int size)
+	{
+		int left = random.nextInt(ChunkUtils.CHUNK_SIZE - size) - ChunkUtils.CHUNK_SIZE / 2;
+		int top = random.nextInt(ChunkUtils.CHUNK_SIZE - size) - ChunkUtils.CHUNK_SIZE / 2;
+		return new int[]{left, top, left + size, top + size};
+	}
+
+	/**
+	 * Finds the strokes that overlap a rectangle with the spatial index.
+	 * @param strokes The strokes.
+	 * @param rectangle The left, top, right and bottom bounds of the rectangle.
+	 * @return The indices of the strokes, in ascending order.
+	 */
+	static int[] query(PackedStrokes strokes, int[] rectangle)
+	{
+		IntArrayList result = new IntArrayList();
+		strokes.findStrokes(rectangle[0], rectangle[1], rectangle[2], rectangle[3], result);
+		return result.toArray();
+	}
+
+	/**
+	 * Finds the strokes that overlap a rectangle by checking the bounds of every stroke.
+	 * @param strokes The strokes.
+	 * @param rectangle The left, top, right and bottom bounds of the rectangle.
+	 * @return The indices of the strokes, in ascending order.
+	 */
+	static int[] scan(PackedStrokes strokes, int[] rectangle)
+	{
+		IntArrayList result = new IntArrayList();
+		for (int s = 0; s < strokes.size(); s++)
+		{
+			int margin = (int) Math.ceil(Stroke.getRealThickness(strokes.getThicknessByte(s), strokes.isEraser(s)) * 0.5f) + 1;
+			if (strokes.getBoundLeft(s) - margin <= rectangle[2] && strokes.getBoundRight(s) + margin >= rectangle[0]
+					&& strokes.getBoundTop(s) - margin <= rectangle[3] && strokes.getBoundBottom(s) + margin >= rectangle[1])
+			{
+				result.add(s);
+			}
+		}
+		return result.toArray();
+	}
+}
@@ -0,0 +1,57 @@
+package ironartichoke.sketchpad;
+
+import com.carrotsearch.hppc.IntArrayList;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import ironartichoke.sketchpad.base.NotepadTestBase;
+import ironartichoke.sketchpad.util.ChunkUtils;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * A test class containing tests for merging the strokes found in several chunks into drawing order.
+ */
+public class StrokeMergerTest extends NotepadTestBase
+{
+	/**
+	 * Test that strokes taken from several chunks are merged into stroke ID order.
+	 */
+	@Test
+	public void mergeKeepsDrawingOrder()
+	{
+		Random random = new Random(47);
+		StrokeMerger merger = new StrokeMerger();
+		List<Long> expected = new ArrayList<>();
+		for (int c = 0; c < 12; c++)
+		{
+			PackedStrokes strokes = new PackedStrokes(ChunkUtils.convertCoordsToChunk(c * ChunkUtils.CHUNK_SIZE, 0));
+			IntArrayList run = merger.beginRun(strokes);
+			long id = 0;
+			for (int s = 0; s < 40; s++)
+			{
+				id += 1 + random.nextInt(30);
+				PackedStrokesTest.addLine(strokes, id, false, 0, 0, 10, 10);
+				if (random.nextBoolean())
+				{
+					run.add(s);
+					expected.add(id);
+				}
+			}
+		}
+		Collections.sort(expected);
+
+		List<Stroke> merged = new ArrayList<>();
+		merger.merge(merged);
+		assertEquals(expected.size(), merged.size());
+		for (int s = 0; s < merged.size(); s++)
+		{
+			assertEquals((long) expected.get(s), merged.get(s).getId());
+		}
+	}
+}
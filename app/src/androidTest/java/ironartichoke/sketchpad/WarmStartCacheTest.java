@@ -0,0 +1,85 @@
+package ironartichoke.sketchpad;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+
+import ironartichoke.sketchpad.base.NotepadTestBase;
+import ironartichoke.sketchpad.util.io.WarmStartCache;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * A test class containing tests for keeping the working directory between launches.
+ */
+public class WarmStartCacheTest extends NotepadTestBase
+{
+	/** The name of the sketchbook whose working directory is retained. */
+	private static final String PROJECT_NAME = "Warm start";
+
+	@Rule
+	public TemporaryFolder archiveDirectory = new TemporaryFolder();
+
+	/**
+	 * Test that a retained working directory is claimed once for an unchanged archive, and not again.
+	 * @throws IOException
+	 */
+	@Test
+	public void claimUnchangedArchive() throws IOException
+	{
+		File archive = createArchive();
+		assertTrue(WarmStartCache.retain(PROJECT_NAME, archive));
+		assertFalse(WarmStartCache.claim("Another sketchbook", archive));
+
+		assertTrue(WarmStartCache.retain(PROJECT_NAME, archive));
+		assertTrue(WarmStartCache.claim(PROJECT_NAME, archive));
+		assertFalse(WarmStartCache.claim(PROJECT_NAME, archive));
+	}
+
+	/**
+	 * Test that a retained working directory isn't claimed once its archive has changed or it has been evicted.
+	 * @throws IOException
+	 */
+	@Test
+	public void rejectChangedOrEvictedArchive() throws IOException
+	{
+		File archive = createArchive();
+		assertTrue(WarmStartCache.retain(PROJECT_NAME, archive));
+		FileUtils.writeStringToFile(archive, "Changed since the working directory was retained.", true);
+		assertFalse(WarmStartCache.claim(PROJECT_NAME, archive));
+
+		assertTrue(WarmStartCache.retain(PROJECT_NAME, archive));
+		WarmStartCache.evict();
+		assertFalse(WarmStartCache.claim(PROJECT_NAME, archive));
+	}
+
+	/**
+	 * Test that the working directory of an unnamed or recovered sketchbook, or one without an archive, isn't retained.
+	 * @throws IOException
+	 */
+	@Test
+	public void refuseUnsavedSketchbooks() throws IOException
+	{
+		File archive = createArchive();
+		assertFalse(WarmStartCache.retain(Project.DEFAULT_NAME, archive));
+		assertFalse(WarmStartCache.retain(Project.RECOVERY_NAME, archive));
+		assertFalse(WarmStartCache.retain(PROJECT_NAME, new File(archiveDirectory.getRoot(), "Missing")));
+	}
+
+	/**
+	 * Creates a stand-in for the archive of the sketchbook.
+	 * @return The archive file.
+	 * @throws IOException
+	 */
+	private File createArchive() throws IOException
+	{
+		File archive = archiveDirectory.newFile(PROJECT_NAME);
+		FileUtils.writeStringToFile(archive, "The contents of the archive.");
+		return archive;
+	}
+}
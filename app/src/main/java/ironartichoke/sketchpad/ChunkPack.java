@@ -0,0 +1,735 @@
+package ironartichoke.sketchpad;
+
+import android.support.v4.util.LongSparseArray;
+
+import com.carrotsearch.hppc.LongOpenHashSet;
+import com.carrotsearch.hppc.cursors.LongCursor;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * The chunk pack of a sheet.
+ * <br\><br\>
+ * Rather than storing every chunk in its own file, the serialized chunks of a sheet are stored in slots of a single pack file.
+ * An offset table, kept in memory and saved to a separate file by {@link #commit()}, maps each chunk ID to its slot.
+ * Each slot has some headroom, so a chunk that grows slightly is rewritten in place.
+ * A chunk that outgrows its slot is moved to the first gap that fits, or to the end of the pack.
+ * Gaps are only reused once the offset table no longer refers to them.
+ * When more than half of the pack is dead space, it is defragmented on a low-priority thread of its own.
+ * <br\><br\>
+ * The pack file name carries a generation number that is recorded in the offset table.
+ * Defragmentation writes a new generation and only then replaces the offset table,
+ * so a crash part-way through always leaves a consistent pair of files behind.
+ * <br\><br\>
+ * Sheets from earlier versions, which have one file per chunk, are moved into the pack the first time it is opened.
+ * <br\><br\>
+ * All public methods apart from {@link #defragment()} are synchronized, since chunks are saved and loaded both on the
+ * UI thread and in the background. Defragmentation copies the chunks without holding the lock, so that loading and
+ * saving chunks doesn't wait for it, and only takes the lock again to switch over to the new pack.
+ */
+final class ChunkPack
+{
+	/** The name of the offset table file in the sheet folder. */
+	public static final String TABLE_FILE = "chunks";
+	/** The prefix of the pack file name, which is followed by the generation number. */
+	private static final String PACK_PREFIX = "chunks.";
+	/** The suffix of the pack file name. */
+	private static final String PACK_SUFFIX = ".pack";
+	/** The suffix of the temporary file that is written before being renamed over the offset table. */
+	private static final String TEMP_SUFFIX = ".tmp";
+
+	/** The magic number at the start of the offset table file. */
+	private static final int MAGIC = 0x6E4C5054;
+	/** The version of the offset table file format. */
+	private static final int VERSION = 1;
+
+	/** Slot capacities are rounded up to a multiple of this many bytes. */
+	private static final int SLOT_ALIGNMENT = 256;
+	/** Packs smaller than this (in bytes) are never defragmented. */
+	private static final long MIN_DEFRAGMENT_BYTES = 64L * 1024L;
+
+	/** The thread that defragments packs, one at a time. Kept apart from the tasks that load and save chunks,
+	 * since copying a whole pack would hold them up. */
+	private static final ExecutorService DEFRAGMENT_EXECUTOR = Executors.newSingleThreadExecutor(new ThreadFactory()
+	{
+		@Override
+		public Thread newThread(Runnable runnable)
+		{
+			Thread thread = new Thread(runnable, "ChunkPackDefragmenter");
+			thread.setPriority(Thread.MIN_PRIORITY);
+			return thread;
+		}
+	});
+
+	/** The sheet folder. */
+	private final File directory;
+	/** The slot of each chunk in the pack, by chunk ID. */
+	private LongSparseArray<Slot> slots;
+	/** The generation of the current pack file. */
+	private long generation = 0;
+	/** The length of the pack file, in bytes. */
+	private long packLength = 0;
+	/** The total length of the chunks in the pack, in bytes. */
+	private long liveBytes = 0;
+	/** Whether the offset table has changed since it was last saved. */
+	private boolean isTableDirty = false;
+	/** The loose chunk files from an earlier version that have been moved into the pack but not yet deleted. */
+	private ArrayList<File> migratedFiles = new ArrayList<>();
+	/** Slots that have been vacated since the offset table was last saved.
+	 * They are not reused until then, since the saved table may still refer to them. */
+	private ArrayList<Slot> uncommittedGaps = new ArrayList<>();
+	/** Whether a background defragmentation has been scheduled. */
+	private boolean isDefragmentPending = false;
+	/** The IDs of the chunks that have been written or removed since a defragmentation started copying the pack,
+	 * or <code>null</code> if no defragmentation is in progress. */
+	private LongOpenHashSet chunksChangedDuringDefragment = null;
+
+	/**
+	 * The location of a chunk within the pack file.
+	 */
+	private static final class Slot
+	{
+		/** The position of the slot in the pack file. */
+		long offset;
+		/** The length of the serialized chunk. */
+		int length;
+		/** The number of bytes reserved for the chunk. */
+		int capacity;
+
+		Slot(long offset, int length, int capacity)
+		{
+			this.offset = offset;
+			this.length = length;
+			this.capacity = capacity;
+		}
+	}
+
+	/**
+	 * Creates a handle for the chunk pack in the given sheet folder.
+	 * Nothing is read until the pack is first used.
+	 * @param directory The sheet folder.
+	 */
+	ChunkPack(File directory)
+	{
+		this.directory = directory;
+	}
+
+	/**
+	 * Reads the offset table if it hasn't been read yet, and moves any loose chunk files into the pack.
+	 * @throws IOException
+	 */
+	private void open() throws IOException
+	{
+		if (slots != null) return;
+
+		slots = new LongSparseArray<>();
+		readTable();
+		deleteStalePacks();
+		migrateLooseChunks();
+	}
+
+	/**
+	 * Checks whether the pack holds the chunk with the given ID.
+	 * @param chunkId The chunk ID.
+	 * @return True if the chunk is in the pack; false otherwise.
+	 */
+	public synchronized boolean contains(long chunkId)
+	{
+		try
+		{
+			open();
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+			return false;
+		}
+		return slots.indexOfKey(chunkId) > -1;
+	}
+
+	/**
+	 * Gets the IDs of all chunks in the pack.
+	 * @return The chunk IDs, in ascending order.
+	 */
+	public synchronized long[] getChunkIds()
+	{
+		try
+		{
+			open();
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+			return new long[0];
+		}
+		long[] chunkIds = new long[slots.size()];
+		for (int s = 0; s < chunkIds.length; s++)
+		{
+			chunkIds[s] = slots.keyAt(s);
+		}
+		return chunkIds;
+	}
+
+	/**
+	 * Reads a serialized chunk from the pack.
+	 * @param chunkId The chunk ID.
+	 * @return The serialized chunk, or <code>null</code> if it is not in the pack.
+	 * @throws IOException
+	 */
+	public synchronized byte[] read(long chunkId) throws IOException
+	{
+		open();
+		Slot slot = slots.get(chunkId);
+		if (slot == null) return null;
+
+		byte[] data = new byte[slot.length];
+		RandomAccessFile raf = new RandomAccessFile(getPackFile(generation), "r");
+		try
+		{
+			raf.seek(slot.offset);
+			raf.readFully(data);
+		}
+		finally
+		{
+			raf.close();
+		}
+		return data;
+	}
+
+	/**
+	 * Writes a serialized chunk to the pack, in place if it fits into its current slot.
+	 * The offset table is not saved until {@link #commit()} is called.
+	 * @param chunkId The chunk ID.
+	 * @param data The serialized chunk.
+	 * @throws IOException
+	 */
+	public synchronized void write(long chunkId, byte[] data) throws IOException
+	{
+		open();
+		if (chunksChangedDuringDefragment != null) chunksChangedDuringDefragment.add(chunkId);
+		Slot slot = slots.get(chunkId);
+		if (slot != null && data.length > slot.capacity)
+		{
+			// The chunk has outgrown its slot, which becomes a gap.
+			removeSlot(chunkId, slot);
+			slot = null;
+		}
+		if (slot == null)
+		{
+			slot = allocate(data.length);
+			slots.put(chunkId, slot);
+		}
+		else
+		{
+			liveBytes -= slot.length;
+		}
+		slot.length = data.length;
+		liveBytes += data.length;
+		isTableDirty = true;
+
+		RandomAccessFile raf = new RandomAccessFile(getPackFile(generation), "rw");
+		try
+		{
+			raf.seek(slot.offset);
+			raf.write(data);
+			packLength = Math.max(packLength, raf.length());
+		}
+		finally
+		{
+			raf.close();
+		}
+	}
+
+	/**
+	 * Removes a chunk from the pack. Its slot becomes a gap that may be reused.
+	 * The offset table is not saved until {@link #commit()} is called.
+	 * @param chunkId The chunk ID.
+	 */
+	public synchronized void remove(long chunkId)
+	{
+		try
+		{
+			open();
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+			return;
+		}
+		Slot slot = slots.get(chunkId);
+		if (slot != null)
+		{
+			if (chunksChangedDuringDefragment != null) chunksChangedDuringDefragment.add(chunkId);
+			removeSlot(chunkId, slot);
+			isTableDirty = true;
+		}
+	}
+
+	/**
+	 * Saves the offset table if it has changed, and schedules a defragmentation if the pack has too much dead space.
+	 */
+	public synchronized void commit()
+	{
+		if (slots == null) return;
+
+		if (isTableDirty)
+		{
+			try
+			{
+				writeTable(generation);
+				isTableDirty = false;
+				uncommittedGaps.clear();
+				deleteMigratedFiles();
+			}
+			catch (IOException e)
+			{
+				e.printStackTrace();
+				return;
+			}
+		}
+
+		if (needsDefragment() && !isDefragmentPending)
+		{
+			isDefragmentPending = true;
+			DEFRAGMENT_EXECUTOR.execute(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					defragment();
+				}
+			});
+		}
+	}
+
+	/**
+	 * Checks whether more than half of the pack is dead space.
+	 * @return True if the pack should be defragmented; false otherwise.
+	 */
+	private boolean needsDefragment()
+	{
+		return packLength >= MIN_DEFRAGMENT_BYTES && packLength - liveBytes > packLength / 2;
+	}
+
+	/**
+	 * Rewrites the chunks into a new pack file without gaps, then switches the offset table over to it.
+	 * <br\><br\>
+	 * The chunks are copied without holding the lock, so that chunks can still be loaded and saved in the meantime.
+	 * The lock is then taken again to copy the chunks that were written during the copy, drop the ones that were
+	 * removed, and switch over to the new pack.
+	 */
+	public void defragment()
+	{
+		long oldGeneration;
+		long[] chunkIds;
+		Slot[] oldSlots;
+		synchronized (this)
+		{
+			isDefragmentPending = false;
+			if (slots == null || chunksChangedDuringDefragment != null || !needsDefragment()) return;
+
+			oldGeneration = generation;
+			int size = slots.size();
+			chunkIds = new long[size];
+			oldSlots = new Slot[size];
+			for (int s = 0; s < size; s++)
+			{
+				Slot slot = slots.valueAt(s);
+				chunkIds[s] = slots.keyAt(s);
+				oldSlots[s] = new Slot(slot.offset, slot.length, slot.capacity);
+			}
+			chunksChangedDuringDefragment = new LongOpenHashSet();
+		}
+
+		long newGeneration = oldGeneration + 1;
+		File oldPackFile = getPackFile(oldGeneration);
+		File newPackFile = getPackFile(newGeneration);
+		LongSparseArray<Slot> newSlots = new LongSparseArray<>(chunkIds.length);
+		long offset;
+		try
+		{
+			offset = copyChunks(oldPackFile, newPackFile, chunkIds, oldSlots, newSlots);
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+			newPackFile.delete();
+			synchronized (this)
+			{
+				chunksChangedDuringDefragment = null;
+			}
+			return;
+		}
+
+		synchronized (this)
+		{
+			LongOpenHashSet changedChunkIds = chunksChangedDuringDefragment;
+			chunksChangedDuringDefragment = null;
+
+			LongSparseArray<Slot> currentSlots = slots;
+			try
+			{
+				offset = copyChangedChunks(oldPackFile, newPackFile, changedChunkIds, newSlots, offset);
+				slots = newSlots;
+				writeTable(newGeneration);
+			}
+			catch (IOException e)
+			{
+				e.printStackTrace();
+				slots = currentSlots;
+				newPackFile.delete();
+				return;
+			}
+
+			generation = newGeneration;
+			packLength = offset;
+			isTableDirty = false;
+			uncommittedGaps.clear();
+			deleteMigratedFiles();
+			oldPackFile.delete();
+		}
+	}
+
+	/**
+	 * Copies chunks into a new pack file, one after another, each in a slot with room to grow.
+	 * @param from The pack file to copy from.
+	 * @param to The new pack file.
+	 * @param chunkIds The IDs of the chunks to copy.
+	 * @param fromSlots The slots of the chunks in the pack file to copy from.
+	 * @param toSlots The table that the slots of the chunks in the new pack file are added to.
+	 * @return The length of the new pack file.
+	 * @throws IOException
+	 */
+	private static long copyChunks(File from, File to, long[] chunkIds, Slot[] fromSlots, LongSparseArray<Slot> toSlots)
+			throws IOException
+	{
+		long offset = 0;
+		RandomAccessFile in = null;
+		DataOutputStream out = null;
+		try
+		{
+			in = new RandomAccessFile(from, "r");
+			FileOutputStream fos = new FileOutputStream(to);
+			out = new DataOutputStream(new BufferedOutputStream(fos));
+			byte[] buffer = new byte[0];
+			for (int s = 0; s < chunkIds.length; s++)
+			{
+				Slot slot = fromSlots[s];
+				if (buffer.length < slot.length) buffer = new byte[slot.length];
+				in.seek(slot.offset);
+				in.readFully(buffer, 0, slot.length);
+
+				int capacity = getCapacity(slot.length);
+				out.write(buffer, 0, slot.length);
+				// Pad the slot so that it can be rewritten in place.
+				for (int p = slot.length; p < capacity; p++)
+				{
+					out.write(0);
+				}
+				toSlots.put(chunkIds[s], new Slot(offset, slot.length, capacity));
+				offset += capacity;
+			}
+			out.flush();
+			// The new pack must be on disk before the offset table refers to it.
+			fos.getFD().sync();
+		}
+		finally
+		{
+			closeQuietly(in);
+			closeQuietly(out);
+		}
+		return offset;
+	}
+
+	/**
+	 * Brings a new pack file up to date with the chunks that were written or removed while it was being copied.
+	 * Written chunks are copied again, to the end of the new pack file. Must be called while holding the lock.
+	 * @param from The current pack file.
+	 * @param to The new pack file.
+	 * @param changedChunkIds The IDs of the chunks that were written or removed.
+	 * @param toSlots The slots of the chunks in the new pack file, which are updated.
+	 * @param offset The length of the new pack file.
+	 * @return The new length of the new pack file.
+	 * @throws IOException
+	 */
+	private long copyChangedChunks(File from, File to, LongOpenHashSet changedChunkIds, LongSparseArray<Slot> toSlots, long offset)
+			throws IOException
+	{
+		if (changedChunkIds.isEmpty()) return offset;
+
+		RandomAccessFile in = null;
+		RandomAccessFile out = null;
+		try
+		{
+			in = new RandomAccessFile(from, "r");
+			out = new RandomAccessFile(to, "rw");
+			for (LongCursor cursor : changedChunkIds)
+			{
+				Slot slot = slots.get(cursor.value);
+				if (slot == null)
+				{
+					toSlots.remove(cursor.value);
+					continue;
+				}
+
+				byte[] data = new byte[slot.length];
+				in.seek(slot.offset);
+				in.readFully(data);
+				int capacity = getCapacity(slot.length);
+				out.seek(offset);
+				out.write(data);
+				toSlots.put(cursor.value, new Slot(offset, slot.length, capacity));
+				offset += capacity;
+			}
+			// Pad the last slot, then make sure the copies are on disk before the offset table refers to them.
+			out.setLength(offset);
+			out.getFD().sync();
+		}
+		finally
+		{
+			closeQuietly(in);
+			closeQuietly(out);
+		}
+		return offset;
+	}
+
+	/**
+	 * Finds space for a new slot: the first gap between slots that is large enough, or the end of the pack.
+	 * @param length The length of the serialized chunk.
+	 * @return The new slot, not yet added to the offset table.
+	 */
+	private Slot allocate(int length)
+	{
+		int capacity = getCapacity(length);
+
+		ArrayList<Slot> ordered = new ArrayList<>(slots.size() + uncommittedGaps.size());
+		for (int s = 0; s < slots.size(); s++)
+		{
+			ordered.add(slots.valueAt(s));
+		}
+		ordered.addAll(uncommittedGaps);
+		Collections.sort(ordered, new Comparator<Slot>()
+		{
+			@Override
+			public int compare(Slot lhs, Slot rhs)
+			{
+				return lhs.offset < rhs.offset ? -1 : (lhs.offset == rhs.offset ? 0 : 1);
+			}
+		});
+
+		long end = 0;
+		for (Slot slot : ordered)
+		{
+			if (slot.offset - end >= length)
+			{
+				return new Slot(end, length, (int) Math.min(capacity, slot.offset - end));
+			}
+			end = slot.offset + slot.capacity;
+		}
+		return new Slot(end, length, capacity);
+	}
+
+	/**
+	 * Removes a slot from the offset table.
+	 * @param chunkId The chunk ID.
+	 * @param slot The chunk's slot.
+	 */
+	private void removeSlot(long chunkId, Slot slot)
+	{
+		slots.remove(chunkId);
+		uncommittedGaps.add(slot);
+		liveBytes -= slot.length;
+	}
+
+	/**
+	 * Gets the capacity of a slot for a serialized chunk, which leaves room for the chunk to grow by half.
+	 * @param length The length of the serialized chunk.
+	 * @return The capacity, rounded up to {@link #SLOT_ALIGNMENT}.
+	 */
+	private static int getCapacity(int length)
+	{
+		int capacity = length + length / 2;
+		return (capacity + SLOT_ALIGNMENT - 1) / SLOT_ALIGNMENT * SLOT_ALIGNMENT;
+	}
+
+	/**
+	 * Gets the pack file of the given generation.
+	 * @param generation The generation.
+	 * @return The pack file.
+	 */
+	private File getPackFile(long generation)
+	{
+		return new File(directory, PACK_PREFIX + generation + PACK_SUFFIX);
+	}
+
+	/**
+	 * Gets the offset table file.
+	 * @return The offset table file.
+	 */
+	private File getTableFile()
+	{
+		return new File(directory, TABLE_FILE);
+	}
+
+	/**
+	 * Reads the offset table file, if it exists.
+	 * @throws IOException
+	 */
+	private void readTable() throws IOException
+	{
+		File tableFile = getTableFile();
+		if (!tableFile.exists()) return;
+
+		DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(tableFile)));
+		try
+		{
+			if (dis.readInt() != MAGIC) throw new IOException("Not a chunk table"); // Magic number
+			if (dis.readInt() > VERSION) throw new IOException("Unsupported chunk table version"); // Version
+			generation = dis.readLong(); // Generation of the pack file
+			int size = dis.readInt(); // Number of chunks
+			for (int s = 0; s < size; s++) // Chunks
+			{
+				long chunkId = dis.readLong(); // Chunk ID
+				Slot slot = new Slot(dis.readLong(), dis.readInt(), dis.readInt()); // Offset, length and capacity
+				slots.put(chunkId, slot);
+				liveBytes += slot.length;
+			}
+		}
+		finally
+		{
+			dis.close();
+		}
+		packLength = getPackFile(generation).length();
+	}
+
+	/**
+	 * Writes the offset table atomically.
+	 * @param generation The generation of the pack file that the table refers to.
+	 * @throws IOException
+	 */
+	private void writeTable(long generation) throws IOException
+	{
+		File tableFile = getTableFile();
+		File tempFile = new File(directory, TABLE_FILE + TEMP_SUFFIX);
+		FileOutputStream fos = new FileOutputStream(tempFile);
+		try
+		{
+			DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(fos));
+			dos.writeInt(MAGIC); // Magic number
+			dos.writeInt(VERSION); // Version
+			dos.writeLong(generation); // Generation of the pack file
+			int size = slots.size();
+			dos.writeInt(size); // Number of chunks
+			for (int s = 0; s < size; s++) // Chunks
+			{
+				Slot slot = slots.valueAt(s);
+				dos.writeLong(slots.keyAt(s)); // Chunk ID
+				dos.writeLong(slot.offset); // Offset
+				dos.writeInt(slot.length); // Length
+				dos.writeInt(slot.capacity); // Capacity
+			}
+			dos.flush();
+			fos.getFD().sync();
+		}
+		finally
+		{
+			fos.close();
+		}
+
+		if (!tempFile.renameTo(tableFile))
+		{
+			tempFile.delete();
+			throw new IOException("Could not replace the chunk table");
+		}
+	}
+
+	/**
+	 * Deletes pack files of other generations, which are left behind if the app stops during a defragmentation.
+	 */
+	private void deleteStalePacks()
+	{
+		File currentPackFile = getPackFile(generation);
+		File[] files = directory.listFiles();
+		if (files == null) return;
+		for (File file : files)
+		{
+			String name = file.getName();
+			if (name.startsWith(PACK_PREFIX) && name.endsWith(PACK_SUFFIX) && !file.equals(currentPackFile))
+			{
+				file.delete();
+			}
+		}
+	}
+
+	/**
+	 * Moves the loose chunk files of an earlier version into the pack.
+	 * The loose files are deleted once the offset table has been saved.
+	 * @throws IOException
+	 */
+	private void migrateLooseChunks() throws IOException
+	{
+		File[] files = directory.listFiles();
+		if (files == null) return;
+		for (File file : files)
+		{
+			long chunkId;
+			try
+			{
+				chunkId = Long.parseLong(file.getName());
+			}
+			catch (NumberFormatException e)
+			{
+				// Not a chunk file.
+				continue;
+			}
+			write(chunkId, FileUtils.readFileToByteArray(file));
+			migratedFiles.add(file);
+		}
+		if (!migratedFiles.isEmpty()) commit();
+	}
+
+	/**
+	 * Deletes the loose chunk files that have been moved into the pack.
+	 */
+	private void deleteMigratedFiles()
+	{
+		for (File file : migratedFiles)
+		{
+			file.delete();
+		}
+		migratedFiles.clear();
+	}
+
+	/**
+	 * Closes a file used for defragmentation, disregarding any exceptions.
+	 * @param closeable The file, or <code>null</code> if it wasn't opened.
+	 */
+	private static void closeQuietly(Closeable closeable)
+	{
+		try
+		{
+			if (closeable != null) closeable.close();
+		}
+		catch (IOException e)
+		{
+			// Disregard exception.
+		}
+	}
+}
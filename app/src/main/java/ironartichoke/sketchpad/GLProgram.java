@@ -1,5 +1,14 @@
 package ironartichoke.sketchpad;
 
+import android.opengl.GLES20;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+import ironartichoke.sketchpad.util.ColorUtils;
+
 /**
  * A class that holds the OpenGL shader code and the OpenGL program pointer.
  */
@@ -7,20 +16,212 @@ final class GLProgram
 {
     /** The pointer to the OpenGL program in memory. */
     public static int glProgram;
+	/** The pointer to the OpenGL program that draws textured quads. */
+	public static int textureProgram;
+
+	/** The locations of the attributes and uniforms of {@link #glProgram}. Set by {@link #loadLocations()}. */
+	private static int positionHandle, neighborHandle, sideHandle, mvpMatrixHandle, originHandle, scaleHandle,
+			halfWidthHandle, paletteHandle, colorIndexHandle, themeHandle;
+	/** The locations of the attributes and uniforms of {@link #textureProgram}. Set by {@link #loadLocations()}. */
+	private static int texturePositionHandle, textureTexCoordHandle, textureMvpMatrixHandle, textureSamplerHandle;
+
+	/** The number of components per stroke vertex, i.e. X, Y and the side of the strip (1 or -1). */
+	static final int COMPONENTS_PER_VERTEX = 3;
+
+	/** The number of colors in the palette uniform. */
+	static final int PALETTE_SIZE = 16;
+	/** The palette index used for eraser strokes, which are drawn in the background color. */
+	static final int ERASER_COLOR_INDEX = PALETTE_SIZE - 1;
 
-	/** The GLSL code for the vertex shader. */
+	/**
+	 * The GLSL code for the vertex shader.
+	 * <br\><br\>
+	 * Stroke vertices are centerline points, each passed twice with <code>aSide</code> set to 1 and -1. The shader
+	 * moves each vertex away from the centerline by <code>uHalfWidth</code>, perpendicular to the segment from the
+	 * previous point (<code>aNeighbor</code>), so the stroke thickness is applied on the GPU.
+	 * Positions are scaled by <code>uScale</code> and offset by <code>uOrigin</code>,
+	 * so that packed strokes can pass 16-bit offsets from their chunk's center.
+	 * <br\><br\>
+	 * The stroke color is looked up in <code>uPalette</code> by <code>uColorIndex</code>. Black strokes and eraser
+	 * strokes depend on <code>uTheme</code>, so that switching between light and dark mode is a single uniform write.
+	 */
     public static final String vertexShaderCode =
-            "attribute vec4 vPosition;" +
+            "attribute vec2 vPosition;" +
+		    "attribute vec2 aNeighbor;" +
+		    "attribute float aSide;" +
 		    "uniform mat4 uMVPMatrix;" +
+		    "uniform vec2 uOrigin;" +
+		    "uniform float uScale;" +
+		    "uniform float uHalfWidth;" +
+		    "uniform vec4 uPalette[" + PALETTE_SIZE + "];" +
+		    "uniform float uColorIndex;" +
+		    "uniform float uTheme;" +
+		    "varying vec4 vColor;" +
             "void main() {" +
-            "  gl_Position = uMVPMatrix * vPosition;" +
+		    "  int index = int(uColorIndex + 0.5);" +
+		    "  if (index == " + ERASER_COLOR_INDEX + ") vColor = vec4(vec3(1.0 - uTheme), 1.0);" +
+		    "  else if (index == 0) vColor = vec4(vec3(uTheme), 1.0);" +
+		    "  else vColor = uPalette[index];" +
+		    "  vec2 direction = vPosition - aNeighbor;" +
+		    "  float magnitude = length(direction);" +
+		    "  vec2 normal = magnitude > 0.0 ? vec2(direction.y, -direction.x) / magnitude : vec2(0.0);" +
+            "  gl_Position = uMVPMatrix * vec4(uOrigin + vPosition * uScale + normal * (aSide * uHalfWidth), 0.0, 1.0);" +
             "}";
 
 	/** The GLSL code for the fragment shader. */
     public static final String fragmentShaderCode =
             "precision mediump float;" +
-            "uniform vec4 vColor;" +
+            "varying vec4 vColor;" +
             "void main() {" +
             "  gl_FragColor = vColor;" +
             "}";
+
+	/** The GLSL code for the vertex shader of {@link #textureProgram}. */
+	public static final String textureVertexShaderCode =
+			"attribute vec2 aPosition;" +
+			"attribute vec2 aTexCoord;" +
+			"uniform mat4 uMVPMatrix;" +
+			"varying vec2 vTexCoord;" +
+			"void main() {" +
+			"  gl_Position = uMVPMatrix * vec4(aPosition, 0.0, 1.0);" +
+			"  vTexCoord = aTexCoord;" +
+			"}";
+
+	/** The GLSL code for the fragment shader of {@link #textureProgram}. */
+	public static final String textureFragmentShaderCode =
+			"precision mediump float;" +
+			"uniform sampler2D uTexture;" +
+			"varying vec2 vTexCoord;" +
+			"void main() {" +
+			"  gl_FragColor = texture2D(uTexture, vTexCoord);" +
+			"}";
+
+	/** The vertices of a textured quad, as X, Y, U and V for each corner. Only used from the OpenGL thread. */
+	private static final FloatBuffer quadBuffer =
+			ByteBuffer.allocateDirect(4 * 4 * 4).order(ByteOrder.nativeOrder()).asFloatBuffer();
+
+	/**
+	 * Looks up the locations of the attributes and uniforms of both programs.
+	 * This should be called once after the programs are linked.
+	 */
+	static void loadLocations()
+	{
+		positionHandle = GLES20.glGetAttribLocation(glProgram, "vPosition");
+		neighborHandle = GLES20.glGetAttribLocation(glProgram, "aNeighbor");
+		sideHandle = GLES20.glGetAttribLocation(glProgram, "aSide");
+		mvpMatrixHandle = GLES20.glGetUniformLocation(glProgram, "uMVPMatrix");
+		originHandle = GLES20.glGetUniformLocation(glProgram, "uOrigin");
+		scaleHandle = GLES20.glGetUniformLocation(glProgram, "uScale");
+		halfWidthHandle = GLES20.glGetUniformLocation(glProgram, "uHalfWidth");
+		paletteHandle = GLES20.glGetUniformLocation(glProgram, "uPalette");
+		colorIndexHandle = GLES20.glGetUniformLocation(glProgram, "uColorIndex");
+		themeHandle = GLES20.glGetUniformLocation(glProgram, "uTheme");
+
+		texturePositionHandle = GLES20.glGetAttribLocation(textureProgram, "aPosition");
+		textureTexCoordHandle = GLES20.glGetAttribLocation(textureProgram, "aTexCoord");
+		textureMvpMatrixHandle = GLES20.glGetUniformLocation(textureProgram, "uMVPMatrix");
+		textureSamplerHandle = GLES20.glGetUniformLocation(textureProgram, "uTexture");
+	}
+
+	/**
+	 * Uploads the stroke colors from {@link ColorUtils#COLORS} to the palette uniform.
+	 * This should be called once after the program is created.
+	 */
+	static void loadPalette()
+	{
+		float[] palette = new float[PALETTE_SIZE * 4];
+		for (int c = 0; c < ColorUtils.COLORS.length && c < ERASER_COLOR_INDEX; c++)
+		{
+			System.arraycopy(ColorUtils.COLORS[c], 0, palette, c * 4, 4);
+		}
+		GLES20.glUniform4fv(paletteHandle, PALETTE_SIZE, palette, 0);
+	}
+
+	/**
+	 * Sets the theme that black and eraser strokes are drawn for.
+	 * @param isDark True for dark mode, false for light mode.
+	 */
+	static void setTheme(boolean isDark)
+	{
+		GLES20.glUniform1f(themeHandle, isDark ? 1 : 0);
+	}
+
+	/**
+	 * Draws a range of a stroke vertex buffer as a triangle strip.
+	 * The buffer's position must be at the first vertex of the phantom point that precedes the range.
+	 * @param vertices The vertex buffer.
+	 * @param type The type of the vertex components, either <code>GL_FLOAT</code> or <code>GL_SHORT</code>.
+	 * @param first The index of the first vertex to draw, relative to the buffer's position.
+	 * @param count The number of vertices to draw.
+	 * @param originX The X coordinate that the vertex positions are relative to.
+	 * @param originY The Y coordinate that the vertex positions are relative to.
+	 * @param scale The size of one unit of the vertex positions.
+	 * @param halfWidth Half of the stroke thickness.
+	 * @param colorIndex The index of the color in the palette.
+	 * @param mvpMatrix The model-view-projection matrix.
+	 */
+	static void drawStrip(Buffer vertices, int type, int first, int count,
+	                      float originX, float originY, float scale, float halfWidth, int colorIndex, float[] mvpMatrix)
+	{
+		int stride = COMPONENTS_PER_VERTEX * (type == GLES20.GL_FLOAT ? 4 : 2);
+		int base = vertices.position();
+
+		// Each vertex's neighbor is the vertex with the same side on the previous point, i.e. two vertices earlier.
+		vertices.position(base + 2 * COMPONENTS_PER_VERTEX);
+		GLES20.glEnableVertexAttribArray(positionHandle);
+		GLES20.glVertexAttribPointer(positionHandle, 2, type, false, stride, vertices);
+		vertices.position(base + 2 * COMPONENTS_PER_VERTEX + 2);
+		GLES20.glEnableVertexAttribArray(sideHandle);
+		GLES20.glVertexAttribPointer(sideHandle, 1, type, false, stride, vertices);
+		vertices.position(base);
+		GLES20.glEnableVertexAttribArray(neighborHandle);
+		GLES20.glVertexAttribPointer(neighborHandle, 2, type, false, stride, vertices);
+
+		GLES20.glUniform2f(originHandle, originX, originY);
+		GLES20.glUniform1f(scaleHandle, scale);
+		GLES20.glUniform1f(halfWidthHandle, halfWidth);
+		GLES20.glUniform1f(colorIndexHandle, colorIndex);
+		GLES20.glUniformMatrix4fv(mvpMatrixHandle, 1, false, mvpMatrix, 0);
+		GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, first, count);
+
+		GLES20.glDisableVertexAttribArray(positionHandle);
+		GLES20.glDisableVertexAttribArray(sideHandle);
+		GLES20.glDisableVertexAttribArray(neighborHandle);
+	}
+
+	/**
+	 * Draws a texture onto a rectangle of the canvas, then switches back to {@link #glProgram}.
+	 * @param texture The texture.
+	 * @param left The canvas X coordinate of the left edge.
+	 * @param bottom The canvas Y coordinate of the bottom edge.
+	 * @param right The canvas X coordinate of the right edge.
+	 * @param top The canvas Y coordinate of the top edge.
+	 * @param mvpMatrix The model-view-projection matrix.
+	 */
+	static void drawTexture(int texture, float left, float bottom, float right, float top, float[] mvpMatrix)
+	{
+		quadBuffer.clear();
+		quadBuffer.put(left).put(bottom).put(0).put(0);
+		quadBuffer.put(right).put(bottom).put(1).put(0);
+		quadBuffer.put(left).put(top).put(0).put(1);
+		quadBuffer.put(right).put(top).put(1).put(1);
+
+		GLES20.glUseProgram(textureProgram);
+		quadBuffer.position(0);
+		GLES20.glEnableVertexAttribArray(texturePositionHandle);
+		GLES20.glVertexAttribPointer(texturePositionHandle, 2, GLES20.GL_FLOAT, false, 16, quadBuffer);
+		quadBuffer.position(2);
+		GLES20.glEnableVertexAttribArray(textureTexCoordHandle);
+		GLES20.glVertexAttribPointer(textureTexCoordHandle, 2, GLES20.GL_FLOAT, false, 16, quadBuffer);
+
+		GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+		GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, texture);
+		GLES20.glUniform1i(textureSamplerHandle, 0);
+		GLES20.glUniformMatrix4fv(textureMvpMatrixHandle, 1, false, mvpMatrix, 0);
+		GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
+
+		GLES20.glDisableVertexAttribArray(texturePositionHandle);
+		GLES20.glDisableVertexAttribArray(textureTexCoordHandle);
+		GLES20.glUseProgram(glProgram);
+	}
 }
@@ -11,6 +11,11 @@ class LoadChunkTask extends AsyncTask<Void, Void, Void>
 	private Project project;
 	/** The list of chunk IDs which correspond to the chunks that are to be loaded. */
 	private long[] chunkIds;
+	/** The sheet that was current when the task was created, which the chunks belong to. */
+	private Project.Sheet sheet;
+	/** The generation of the loaded chunks when the task was created.
+	 * @see Project#getLoadedChunksGeneration() */
+	private int generation;
 
 	/**
 	 * Prepares an asynchronous task for loading chunks.
@@ -21,12 +26,20 @@ class LoadChunkTask extends AsyncTask<Void, Void, Void>
 	{
 		this.project = project;
 		this.chunkIds = chunkIds;
+		this.sheet = project.getCurrentSheet();
+		this.generation = project.getLoadedChunksGeneration();
 	}
 
 	@Override
 	protected Void doInBackground(Void... params)
 	{
-		project.loadChunks(chunkIds);
+		project.loadChunks(sheet, generation, chunkIds);
 		return null;
 	}
+
+	@Override
+	protected void onPostExecute(Void result)
+	{
+		project.onChunksLoaded();
+	}
 }
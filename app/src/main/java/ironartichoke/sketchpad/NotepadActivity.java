@@ -50,6 +50,7 @@ import ironartichoke.sketchpad.util.Reflector;
 import ironartichoke.sketchpad.util.io.DirectoryHelper;
 import ironartichoke.sketchpad.util.io.ExternalStorageHelper;
 import ironartichoke.sketchpad.util.io.IOUtils;
+import ironartichoke.sketchpad.util.io.WarmStartCache;
 
 public class NotepadActivity extends Activity
 {
@@ -726,7 +727,6 @@ public class NotepadActivity extends Activity
 	{
 		notepadView.updateCurrentSheetCameraValues();
 		project().setCurrentSheet(notepadView, index);
-		notepadView.setCameraFromCurrentSheet();
 		updateCameraToolbar();
 		sheetArrayAdapter.notifyDataSetChanged();
 		notepadView.requestRender();
@@ -1733,11 +1733,16 @@ public class NotepadActivity extends Activity
 			public void onClick(DialogInterface dialog, int which)
 			{
 				project().initializeLoaded(Project.RECOVERY_NAME);
-				if (!project().loadMetadata()) project().determineMetadataWithoutFile();
-				for (long sheetId : project().sheetOrder)
+				if (!project().loadMetadata(getResources()))
 				{
-					project().loadSheet(getResources(), sheetId);
+					project().determineMetadataWithoutFile();
+					for (long sheetId : project().sheetOrder)
+					{
+						project().loadSheet(getResources(), sheetId);
+					}
 				}
+				// The index is written lazily, so it may predate the latest strokes.
+				project().ensureStrokeCountAtLeast(Prefs.getLong(R.string.pref_stroke_count));
 				project().setName(Project.RECOVERY_NAME);
 				project().setFiles();
 				project().save(false);
@@ -1839,13 +1844,20 @@ public class NotepadActivity extends Activity
 
 	/**
 	 * Cleans up the working directory and finishes the activity.
+	 * If the sketchbook has no unsaved changes, the working directory may be retained instead so that the
+	 * next launch can skip extracting it (see {@link WarmStartCache}).
 	 * This method should be called instead of {@link #finish()} or else the app will falsely detect a
 	 * dirty exit upon the next launch.
 	 */
 	public void exit()
 	{
 		Prefs.edit().putBoolean(R.string.pref_dirty_exit, false).commit();
-		IOUtils.deleteWorkingDirectories();
+		// The working directory must be left alone before it is kept for the next launch.
+		if (project() != null) project().finishBackgroundWrites();
+		if (project() == null || project().hasUnsavedChanges() || !WarmStartCache.retain(project().getName(), project().getArchiveFile()))
+		{
+			IOUtils.deleteWorkingDirectories();
+		}
 		finish();
 	}
 
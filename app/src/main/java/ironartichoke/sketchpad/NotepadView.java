@@ -1,9 +1,7 @@
 package ironartichoke.sketchpad;
 
 import android.content.Context;
-import android.graphics.Bitmap;
 import android.graphics.PixelFormat;
-import android.graphics.drawable.BitmapDrawable;
 import android.opengl.GLES20;
 import android.opengl.GLSurfaceView;
 import android.opengl.Matrix;
@@ -11,9 +9,16 @@ import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.util.AttributeSet;
 import android.util.Log;
+import android.view.Choreographer;
 import android.view.MotionEvent;
 
-import java.nio.IntBuffer;
+import com.carrotsearch.hppc.LongArrayList;
+import com.carrotsearch.hppc.LongOpenHashSet;
+import com.carrotsearch.hppc.cursors.LongCursor;
+import com.squareup.picasso.Picasso;
+
+import java.util.ArrayList;
+import java.util.Arrays;
 
 import javax.microedition.khronos.egl.EGLConfig;
 import javax.microedition.khronos.opengles.GL10;
@@ -35,6 +40,13 @@ public class NotepadView extends GLSurfaceView
 	/** The current sketchbook. */
 	public Project project;
 
+	/** The cache of rendered chunk tiles, used when the camera is zoomed far out. */
+	final TileCache tileCache = new TileCache();
+	/** The copy of the canvas that the stroke in progress is drawn over. */
+	private final SceneSnapshot sceneSnapshot = new SceneSnapshot();
+	/** Renders and saves the thumbnails of the current sheet and the sketchbook. */
+	private final ThumbnailRenderer thumbnailRenderer = new ThumbnailRenderer();
+
 	/** The constant representing the pencil tool. */
 	public static final int TOOL_PENCIL = 0;
 	/** The constant representing the eraser tool. */
@@ -75,6 +87,21 @@ public class NotepadView extends GLSurfaceView
 	/** The number of points so far in the stroke that is currently being drawn. */
 	private int strokePointCount = 0;
 
+	/** The choreographer of the UI thread, which times {@link #scheduleRender()}. */
+	private Choreographer choreographer;
+	/** Whether a render has been scheduled for the next frame with {@link #scheduleRender()}. */
+	private volatile boolean isRenderScheduled = false;
+	/** Requests the render scheduled by {@link #scheduleRender()} when the next frame begins. */
+	private final Choreographer.FrameCallback scheduledRenderCallback = new Choreographer.FrameCallback()
+	{
+		@Override
+		public void doFrame(long frameTimeNanos)
+		{
+			isRenderScheduled = false;
+			requestRender();
+		}
+	};
+
 	/** The current touch operation. Either {@link #TOUCH_NONE}, {@link #TOUCH_DRAG} or {@link #TOUCH_PINCH}. */
 	private int touchAction = TOUCH_NONE;
 	/** The constant for when no touch operation is in progress. */
@@ -116,6 +143,23 @@ public class NotepadView extends GLSurfaceView
 	/** The previous chunk boundaries.
 	 * Accessed with {@link #BOUND_LEFT}, {@link #BOUND_RIGHT}, {@link #BOUND_TOP} and {@link #BOUND_BOTTOM}. */
 	private int[] prevChunkBounds = new int[4];
+	/** The chunks outside {@link #prevChunkBounds} that have been loaded during a pinch.
+	 * The chunks that a pinch passes over don't form a rectangle, so they are kept track of one by one. */
+	private final LongOpenHashSet chunksLoadedDuringPinch = new LongOpenHashSet();
+	/** How long chunk loads are gathered into one batch during a pinch, in milliseconds. */
+	private static final long PINCH_LOAD_INTERVAL = 150;
+	/** Whether {@link #pinchChunkLoader} has been posted and hasn't run yet. */
+	private boolean isPinchLoadScheduled = false;
+	/** Loads the chunks that have come into range during a pinch, in one batch. */
+	private final Runnable pinchChunkLoader = new Runnable()
+	{
+		@Override
+		public void run()
+		{
+			isPinchLoadScheduled = false;
+			updateChunkWindow(false);
+		}
+	};
 	/** The index representing the left edge of the chunk boundary.
 	 * @see #chunkBounds */
 	private static final int BOUND_LEFT = 0;
@@ -129,9 +173,6 @@ public class NotepadView extends GLSurfaceView
 	 * @see #chunkBounds */
 	private static final int BOUND_BOTTOM = 3;
 
-	/** Project and sheet thumbnails are shrunken in size by this factor. */
-	private static final int THUMBNAIL_SHRINKING_FACTOR = 10;
-
 	public NotepadView(@NonNull Context context)
 	{
 		super(context);
@@ -151,6 +192,7 @@ public class NotepadView extends GLSurfaceView
 	{
 		initOpenGL();
 		latestStroke = new Stroke(this, true);
+		choreographer = Choreographer.getInstance();
 	}
 
 	/**
@@ -224,6 +266,8 @@ public class NotepadView extends GLSurfaceView
 		/** The model-view-projection matrix.
 		 * @see #updateMvpMatrix() */
 		private final float[] mvpMatrix = new float[16];
+		/** The loaded strokes that are in view, found anew for each frame. */
+		private final ArrayList<Stroke> visibleStrokes = new ArrayList<>();
 
 		/** Takes a screenshot of the view during the next render if true. */
 		private volatile boolean isScreenshotRequested = false;
@@ -258,9 +302,6 @@ public class NotepadView extends GLSurfaceView
 		@Override
 		public void onSurfaceCreated(GL10 unused, EGLConfig config)
 		{
-			// Set the background color accordingly.
-			updateBackgroundColor();
-
 			// Get pointers to the shaders.
 			int vertexShader = renderer.loadShader(GLES20.GL_VERTEX_SHADER,	GLProgram.vertexShaderCode);
 			int fragmentShader = renderer.loadShader(GLES20.GL_FRAGMENT_SHADER,	GLProgram.fragmentShaderCode);
@@ -277,9 +318,29 @@ public class NotepadView extends GLSurfaceView
 			// Compile the program.
 			GLES20.glLinkProgram(GLProgram.glProgram);
 
+			// Create the program for drawing cached tiles.
+			GLProgram.textureProgram = GLES20.glCreateProgram();
+			GLES20.glAttachShader(GLProgram.textureProgram, renderer.loadShader(GLES20.GL_VERTEX_SHADER, GLProgram.textureVertexShaderCode));
+			GLES20.glAttachShader(GLProgram.textureProgram, renderer.loadShader(GLES20.GL_FRAGMENT_SHADER, GLProgram.textureFragmentShaderCode));
+			GLES20.glLinkProgram(GLProgram.textureProgram);
+
+			// Look up the attributes and uniforms of both programs once, rather than for every draw.
+			GLProgram.loadLocations();
+
+			// Any cached tiles and snapshots belonged to the previous context.
+			tileCache.reset();
+			sceneSnapshot.reset();
+			thumbnailRenderer.reset();
+
 			// Use it.
 			GLES20.glUseProgram(GLProgram.glProgram);
 
+			// Upload the stroke colors.
+			GLProgram.loadPalette();
+
+			// Set the background color accordingly.
+			updateBackgroundColor();
+
 			// Initialize the project if it hasn't been done already.
 			// Use a posted Runnable since NotepadActivity.initProject() should run on the UI thread.
 			if (project == null)
@@ -290,6 +351,15 @@ public class NotepadView extends GLSurfaceView
 					public void run()
 					{
 						project = new Project();
+						project.setTileCache(tileCache);
+						project.setOnChunksLoadedListener(new Runnable()
+						{
+							@Override
+							public void run()
+							{
+								requestRender();
+							}
+						});
 						activity.initProject();
 					}
 				});
@@ -299,9 +369,11 @@ public class NotepadView extends GLSurfaceView
 		/**
 		 * Sets the background color of the canvas according to the current theme.
 		 * White if the theme is {@link AppearanceUtils#THEME_LIGHT}, and black if the theme is {@link AppearanceUtils#THEME_DARK}.
+		 * Black strokes and eraser strokes follow the theme in the shader.
 		 */
 		private void updateBackgroundColor()
 		{
+			GLProgram.setTheme(AppearanceUtils.isThemeDark());
 			if (AppearanceUtils.isThemeDark())
 			{
 				GLES20.glClearColor(0.0f, 0.0f, 0.0f, 1.0f); // Black
@@ -342,26 +414,13 @@ public class NotepadView extends GLSurfaceView
 			{
 				isBackgroundChangeRequested = false;
 
-				// Make any black strokes white when in dark mode, or white strokes black in light mode.
-				if (project != null)
-				{
-					int strokes = project.getLoadedStrokes().size();
-					for (int s = 0; s < strokes; s++)
-					{
-						Stroke stroke;
-						if ((stroke = project.getLoadedStroke(s)) != null)
-						{
-							stroke.getTriangleStrip().updateColor();
-						}
-					}
-
-					// Reset the temporary stroke.
-					latestStroke = new Stroke(NotepadView.this, true);
-				}
-
-				// Change the background color.
+				// Change the background color, along with black and eraser strokes.
 				updateBackgroundColor();
 
+				// The background is part of the cached tiles and the snapshot.
+				tileCache.invalidateAll();
+				sceneSnapshot.invalidate();
+
 				// Render to reveal the changes.
 				requestRender();
 			}
@@ -372,22 +431,35 @@ public class NotepadView extends GLSurfaceView
 			// Check that the project reference exists before trying to draw any strokes!
 			if (project != null)
 			{
-				// Draw each loaded stroke.
-				int strokes = project.getLoadedStrokes().size();
-				for (int s = 0; s < strokes; s++)
+				if (touchAction == TOUCH_DRAG)
 				{
-					Stroke stroke;
-					if ((stroke = project.getLoadedStroke(s)) != null)
+					// While drawing, the canvas is captured once and only the stroke in progress is drawn over it.
+					int version = project.getLoadedStrokesVersion();
+					if (!sceneSnapshot.isCurrent(version))
 					{
-						stroke.draw(mvpMatrix);
+						sceneSnapshot.beginCapture(viewportWidth, viewportHeight);
+						drawCanvas();
+						sceneSnapshot.endCapture(version, viewportWidth, viewportHeight);
 					}
+					sceneSnapshot.draw();
+				}
+				else
+				{
+					sceneSnapshot.invalidate();
+					drawCanvas();
 				}
 
 				// If a new stroke is currently being drawn by the user, draw it.
 				// It needs to be done here since the stroke hasn't been formally added to the project yet.
 				if (touchAction == TOUCH_DRAG && latestStroke != null)
 				{
-					latestStroke.draw(mvpMatrix);
+					latestStroke.draw(mvpMatrix, zoom);
+				}
+
+				// Is a thumbnail from the previous frame ready to be read back?
+				if (thumbnailRenderer.isReadbackPending())
+				{
+					thumbnailRenderer.readBack();
 				}
 
 				// Is a screenshot due?
@@ -405,6 +477,44 @@ public class NotepadView extends GLSurfaceView
 			}
 		}
 
+		/**
+		 * Draws the loaded strokes, from the cached tiles when zoomed far out or one by one otherwise.
+		 */
+		private void drawCanvas()
+		{
+			// Draw the cached tiles, or each loaded stroke if they aren't ready yet.
+			boolean isDrawnFromTiles = false;
+			if (TileCache.isUsable(zoom))
+			{
+				isDrawnFromTiles = tileCache.draw(project, zoom, mvpMatrix,
+						cameraX - viewportWidth / (2f * zoom), cameraY - viewportHeight / (2f * zoom),
+						cameraX + viewportWidth / (2f * zoom), cameraY + viewportHeight / (2f * zoom),
+						viewportWidth, viewportHeight);
+				if (!isDrawnFromTiles)
+				{
+					requestRender();
+				}
+			}
+			if (!isDrawnFromTiles)
+			{
+				// Only draw the strokes that are in view.
+				project.findLoadedStrokes(
+						(int) Math.floor(cameraX - viewportWidth / (2f * zoom)), (int) Math.floor(cameraY - viewportHeight / (2f * zoom)),
+						(int) Math.ceil(cameraX + viewportWidth / (2f * zoom)), (int) Math.ceil(cameraY + viewportHeight / (2f * zoom)),
+						visibleStrokes);
+				for (Stroke stroke : visibleStrokes)
+				{
+					stroke.draw(mvpMatrix, zoom);
+				}
+			}
+
+			// Draw the finished strokes that are still being committed.
+			for (Stroke stroke : project.getPendingStrokes())
+			{
+				stroke.draw(mvpMatrix, zoom);
+			}
+		}
+
 		/**
 		 * Called when the viewport changes in size.
 		 * This happens when the view is first created and whenever the device orientation is changed.
@@ -479,54 +589,45 @@ public class NotepadView extends GLSurfaceView
 		}
 
 		/**
-		 * Takes a screenshot of the view and saves it as the thumbnail of the specified sheet.
+		 * Renders the thumbnails of the specified sheet and the sketchbook from the view.
+		 * They are read back during the next frame and saved in the background,
+		 * after which the sheet menu is refreshed and any requested task is performed.
 		 * @see #requestScreenshot(Project)
+		 * @see ThumbnailRenderer
 		 */
 		private void takeScreenshot()
 		{
-			int width = getWidth();
-			int height = getHeight();
-			int capacity = width * height;
-			int[] dataArray = new int[capacity];
-			IntBuffer dataBuffer = IntBuffer.allocate(capacity);
-			GLES20.glReadPixels(0, 0, width, height, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, dataBuffer);
-			int[] dataArrayTemp = dataBuffer.array();
-
-			// Flip the mirrored image.
-			for (int y = 0; y < height; y++)
+			final Project.Sheet sheet = project.getSheetAt(screenshotSheetIndex);
+			thumbnailRenderer.render(project, sheet, cameraX, cameraY, zoom, viewportWidth, viewportHeight, new Runnable()
 			{
-				System.arraycopy(dataArrayTemp, y * width, dataArray, (height - y - 1) * width, width);
-			}
-
-			Bitmap screenshot = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
-			screenshot.copyPixelsFromBuffer(IntBuffer.wrap(dataArray));
-			Bitmap thumbnail = Bitmap.createScaledBitmap(screenshot, width / THUMBNAIL_SHRINKING_FACTOR, height / THUMBNAIL_SHRINKING_FACTOR, true);
-			project.getSheetAt(screenshotSheetIndex).saveThumbnail(thumbnail);
-			BitmapDrawable thumbnailDrawable = new BitmapDrawable(getResources(), thumbnail);
-			project.getSheetAt(screenshotSheetIndex).setThumbnail(thumbnailDrawable);
+				@Override
+				public void run()
+				{
+					post(new Runnable()
+					{
+						@Override
+						public void run()
+						{
+							// The sheet menu decodes thumbnails from their files, so drop the stale copy from its cache.
+							Picasso.with(getContext()).invalidate(sheet.getThumbnailFile());
 
-			// Refresh the sheet panel if the user is not requesting an exit.
-			if (activity.taskRequested != NotepadActivity.TASK_EXIT)
-			{
-				activity.refreshSheetDrawerAfterGeneratingThumbnail();
-			}
+							// Refresh the sheet panel if the user is not requesting an exit.
+							if (activity.taskRequested != NotepadActivity.TASK_EXIT)
+							{
+								activity.refreshSheetDrawerAfterGeneratingThumbnail();
+							}
 
-			// The project thumbnail should be twice the width and height of a sheet thumbnail.
-			Bitmap projectThumbnail = Bitmap.createScaledBitmap(
-					screenshot, (width * 2) / THUMBNAIL_SHRINKING_FACTOR, (height * 2) / THUMBNAIL_SHRINKING_FACTOR, true);
-			project.saveThumbnail(projectThumbnail);
+							if (activity.taskRequested > 0)
+							{
+								activity.performTask();
+							}
+						}
+					});
+				}
+			});
 
-			if (activity.taskRequested > 0)
-			{
-				post(new Runnable()
-				{
-					@Override
-					public void run()
-					{
-						activity.performTask();
-					}
-				});
-			}
+			// Read the thumbnail back during the next frame.
+			requestRender();
 		}
 	}
 
@@ -547,10 +648,24 @@ public class NotepadView extends GLSurfaceView
 	 * A chunk is saved and discarded when it moves out of view.
 	 * This method should be called after the camera is panned.
 	 * For other camera movements, call loadAllVisibleChunks() instead.
+	 * <br\><br\>
+	 * During a pinch, the camera moves on every touch event and often moves back again, so nothing is unloaded
+	 * until the pinch ends (see {@link #settleChunks()}), and the chunks coming into range are loaded in batches
+	 * at most every {@link #PINCH_LOAD_INTERVAL} milliseconds.
 	 * @see #loadAllVisibleChunks(boolean, boolean)
 	 */
 	private void checkSurroundingChunks()
 	{
+		if (touchAction == TOUCH_PINCH)
+		{
+			if (!isPinchLoadScheduled)
+			{
+				isPinchLoadScheduled = true;
+				postDelayed(pinchChunkLoader, PINCH_LOAD_INTERVAL);
+			}
+			return;
+		}
+
 		calculateChunkBounds();
 
 		if (chunkBounds[BOUND_RIGHT] > prevChunkBounds[BOUND_RIGHT]) // +X load
@@ -616,6 +731,90 @@ public class NotepadView extends GLSurfaceView
 		persistChunkBounds();
 	}
 
+	/**
+	 * Brings the loaded chunks up to date once a pinch has ended, loading the chunks that are now in range
+	 * and unloading the chunks that the pinch left behind.
+	 */
+	private void settleChunks()
+	{
+		if (isPinchLoadScheduled)
+		{
+			removeCallbacks(pinchChunkLoader);
+			isPinchLoadScheduled = false;
+		}
+		updateChunkWindow(true);
+	}
+
+	/**
+	 * Loads the chunks in range that haven't been loaded yet, in one batch, and optionally unloads the chunks out of range.
+	 * Without unloading, the chunks previously in range are kept, so the loaded chunks only grow,
+	 * and the chunks loaded since are recorded in {@link #chunksLoadedDuringPinch}.
+	 * @param unload Whether the chunks out of range should be saved and unloaded.
+	 */
+	private void updateChunkWindow(boolean unload)
+	{
+		calculateChunkBounds();
+
+		LongArrayList chunksToLoad = new LongArrayList();
+		for (long chunkId : getChunksOutside(chunkBounds, prevChunkBounds))
+		{
+			if (chunksLoadedDuringPinch.add(chunkId)) chunksToLoad.add(chunkId);
+		}
+		project.loadChunks(chunksToLoad.toArray(), true);
+
+		if (unload)
+		{
+			// The chunks loaded during the pinch are all outside the previous chunk bounds, so none is unloaded twice.
+			long[] chunksLeft = getChunksOutside(prevChunkBounds, chunkBounds);
+			LongArrayList chunksToUnload = new LongArrayList();
+			chunksToUnload.add(chunksLeft, 0, chunksLeft.length);
+			for (LongCursor cursor : chunksLoadedDuringPinch)
+			{
+				int[] coords = ChunkUtils.unpack(cursor.value);
+				if (!isWithinBounds(chunkBounds, coords[0], coords[1])) chunksToUnload.add(cursor.value);
+			}
+			project.saveChunks(chunksToUnload.toArray(), true, true);
+			persistChunkBounds();
+		}
+	}
+
+	/**
+	 * Gets the chunks within some chunk boundaries that are outside others.
+	 * @param bounds The boundaries of the chunks.
+	 * @param excluded The boundaries of the chunks to leave out.
+	 * @return The IDs of the chunks.
+	 * @see #chunkBounds
+	 */
+	private static long[] getChunksOutside(int[] bounds, int[] excluded)
+	{
+		int width = bounds[BOUND_RIGHT] - bounds[BOUND_LEFT] + 1;
+		int height = bounds[BOUND_TOP] - bounds[BOUND_BOTTOM] + 1;
+		long[] chunkIds = new long[Math.max(0, width * height)];
+		int chunks = 0;
+		for (int x = bounds[BOUND_LEFT]; x <= bounds[BOUND_RIGHT]; x++)
+		{
+			for (int y = bounds[BOUND_BOTTOM]; y <= bounds[BOUND_TOP]; y++)
+			{
+				if (isWithinBounds(excluded, x, y)) continue;
+				chunkIds[chunks++] = ChunkUtils.pack(x, y);
+			}
+		}
+		return Arrays.copyOf(chunkIds, chunks);
+	}
+
+	/**
+	 * Checks whether a chunk is within some chunk boundaries.
+	 * @param bounds The boundaries of the chunks.
+	 * @param x The X coordinate of the chunk.
+	 * @param y The Y coordinate of the chunk.
+	 * @return True if the chunk is within the boundaries; false otherwise.
+	 * @see #chunkBounds
+	 */
+	private static boolean isWithinBounds(int[] bounds, int x, int y)
+	{
+		return x >= bounds[BOUND_LEFT] && x <= bounds[BOUND_RIGHT] && y >= bounds[BOUND_BOTTOM] && y <= bounds[BOUND_TOP];
+	}
+
 	/**
 	 * Unloads all chunks that were previously visible (if requested) and loads all the chunks that are now visible.
 	 * This should be called after initialising the project, after setting (<b>not</b> panning) the camera position, etc.
@@ -628,9 +827,16 @@ public class NotepadView extends GLSurfaceView
 	 */
 	public void loadAllVisibleChunks(boolean save, boolean async)
 	{
+		// Any batch still waiting from a pinch is covered by the new chunk bounds.
+		if (isPinchLoadScheduled)
+		{
+			removeCallbacks(pinchChunkLoader);
+			isPinchLoadScheduled = false;
+		}
+
 		if (save)
 		{
-			project.saveChunks(project.getLoadedChunkIds(), true);
+			project.unloadAllChunks();
 			loadAllVisibleChunks2(false);
 		}
 		else
@@ -648,9 +854,20 @@ public class NotepadView extends GLSurfaceView
 	{
 		calculateChunkBounds();
 
-		for (int cy = chunkBounds[BOUND_BOTTOM]; cy <= chunkBounds[BOUND_TOP]; cy++)
+		// Rows are loaded outward from the camera, so that the middle of the view is drawn first.
+		int bottom = chunkBounds[BOUND_BOTTOM];
+		int top = chunkBounds[BOUND_TOP];
+		int centerY = Math.max(bottom, Math.min(top, ChunkUtils.convertYCoord((int) cameraY)));
+		for (int d = 0; centerY - d >= bottom || centerY + d <= top; d++)
 		{
-			project.loadChunkRow(cy, chunkBounds[BOUND_LEFT], chunkBounds[BOUND_RIGHT], async);
+			if (centerY + d <= top)
+			{
+				project.loadChunkRow(centerY + d, chunkBounds[BOUND_LEFT], chunkBounds[BOUND_RIGHT], async);
+			}
+			if (d > 0 && centerY - d >= bottom)
+			{
+				project.loadChunkRow(centerY - d, chunkBounds[BOUND_LEFT], chunkBounds[BOUND_RIGHT], async);
+			}
 		}
 
 		persistChunkBounds();
@@ -662,17 +879,22 @@ public class NotepadView extends GLSurfaceView
 	 */
 	private void calculateChunkBounds()
 	{
-		chunkBounds[BOUND_LEFT] = ChunkUtils.convertXCoord((int) (cameraX - (viewportWidth / zoom) / ChunkUtils.LOADING_DISTANCE_FACTOR));
-		chunkBounds[BOUND_RIGHT] = ChunkUtils.convertXCoord((int) (cameraX + (viewportWidth/zoom)/ChunkUtils.LOADING_DISTANCE_FACTOR));
-		chunkBounds[BOUND_BOTTOM] = ChunkUtils.convertYCoord((int) (cameraY - (viewportHeight/zoom)/ChunkUtils.LOADING_DISTANCE_FACTOR));
-		chunkBounds[BOUND_TOP] = ChunkUtils.convertYCoord((int) (cameraY + (viewportHeight/zoom)/ChunkUtils.LOADING_DISTANCE_FACTOR));
+		// Strokes crossing into chunks in range are only loaded with them once the sheet's chunk reach is complete.
+		float factor = project.getCurrentSheet().isChunkReachKnown()
+				? ChunkUtils.LOADING_DISTANCE_FACTOR : ChunkUtils.LEGACY_LOADING_DISTANCE_FACTOR;
+		chunkBounds[BOUND_LEFT] = ChunkUtils.convertXCoord((int) (cameraX - (viewportWidth / zoom) / factor));
+		chunkBounds[BOUND_RIGHT] = ChunkUtils.convertXCoord((int) (cameraX + (viewportWidth/zoom)/factor));
+		chunkBounds[BOUND_BOTTOM] = ChunkUtils.convertYCoord((int) (cameraY - (viewportHeight/zoom)/factor));
+		chunkBounds[BOUND_TOP] = ChunkUtils.convertYCoord((int) (cameraY + (viewportHeight/zoom)/factor));
 	}
 
 	/**
 	 * Copies the current values of <code>chunkBounds</code> into <code>prevChunkBounds</code>.
+	 * The chunks loaded during a pinch are forgotten, since the loaded chunks now match the chunk bounds again.
 	 */
 	private void persistChunkBounds()
 	{
+		chunksLoadedDuringPinch.clear();
 		prevChunkBounds[BOUND_LEFT] = chunkBounds[BOUND_LEFT];
 		prevChunkBounds[BOUND_RIGHT] = chunkBounds[BOUND_RIGHT];
 		prevChunkBounds[BOUND_BOTTOM] = chunkBounds[BOUND_BOTTOM];
@@ -690,6 +912,45 @@ public class NotepadView extends GLSurfaceView
 		latestStroke.triangleStrip.addPoint(this, x, y, true);
 	}
 
+	/**
+	 * Adds a touch sample to the latest stroke if the stroke has moved far enough since its last point.
+	 * @param x The X screen coordinate of the sample.
+	 * @param y The Y screen coordinate of the sample.
+	 * @param prevX The X screen coordinate of the sample before it.
+	 * @param prevY The Y screen coordinate of the sample before it.
+	 * @return True if a point was added; false otherwise.
+	 */
+	private boolean addSampleToStroke(float x, float y, float prevX, float prevY)
+	{
+		// Has the stroke reached the maximum number of points? Stop adding any more points.
+		if (strokePointCount >= Stroke.TriangleStrip.STROKE_POINT_LIMIT) return false;
+
+		strokeSegmentLength += Math.sqrt((x - prevX) * (x - prevX) + (y - prevY) * (y - prevY));
+
+		// Has the path distance exceeded the threshold? Add a new point.
+		if (strokeSegmentLength >= Stroke.SEGMENT_THRESHOLD)
+		{
+			strokeSegmentLength = 0f;
+			strokePointCount++;
+			addPointToStroke(x, y);
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Requests a render when the next frame begins.
+	 * Any further calls before then are ignored, so at most one render is requested per frame.
+	 */
+	private void scheduleRender()
+	{
+		if (!isRenderScheduled)
+		{
+			isRenderScheduled = true;
+			choreographer.postFrameCallback(scheduledRenderCallback);
+		}
+	}
+
 	/**
 	 * Pans the camera.
 	 * @param dx The X distance.
@@ -852,6 +1113,7 @@ public class NotepadView extends GLSurfaceView
 				strokePointCount = 0;
 				latestStroke = new Stroke(this, true);
 				touchAction = TOUCH_NONE;
+				settleChunks();
 				renderer.resetRenderCount();
 				return true;
 			}
@@ -881,6 +1143,9 @@ public class NotepadView extends GLSurfaceView
 								strokePointCount = 0;
 								addPointToStroke(touchX, touchY);
 
+								// Capture the canvas now, so that the first segment only needs to draw the snapshot.
+								scheduleRender();
+
 								return true;
 							}
 							return false;
@@ -889,21 +1154,23 @@ public class NotepadView extends GLSurfaceView
 						{
 							if (touchAction == TOUCH_DRAG)
 							{
-								// Has the stroke reached the maximum number of points? Stop adding any more points.
-								if (strokePointCount >= Stroke.TriangleStrip.STROKE_POINT_LIMIT) return true;
-
-								// Continue drawing a new path.
-								strokeSegmentLength += Math.sqrt((touchX - touchXPrev) * (touchX - touchXPrev)
-										+ (touchY - touchYPrev) * (touchY - touchYPrev));
-
-								// Has the path distance exceeded the threshold? Add a new point.
-								if (strokeSegmentLength >= Stroke.SEGMENT_THRESHOLD)
+								// Continue drawing a new path, starting with the samples batched into this event since the last one.
+								boolean isPointAdded = false;
+								float prevX = touchXPrev;
+								float prevY = touchYPrev;
+								int history = event.getHistorySize();
+								for (int h = 0; h < history; h++)
 								{
-									strokeSegmentLength = 0f;
-									strokePointCount++;
-									addPointToStroke(touchX, touchY);
-									requestRender();
+									float x = event.getHistoricalX(h);
+									float y = event.getHistoricalY(h);
+									isPointAdded |= addSampleToStroke(x, y, prevX, prevY);
+									prevX = x;
+									prevY = y;
 								}
+								isPointAdded |= addSampleToStroke(touchX, touchY, prevX, prevY);
+
+								// Render the new points together with the next frame.
+								if (isPointAdded) scheduleRender();
 								return true;
 							}
 							return false;
@@ -914,16 +1181,17 @@ public class NotepadView extends GLSurfaceView
 							{
 								if (strokePointCount > 2 && latestStroke != null)
 								{
-									latestStroke.optimize(this);
-
-									project.getChunkFromId(latestStroke.chunkId).addStroke(latestStroke);
-									project.addLoadedStroke(latestStroke);
-
-									project.saveChunks(new long[]{latestStroke.getContainingChunk()}, false);
-									project.saveMetadata();
-									project.getCurrentSheet().saveMetadata();
-
-									project.incrementStrokeCount();
+									if (latestStroke.isEraser)
+									{
+										// Erase the strokes under the eraser in the background, rather than keeping the eraser stroke.
+										project.eraseStroke(latestStroke, this);
+									}
+									else
+									{
+										// Finish the stroke in the background. The count is incremented now so the next stroke gets a new ID.
+										project.commitStroke(latestStroke, this);
+										project.incrementStrokeCount();
+									}
 								}
 								latestStroke = new Stroke(this, true);
 								requestRender();
@@ -967,7 +1235,9 @@ public class NotepadView extends GLSurfaceView
 				}
 				catch (IllegalArgumentException e)
 				{
+					boolean wasPinching = touchAction == TOUCH_PINCH;
 					touchAction = TOUCH_NONE;
+					if (wasPinching) settleChunks();
 					renderer.resetRenderCount();
 					latestStroke = new Stroke(this, true);
 
@@ -1009,7 +1279,9 @@ public class NotepadView extends GLSurfaceView
 				}
 				case MotionEvent.ACTION_UP:
 				{
+					boolean wasPinching = touchAction == TOUCH_PINCH;
 					touchAction = TOUCH_NONE;
+					if (wasPinching) settleChunks();
 					renderer.resetRenderCount();
 
 					return true;
@@ -0,0 +1,839 @@
+package ironartichoke.sketchpad;
+
+import android.opengl.GLES20;
+
+import com.carrotsearch.hppc.IntArrayList;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+import ironartichoke.sketchpad.util.ChunkUtils;
+
+/**
+ * The finished strokes of a chunk, stored as parallel primitive arrays rather than one object graph per stroke.
+ * <br\><br\>
+ * The points of all strokes share one coordinate array, with an offsets array marking where each stroke begins.
+ * Points are 16-bit offsets from the center of the chunk in grid steps of 1/{@link StrokeCodec#PRECISION} pixels.
+ * A stroke that reaches too far outside the chunk for 16 bits has its offsets shifted right, losing a little precision.
+ * The ID, color, thickness, eraser flag and bounds of each stroke are kept in arrays of their own.
+ * <br\><br\>
+ * The vertices of all strokes are expanded into one buffer when the chunk is first drawn, and strokes that are added
+ * afterwards are appended to it. Each stroke is drawn as its own range of that buffer. A vertex is a point on the
+ * centerline and the side of the strip it belongs to, and the shader widens the strip to the stroke's thickness,
+ * so the vertices don't depend on the thickness. The coordinates are 16-bit offsets from the center of the chunk
+ * in grid steps, shifted right if a stroke reaches far outside the chunk.
+ * <br\><br\>
+ * When strokes are added, they are also simplified into coarser levels of detail, each one simplified further from the
+ * level before it. Zoomed-out views draw the coarsest level whose error is still under half a pixel on screen, from a
+ * vertex buffer of its own, and skip strokes that would be smaller than a pixel altogether.
+ * <br\><br\>
+ * The bounds of the strokes, widened by their thickness, are kept in a {@link StrokeIndex}, so the strokes that touch
+ * an area of the chunk can be found without checking every stroke.
+ * <br\><br\>
+ * Individual strokes are exposed through lightweight {@link Stroke} views.
+ */
+final class PackedStrokes
+{
+	/** The number of bytes per short. */
+	private static final int BYTES_PER_SHORT = 2;
+	/** The number of shorts in the vertex buffer per point on a stroke, i.e. two vertices. */
+	private static final int SHORTS_PER_POINT = GLProgram.COMPONENTS_PER_VERTEX * 2;
+	/** The number of values in the bounds array per stroke. */
+	private static final int BOUNDS_PER_STROKE = 4;
+
+	/** The simplification tolerance of each level of detail, in pixels. Level 0 holds every point. */
+	private static final float[] LEVEL_TOLERANCES = {0, 1, 2, 5};
+	/** The number of levels of detail. */
+	static final int LEVELS = LEVEL_TOLERANCES.length;
+	/** The largest simplification error that may be visible on screen, in screen pixels. */
+	private static final float MAX_SCREEN_ERROR = 0.5f;
+	/** Strokes whose size on screen is below this, in screen pixels, aren't drawn. */
+	private static final float MIN_PROJECTED_SIZE = 1f;
+
+	/** The ID of the chunk that the strokes belong to. */
+	private final long chunkId;
+	/** The X coordinate, in grid steps, that the coordinates are relative to. This is the center of the chunk. */
+	private final int originX;
+	/** The Y coordinate, in grid steps, that the coordinates are relative to. This is the center of the chunk. */
+	private final int originY;
+
+	/** The number of strokes. */
+	private int size = 0;
+	/** The stroke IDs. */
+	private long[] ids = new long[4];
+	/** The index in {@link #coords} of the first coordinate of each stroke, followed by the total number of coordinates. */
+	private int[] offsets = new int[5];
+	/** The alternating X and Y coordinates of all strokes, relative to the chunk's center. */
+	private short[] coords = new short[64];
+	/** The number of bits that each stroke's coordinates are shifted right by. */
+	private byte[] coordShifts = new byte[4];
+	/** The color byte value of each stroke. */
+	private byte[] colors = new byte[4];
+	/** The thickness byte value of each stroke. */
+	private byte[] thicknesses = new byte[4];
+	/** Whether each stroke was drawn with the eraser tool. */
+	private boolean[] erasers = new boolean[4];
+	/** The left, top, right and bottom bounds of each stroke, in pixels. */
+	private int[] bounds = new int[4 * BOUNDS_PER_STROKE];
+	/** The views of the strokes, created when first requested. */
+	private Stroke[] views = new Stroke[4];
+	/** The spatial index over the bounds of the drawn strokes. */
+	private final StrokeIndex index;
+
+	/** The indices of the points that each level of detail keeps, for all strokes. Level 0 keeps every point and is <code>null</code>. */
+	private final short[][] levelPoints = new short[LEVELS][];
+	/** The index in {@link #levelPoints} of each stroke's first point, followed by the total number of points, per level. */
+	private final int[][] levelOffsets = new int[LEVELS][];
+	/** The vertices of each level of detail, created when the level is first drawn. */
+	private final Vertices[] vertices = new Vertices[LEVELS];
+
+	/**
+	 * Creates an empty set of strokes for the given chunk.
+	 * @param chunkId The chunk ID.
+	 */
+	PackedStrokes(long chunkId)
+	{
+		this.chunkId = chunkId;
+		originX = ChunkUtils.getChunkCenterX(chunkId) * StrokeCodec.PRECISION;
+		originY = ChunkUtils.getChunkCenterY(chunkId) * StrokeCodec.PRECISION;
+		index = new StrokeIndex(chunkId);
+		for (int level = 1; level < LEVELS; level++)
+		{
+			levelPoints[level] = new short[32];
+			levelOffsets[level] = new int[5];
+		}
+	}
+
+	long getChunkId()
+	{
+		return chunkId;
+	}
+
+	/**
+	 * Gets the number of strokes.
+	 * @return The number of strokes.
+	 */
+	int size()
+	{
+		return size;
+	}
+
+	/**
+	 * Adds a finished stroke.
+	 * @param id The stroke ID.
+	 * @param colorByte The color byte value.
+	 * @param thicknessByte The thickness byte value.
+	 * @param isEraser Whether the stroke was drawn with the eraser tool.
+	 * @param coordSteps The alternating X and Y coordinates of the points, in grid steps.
+	 * @param length The number of coordinates.
+	 * @return A view of the added stroke.
+	 */
+	synchronized Stroke add(long id, byte colorByte, byte thicknessByte, boolean isEraser, int[] coordSteps, int length)
+	{
+		append(id, colorByte, thicknessByte, isEraser, coordSteps, length);
+		simplify(size - 1);
+		return getStroke(size - 1);
+	}
+
+	/**
+	 * Appends a stroke without simplifying it into the levels of detail.
+	 * @param id The stroke ID.
+	 * @param colorByte The color byte value.
+	 * @param thicknessByte The thickness byte value.
+	 * @param isEraser Whether the stroke was drawn with the eraser tool.
+	 * @param coordSteps The alternating X and Y coordinates of the points, in grid steps.
+	 * @param length The number of coordinates.
+	 */
+	private void append(long id, byte colorByte, byte thicknessByte, boolean isEraser, int[] coordSteps, int length)
+	{
+		ensureStrokeCapacity(size + 1);
+		int start = offsets[size];
+		ensureCoordCapacity(start + length);
+
+		int minOffset = 0;
+		int maxOffset = 0;
+		int left = Integer.MAX_VALUE;
+		int top = Integer.MAX_VALUE;
+		int right = Integer.MIN_VALUE;
+		int bottom = Integer.MIN_VALUE;
+		for (int c = 0; c < length; c += 2)
+		{
+			int x = coordSteps[c] - originX;
+			int y = coordSteps[c + 1] - originY;
+			minOffset = Math.min(minOffset, Math.min(x, y));
+			maxOffset = Math.max(maxOffset, Math.max(x, y));
+
+			int pixelX = (int) StrokeCodec.dequantize(coordSteps[c]);
+			int pixelY = (int) StrokeCodec.dequantize(coordSteps[c + 1]);
+			left = Math.min(left, pixelX);
+			right = Math.max(right, pixelX);
+			top = Math.min(top, pixelY);
+			bottom = Math.max(bottom, pixelY);
+		}
+
+		// Strokes that reach far outside their chunk lose some precision rather than overflowing.
+		int shift = 0;
+		while ((minOffset >> shift) < Short.MIN_VALUE || (maxOffset >> shift) > Short.MAX_VALUE)
+		{
+			shift++;
+		}
+		for (int c = 0; c < length; c += 2)
+		{
+			coords[start + c] = (short) ((coordSteps[c] - originX) >> shift);
+			coords[start + c + 1] = (short) ((coordSteps[c + 1] - originY) >> shift);
+		}
+
+		ids[size] = id;
+		colors[size] = colorByte;
+		thicknesses[size] = thicknessByte;
+		erasers[size] = isEraser;
+		coordShifts[size] = (byte) shift;
+		bounds[size * BOUNDS_PER_STROKE] = left;
+		bounds[size * BOUNDS_PER_STROKE + 1] = top;
+		bounds[size * BOUNDS_PER_STROKE + 2] = right;
+		bounds[size * BOUNDS_PER_STROKE + 3] = bottom;
+		offsets[size + 1] = start + length;
+		size++;
+
+		int margin = (int) Math.ceil(Stroke.getRealThickness(thicknessByte, isEraser) * 0.5f) + 1;
+		index.add(left - margin, top - margin, right + margin, bottom + margin);
+	}
+
+	/**
+	 * Appends a copy of a stroke from another set of strokes of the same chunk, including its levels of detail.
+	 * @param source The strokes to copy from.
+	 * @param index The index of the stroke in the source.
+	 */
+	private void appendCopy(PackedStrokes source, int index)
+	{
+		int length = source.getNumberOfPoints(index) * 2;
+		int[] coordSteps = new int[length];
+		for (int c = 0; c < length; c++)
+		{
+			coordSteps[c] = source.getCoordSteps(index, c);
+		}
+		append(source.ids[index], source.colors[index], source.thicknesses[index], source.erasers[index], coordSteps, length);
+
+		for (int level = 1; level < LEVELS; level++)
+		{
+			int start = levelOffsets[level][size - 1];
+			int points = source.getNumberOfPoints(level, index);
+			if (levelPoints[level].length < start + points)
+			{
+				levelPoints[level] = Arrays.copyOf(levelPoints[level], Math.max(start + points, levelPoints[level].length * 2));
+			}
+			System.arraycopy(source.levelPoints[level], source.levelOffsets[level][index], levelPoints[level], start, points);
+			levelOffsets[level][size] = start + points;
+		}
+	}
+
+	/**
+	 * Erases the parts of the strokes that an eraser passes over. Eraser strokes drawn by earlier versions are kept.
+	 * The strokes themselves aren't changed, since they may still be drawing; the remaining strokes are returned as a new set.
+	 * The pieces of a split stroke keep its ID, so they keep its place in the drawing order.
+	 * @param eraser The eraser.
+	 * @return The remaining strokes, or <code>null</code> if the eraser didn't touch any stroke.
+	 */
+	synchronized PackedStrokes erase(StrokeEraser eraser)
+	{
+		// Only the strokes near the eraser can be touched.
+		IntArrayList nearby = new IntArrayList();
+		index.query((int) Math.floor(eraser.getLeft()), (int) Math.floor(eraser.getTop()),
+				(int) Math.ceil(eraser.getRight()), (int) Math.ceil(eraser.getBottom()), nearby);
+		if (nearby.isEmpty()) return null;
+
+		PackedStrokes remaining = null;
+		int next = 0;
+		for (int s = 0; s < size; s++)
+		{
+			boolean isNearby = next < nearby.size() && nearby.get(next) == s;
+			if (isNearby) next++;
+			List<int[]> pieces = erasers[s] || !isNearby ? null : eraser.split(this, s);
+			if (pieces == null)
+			{
+				if (remaining != null) remaining.appendCopy(this, s);
+				continue;
+			}
+
+			if (remaining == null)
+			{
+				remaining = new PackedStrokes(chunkId);
+				for (int copied = 0; copied < s; copied++)
+				{
+					remaining.appendCopy(this, copied);
+				}
+			}
+			for (int[] piece : pieces)
+			{
+				remaining.add(ids[s], colors[s], thicknesses[s], false, piece, piece.length);
+			}
+		}
+		return remaining;
+	}
+
+	/**
+	 * Finds the strokes that may touch a rectangle, including their thickness.
+	 * @param left The smallest X coordinate of the rectangle, in pixels.
+	 * @param top The smallest Y coordinate of the rectangle, in pixels.
+	 * @param right The greatest X coordinate of the rectangle, in pixels.
+	 * @param bottom The greatest Y coordinate of the rectangle, in pixels.
+	 * @param result The list that the indices of the strokes are added to, in ascending order.
+	 * @see StrokeIndex
+	 */
+	synchronized void findStrokes(int left, int top, int right, int bottom, IntArrayList result)
+	{
+		index.query(left, top, right, bottom, result);
+	}
+
+	/**
+	 * Finds the other chunks that the strokes reach into, including their thickness.
+	 * @return The IDs of the chunks, in ascending order.
+	 * @see ironartichoke.sketchpad.util.ChunkReach
+	 */
+	synchronized long[] getReachedChunks()
+	{
+		return index.getReachedChunks();
+	}
+
+	/**
+	 * Estimates the memory used by the strokes, including their levels of detail, index and vertex buffers.
+	 * The overhead of the objects themselves isn't counted.
+	 * @return The approximate number of bytes.
+	 */
+	synchronized long getMemoryUsage()
+	{
+		long bytes = ids.length * 8L + offsets.length * 4L + coords.length * 2L + coordShifts.length + colors.length
+				+ thicknesses.length + erasers.length + bounds.length * 4L + views.length * 4L + index.getMemoryUsage();
+		for (int level = 1; level < LEVELS; level++)
+		{
+			bytes += levelPoints[level].length * 2L + levelOffsets[level].length * 4L;
+		}
+		for (Vertices v : vertices)
+		{
+			if (v == null) continue;
+			bytes += v.firstVertices.length * 4L;
+			if (v.buffer != null) bytes += v.buffer.capacity() * (long) BYTES_PER_SHORT;
+		}
+		return bytes;
+	}
+
+	/**
+	 * Copies the strokes, leaving out some of them. Like {@link #erase(StrokeEraser)}, the strokes themselves aren't changed.
+	 * @param isRemoved Whether each stroke should be left out, by index.
+	 * @return The remaining strokes, including their levels of detail.
+	 */
+	synchronized PackedStrokes remove(boolean[] isRemoved)
+	{
+		PackedStrokes remaining = new PackedStrokes(chunkId);
+		for (int s = 0; s < size; s++)
+		{
+			if (!isRemoved[s]) remaining.appendCopy(this, s);
+		}
+		return remaining;
+	}
+
+	/**
+	 * Adds a finished stroke, copying the points of a stroke that has just been drawn.
+	 * @param stroke The stroke.
+	 * @return A view of the added stroke.
+	 */
+	Stroke add(Stroke stroke)
+	{
+		int length = stroke.getNumberOfPoints() * 2;
+		int[] coordSteps = new int[length];
+		for (int c = 0; c < length; c++)
+		{
+			coordSteps[c] = stroke.getCoordSteps(c);
+		}
+		return add(stroke.getId(), stroke.getColorByte(), stroke.getThicknessByte(), stroke.isEraser, coordSteps, length);
+	}
+
+	/**
+	 * Gets a view of the stroke at the given index.
+	 * Don't confuse this with the stroke ID!
+	 * @param index The index.
+	 * @return The stroke at that index.
+	 */
+	synchronized Stroke getStroke(int index)
+	{
+		if (views[index] == null)
+		{
+			views[index] = new Stroke(this, index);
+		}
+		return views[index];
+	}
+
+	long getId(int index)
+	{
+		return ids[index];
+	}
+
+	byte getColorByte(int index)
+	{
+		return colors[index];
+	}
+
+	byte getThicknessByte(int index)
+	{
+		return thicknesses[index];
+	}
+
+	boolean isEraser(int index)
+	{
+		return erasers[index];
+	}
+
+	int getBoundLeft(int index)
+	{
+		return bounds[index * BOUNDS_PER_STROKE];
+	}
+
+	int getBoundTop(int index)
+	{
+		return bounds[index * BOUNDS_PER_STROKE + 1];
+	}
+
+	int getBoundRight(int index)
+	{
+		return bounds[index * BOUNDS_PER_STROKE + 2];
+	}
+
+	int getBoundBottom(int index)
+	{
+		return bounds[index * BOUNDS_PER_STROKE + 3];
+	}
+
+	/**
+	 * Gets the number of points on a stroke.
+	 * @param index The index of the stroke.
+	 * @return The number of points.
+	 */
+	int getNumberOfPoints(int index)
+	{
+		return (offsets[index + 1] - offsets[index]) / 2;
+	}
+
+	/**
+	 * Gets a coordinate of a stroke in grid steps.
+	 * @param index The index of the stroke.
+	 * @param coordIndex The index of the coordinate within the stroke, where X and Y coordinates alternate.
+	 * @return The coordinate in steps of 1/{@link StrokeCodec#PRECISION} pixels.
+	 */
+	int getCoordSteps(int index, int coordIndex)
+	{
+		return (coordIndex % 2 == 0 ? originX : originY) + (coords[offsets[index] + coordIndex] << coordShifts[index]);
+	}
+
+	/**
+	 * Gets the X coordinate of a point on a stroke.
+	 * @param index The index of the stroke.
+	 * @param point The index of the point.
+	 * @return The X coordinate in pixels.
+	 */
+	float getCoordX(int index, int point)
+	{
+		return StrokeCodec.dequantize(getCoordSteps(index, point * 2));
+	}
+
+	/**
+	 * Gets the Y coordinate of a point on a stroke.
+	 * @param index The index of the stroke.
+	 * @param point The index of the point.
+	 * @return The Y coordinate in pixels.
+	 */
+	float getCoordY(int index, int point)
+	{
+		return StrokeCodec.dequantize(getCoordSteps(index, point * 2 + 1));
+	}
+
+	/**
+	 * Renders a stroke at the level of detail that suits the zoom.
+	 * @param index The index of the stroke.
+	 * @param mvpMatrix The model-view-projection matrix.
+	 * @param zoom The camera zoom.
+	 */
+	void draw(int index, float[] mvpMatrix, float zoom)
+	{
+		float halfWidth = Stroke.getRealThickness(thicknesses[index], erasers[index]) * 0.5f;
+		int width = getBoundRight(index) - getBoundLeft(index);
+		int height = getBoundBottom(index) - getBoundTop(index);
+		if ((Math.max(width, height) + halfWidth * 2) * zoom < MIN_PROJECTED_SIZE) return;
+
+		int level = getDetailLevel(zoom);
+		Vertices levelVertices = expandVertices(level);
+		int vertexCount = getNumberOfPoints(level, index) * 2;
+		if (vertexCount < 4) return;
+
+		levelVertices.buffer.position(0);
+		GLProgram.drawStrip(levelVertices.buffer, GLES20.GL_SHORT, levelVertices.firstVertices[index], vertexCount,
+				StrokeCodec.dequantize(originX), StrokeCodec.dequantize(originY),
+				(float) (1 << levelVertices.shift) / StrokeCodec.PRECISION, halfWidth,
+				Stroke.getColorIndex(colors[index], erasers[index]), mvpMatrix);
+	}
+
+	/**
+	 * Gets the coarsest level of detail whose simplification error is not visible at the given zoom.
+	 * @param zoom The camera zoom.
+	 * @return The level of detail.
+	 */
+	static int getDetailLevel(float zoom)
+	{
+		for (int level = LEVELS - 1; level > 0; level--)
+		{
+			if (LEVEL_TOLERANCES[level] * zoom <= MAX_SCREEN_ERROR)
+			{
+				return level;
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Gets the number of points that a level of detail keeps of a stroke.
+	 * @param level The level of detail.
+	 * @param index The index of the stroke.
+	 * @return The number of points.
+	 */
+	int getNumberOfPoints(int level, int index)
+	{
+		if (level == 0) return getNumberOfPoints(index);
+		return levelOffsets[level][index + 1] - levelOffsets[level][index];
+	}
+
+	/**
+	 * Gets the index of a point that a level of detail keeps of a stroke.
+	 * @param level The level of detail.
+	 * @param index The index of the stroke.
+	 * @param point The index of the point within the level.
+	 * @return The index of the point within the stroke.
+	 */
+	private int getPoint(int level, int index, int point)
+	{
+		if (level == 0) return point;
+		return levelPoints[level][levelOffsets[level][index] + point];
+	}
+
+	/**
+	 * Simplifies a stroke into each level of detail, starting from the points kept by the level before.
+	 * The stroke must be the last one added.
+	 * @param index The index of the stroke.
+	 */
+	private void simplify(int index)
+	{
+		int[] input = new int[getNumberOfPoints(index)];
+		for (int p = 0; p < input.length; p++)
+		{
+			input[p] = p;
+		}
+		int inputLength = input.length;
+		int[] output = new int[input.length];
+
+		for (int level = 1; level < LEVELS; level++)
+		{
+			int outputLength = simplify(index, input, inputLength, LEVEL_TOLERANCES[level] * StrokeCodec.PRECISION, output);
+
+			int start = levelOffsets[level][index];
+			if (levelPoints[level].length < start + outputLength)
+			{
+				levelPoints[level] = Arrays.copyOf(levelPoints[level], Math.max(start + outputLength, levelPoints[level].length * 2));
+			}
+			for (int p = 0; p < outputLength; p++)
+			{
+				levelPoints[level][start + p] = (short) output[p];
+			}
+			levelOffsets[level][index + 1] = start + outputLength;
+
+			int[] swap = input;
+			input = output;
+			output = swap;
+			inputLength = outputLength;
+		}
+	}
+
+	/**
+	 * Simplifies a polyline with the Douglas-Peucker algorithm.
+	 * @param index The index of the stroke.
+	 * @param input The indices of the points on the polyline.
+	 * @param inputLength The number of points on the polyline.
+	 * @param tolerance The largest distance, in grid steps, that a removed point may be from the simplified polyline.
+	 * @param output The array to write the indices of the kept points into.
+	 * @return The number of kept points.
+	 */
+	private int simplify(int index, int[] input, int inputLength, float tolerance, int[] output)
+	{
+		if (inputLength <= 2)
+		{
+			System.arraycopy(input, 0, output, 0, inputLength);
+			return inputLength;
+		}
+
+		boolean[] keep = new boolean[inputLength];
+		keep[0] = true;
+		keep[inputLength - 1] = true;
+		int[] stack = new int[inputLength * 2];
+		int stackSize = 0;
+		stack[stackSize++] = 0;
+		stack[stackSize++] = inputLength - 1;
+		double toleranceSquared = (double) tolerance * tolerance;
+		while (stackSize > 0)
+		{
+			int last = stack[--stackSize];
+			int first = stack[--stackSize];
+			double startX = getCoordSteps(index, input[first] * 2);
+			double startY = getCoordSteps(index, input[first] * 2 + 1);
+			double segmentX = getCoordSteps(index, input[last] * 2) - startX;
+			double segmentY = getCoordSteps(index, input[last] * 2 + 1) - startY;
+			double segmentLengthSquared = segmentX * segmentX + segmentY * segmentY;
+
+			// Find the point furthest from the segment between the first and last points.
+			double maxDistanceSquared = -1;
+			int furthest = -1;
+			for (int p = first + 1; p < last; p++)
+			{
+				double x = getCoordSteps(index, input[p] * 2) - startX;
+				double y = getCoordSteps(index, input[p] * 2 + 1) - startY;
+				double t = segmentLengthSquared > 0 ? Math.max(0, Math.min(1, (x * segmentX + y * segmentY) / segmentLengthSquared)) : 0;
+				double dx = x - t * segmentX;
+				double dy = y - t * segmentY;
+				double distanceSquared = dx * dx + dy * dy;
+				if (distanceSquared > maxDistanceSquared)
+				{
+					maxDistanceSquared = distanceSquared;
+					furthest = p;
+				}
+			}
+
+			if (maxDistanceSquared > toleranceSquared)
+			{
+				keep[furthest] = true;
+				stack[stackSize++] = first;
+				stack[stackSize++] = furthest;
+				stack[stackSize++] = furthest;
+				stack[stackSize++] = last;
+			}
+		}
+
+		int outputLength = 0;
+		for (int p = 0; p < inputLength; p++)
+		{
+			if (keep[p])
+			{
+				output[outputLength++] = input[p];
+			}
+		}
+		return outputLength;
+	}
+
+	/**
+	 * Copies the points of any strokes that haven't been expanded yet at a level of detail into its vertex buffer.
+	 * @param level The level of detail.
+	 * @return The vertices of the level.
+	 */
+	private synchronized Vertices expandVertices(int level)
+	{
+		Vertices v = vertices[level];
+		if (v == null)
+		{
+			v = vertices[level] = new Vertices();
+		}
+		if (v.expandedStrokes == size && v.buffer != null) return v;
+
+		// Do the new strokes reach too far for the current shift? If so, expand all strokes again with a larger one.
+		int shift = v.shift;
+		for (int s = v.expandedStrokes; s < size; s++)
+		{
+			shift = Math.max(shift, getVertexShift(s));
+		}
+		if (shift != v.shift)
+		{
+			v.shift = shift;
+			v.expandedStrokes = 0;
+			v.size = 0;
+		}
+
+		// Every stroke also has a phantom point.
+		int points = size - v.expandedStrokes;
+		for (int s = v.expandedStrokes; s < size; s++)
+		{
+			points += getNumberOfPoints(level, s);
+		}
+		int shortsNeeded = v.size + points * SHORTS_PER_POINT;
+		if (v.buffer == null || v.buffer.capacity() < shortsNeeded)
+		{
+			int capacity = v.buffer == null ? shortsNeeded : Math.max(shortsNeeded, v.buffer.capacity() * 2);
+			ByteBuffer bb = ByteBuffer.allocateDirect(capacity * BYTES_PER_SHORT);
+			bb.order(ByteOrder.nativeOrder());
+			ShortBuffer newBuffer = bb.asShortBuffer();
+			if (v.buffer != null)
+			{
+				v.buffer.position(0);
+				v.buffer.limit(v.size);
+				newBuffer.put(v.buffer);
+			}
+			v.buffer = newBuffer;
+		}
+		if (v.firstVertices.length < size)
+		{
+			v.firstVertices = Arrays.copyOf(v.firstVertices, ids.length);
+		}
+
+		v.buffer.limit(v.buffer.capacity());
+		v.buffer.position(v.size);
+		for (; v.expandedStrokes < size; v.expandedStrokes++)
+		{
+			v.firstVertices[v.expandedStrokes] = v.size / GLProgram.COMPONENTS_PER_VERTEX;
+			expandStroke(v, level, v.expandedStrokes);
+			v.size = v.buffer.position();
+		}
+		return v;
+	}
+
+	/**
+	 * Gets the smallest shift that lets the vertices of a stroke fit into 16 bits.
+	 * @param index The index of the stroke.
+	 * @return The number of bits to shift the grid step offsets of the vertices right by.
+	 */
+	private int getVertexShift(int index)
+	{
+		int centerX = originX / StrokeCodec.PRECISION;
+		int centerY = originY / StrokeCodec.PRECISION;
+		int reach = Math.max(
+				Math.max(Math.abs(getBoundLeft(index) - centerX), Math.abs(getBoundRight(index) - centerX)),
+				Math.max(Math.abs(getBoundTop(index) - centerY), Math.abs(getBoundBottom(index) - centerY)));
+		// The bounds are truncated to whole pixels, so allow for one more.
+		long maxOffset = (long) (reach + 1) * StrokeCodec.PRECISION;
+
+		int shift = 0;
+		while ((maxOffset >> shift) > Short.MAX_VALUE)
+		{
+			shift++;
+		}
+		return shift;
+	}
+
+	/**
+	 * Writes the vertices of a stroke's triangle strip at a level of detail to the end of a vertex buffer.
+	 * Each point is written twice, once for either side of the strip, after a phantom point that mirrors the second
+	 * point around the first. The phantom point gives the first point the same direction as the first segment.
+	 * @param v The vertices to write to.
+	 * @param level The level of detail.
+	 * @param index The index of the stroke.
+	 */
+	private void expandStroke(Vertices v, int level, int index)
+	{
+		int points = getNumberOfPoints(level, index);
+		if (points == 0)
+		{
+			putVertices(v, 0, 0);
+			return;
+		}
+
+		int first = getPoint(level, index, 0);
+		int firstX = getVertexCoord(v, index, first * 2);
+		int firstY = getVertexCoord(v, index, first * 2 + 1);
+		if (points > 1)
+		{
+			int second = getPoint(level, index, 1);
+			putVertices(v, firstX * 2 - getVertexCoord(v, index, second * 2), firstY * 2 - getVertexCoord(v, index, second * 2 + 1));
+		}
+		else
+		{
+			putVertices(v, firstX, firstY);
+		}
+		for (int p = 0; p < points; p++)
+		{
+			int point = getPoint(level, index, p);
+			putVertices(v, getVertexCoord(v, index, point * 2), getVertexCoord(v, index, point * 2 + 1));
+		}
+	}
+
+	/**
+	 * Gets a coordinate of a stroke as it is stored in a vertex buffer.
+	 * @param v The vertices.
+	 * @param index The index of the stroke.
+	 * @param coordIndex The index of the coordinate within the stroke, where X and Y coordinates alternate.
+	 * @return The offset from the center of the chunk, in grid steps shifted right by the vertices' shift.
+	 */
+	private int getVertexCoord(Vertices v, int index, int coordIndex)
+	{
+		return (getCoordSteps(index, coordIndex) - (coordIndex % 2 == 0 ? originX : originY)) >> v.shift;
+	}
+
+	/**
+	 * Writes both vertices of a point to the end of a vertex buffer.
+	 * @param v The vertices to write to.
+	 * @param x The X offset from the center of the chunk, in shifted grid steps.
+	 * @param y The Y offset from the center of the chunk, in shifted grid steps.
+	 */
+	private static void putVertices(Vertices v, int x, int y)
+	{
+		short shortX = toShort(x);
+		short shortY = toShort(y);
+		v.buffer.put(shortX).put(shortY).put((short) 1);
+		v.buffer.put(shortX).put(shortY).put((short) -1);
+	}
+
+	/**
+	 * Clamps a vertex coordinate to the range of a short.
+	 * Only the phantom point of a stroke can exceed the range.
+	 * @param value The value.
+	 * @return The short value.
+	 */
+	private static short toShort(int value)
+	{
+		return (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, value));
+	}
+
+	/**
+	 * Grows the per-stroke arrays so that they can hold at least the given number of strokes.
+	 * @param capacity The number of strokes.
+	 */
+	private void ensureStrokeCapacity(int capacity)
+	{
+		if (capacity <= ids.length) return;
+
+		int newCapacity = Math.max(capacity, ids.length * 2);
+		ids = Arrays.copyOf(ids, newCapacity);
+		offsets = Arrays.copyOf(offsets, newCapacity + 1);
+		coordShifts = Arrays.copyOf(coordShifts, newCapacity);
+		colors = Arrays.copyOf(colors, newCapacity);
+		thicknesses = Arrays.copyOf(thicknesses, newCapacity);
+		erasers = Arrays.copyOf(erasers, newCapacity);
+		bounds = Arrays.copyOf(bounds, newCapacity * BOUNDS_PER_STROKE);
+		views = Arrays.copyOf(views, newCapacity);
+		for (int level = 1; level < LEVELS; level++)
+		{
+			levelOffsets[level] = Arrays.copyOf(levelOffsets[level], newCapacity + 1);
+		}
+	}
+
+	/**
+	 * Grows the coordinate array so that it can hold at least the given number of coordinates.
+	 * @param capacity The number of coordinates.
+	 */
+	private void ensureCoordCapacity(int capacity)
+	{
+		if (capacity <= coords.length) return;
+		coords = Arrays.copyOf(coords, Math.max(capacity, coords.length * 2));
+	}
+
+	/**
+	 * The vertex buffer of one level of detail.
+	 */
+	private static final class Vertices
+	{
+		/** The vertices of all strokes that have been expanded so far. */
+		ShortBuffer buffer;
+		/** The number of bits that the grid step offsets in {@link #buffer} are shifted right by. */
+		int shift = 0;
+		/** The number of strokes whose vertices are in {@link #buffer}. */
+		int expandedStrokes = 0;
+		/** The number of shorts in use in {@link #buffer}. */
+		int size = 0;
+		/** The index of the first vertex of each expanded stroke's phantom point in {@link #buffer}. */
+		int[] firstVertices = new int[4];
+	}
+}
@@ -3,17 +3,19 @@ package ironartichoke.sketchpad;
 import android.content.Context;
 import android.content.res.Resources;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
-import android.graphics.drawable.BitmapDrawable;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.support.v4.util.LongSparseArray;
 import android.util.Log;
 
+import com.carrotsearch.hppc.IntArrayList;
+import com.carrotsearch.hppc.LongArrayList;
+import com.carrotsearch.hppc.LongOpenHashSet;
+
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.filefilter.TrueFileFilter;
 
-import java.io.BufferedInputStream;
+import java.io.DataOutput;
 import java.io.Externalizable;
 import java.io.File;
 import java.io.FileInputStream;
@@ -22,14 +24,16 @@ import java.io.IOException;
 import java.io.ObjectInput;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutput;
-import java.io.ObjectOutputStream;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import ironartichoke.sketchpad.externalizable.ExternalizableArrayList;
+import ironartichoke.sketchpad.util.ChunkOccupancy;
+import ironartichoke.sketchpad.util.ChunkReach;
 import ironartichoke.sketchpad.util.ChunkUtils;
 import ironartichoke.sketchpad.util.io.IOUtils;
+import ironartichoke.sketchpad.util.io.WarmStartCache;
 
 /**
  * A class that represents a sketchbook.
@@ -40,20 +44,23 @@ import ironartichoke.sketchpad.util.io.IOUtils;
  *
  * <pre>
  *     Working directory
- *        Sketchbook metadata file
+ *        Sketchbook index file
  *        Sheet folders ...
- *           Sheet metadata file
  *           Sheet thumbnail file
  *           Chunk files ...
  * </pre>
  *
+ * The {@link ProjectIndex index} holds the details of the sketchbook and all of its sheets.
+ * Sketchbooks saved by earlier versions have a metadata file in place of the index, and one in each
+ * sheet folder. These are read if there is no index, and are deleted the next time the sketchbook is saved.
+ *
  * When the user saves the sketchbook, the contents of the working directory are
  * stored in a gzipped tarball (TAR.GZ) in the app directory and an accompanying
  * thumbnail is stored alongside it.
  * <br\><br\>
- * When the app is closed, the working directory is deleted to save space. However, in the
- * event of a crash, the directory is left behind and can be used to recover any
- * unsaved work upon the next launch.
+ * When the app is closed, the working directory is deleted to save space, unless it can be
+ * retained for a faster launch next time (see {@link WarmStartCache}). In the event of a crash,
+ * the directory is left behind and can be used to recover any unsaved work upon the next launch.
  */
 public class Project
 {
@@ -74,11 +81,41 @@ public class Project
 
 	private int currentSheet = 0;
 	private LongSparseArray<Project.Sheet.Chunk> loadedChunks = new LongSparseArray<>();
-	private ArrayList<Stroke> loadedStrokes = new ArrayList<>();
+	/** The IDs of the chunks within loading range of the camera, whether or not they contain strokes.
+	 * A loaded chunk is kept while it, or any chunk that its strokes reach into, is in range. Guarded by itself,
+	 * which also guards replacing the loaded chunks and adding or removing chunks in the background.
+	 * @see #isChunkNeeded(Project.Sheet, long) */
+	private final LongOpenHashSet chunksInRange = new LongOpenHashSet();
+	/** Incremented whenever the loaded chunks are replaced, such as when switching sheets. Guarded by {@link #chunksInRange}.
+	 * Chunks loaded or saved in the background for an older generation are dropped instead of reaching the new loaded chunks.
+	 * @see #getLoadedChunksGeneration() */
+	private int loadedChunksGeneration = 0;
 	private long strokeCount = 0;
 
+	/** Incremented whenever a stroke is added to or removed from the loaded chunks, or a chunk is loaded or unloaded. */
+	private final AtomicInteger loadedStrokesVersion = new AtomicInteger();
+
+	/** Finishes and saves strokes in the background once they have been drawn. */
+	private final StrokeCommitter strokeCommitter = new StrokeCommitter(this);
+	/** Compacts the sheets that aren't current in the background. */
+	private final SheetCompactor sheetCompactor = new SheetCompactor(this);
+
+	/** Keeps the loaded chunks of the sheets viewed before the current one. */
+	private final SheetCache sheetCache = new SheetCache();
+
+	/** Merges the strokes found in each chunk by {@link #findLoadedStrokes(int, int, int, int, List)}. */
+	private final StrokeMerger foundStrokeMerger = new StrokeMerger();
+
+	/** The cache of rendered tiles that must be told when loaded strokes change. May be <code>null</code>. */
+	private TileCache tileCache;
+	/** Run on the UI thread whenever chunks have been loaded in the background. May be <code>null</code>. */
+	private Runnable onChunksLoadedListener;
+
 	private boolean unsavedChanges = false;
 
+	/** The index file holding the details of the sketchbook and its sheets. */
+	private final ProjectIndex projectIndex = new ProjectIndex(this);
+
 	/**
 	 * The empty constructor.
 	 * Note that the object is <b>not</b> usable by merely instantiating it with this constructor.
@@ -110,6 +147,7 @@ public class Project
 	 */
 	private void reset()
 	{
+		sheetCompactor.cancelAll();
 		setName(DEFAULT_NAME);
 		setFiles();
 		sheets = new ArrayList<>();
@@ -117,11 +155,14 @@ public class Project
 		sheetOrder = null;
 
 		currentSheet = 0;
-		loadedChunks = new LongSparseArray<>();
-		loadedStrokes = new ArrayList<>();
+		sheetCache.clear();
+		replaceLoadedChunks(new LongSparseArray<Project.Sheet.Chunk>());
 		strokeCount = 0;
+		loadedStrokesVersion.incrementAndGet();
+		if (tileCache != null) tileCache.invalidateAll();
 
 		unsavedChanges = false;
+		projectIndex.cancelPendingSave();
 	}
 
 	/**
@@ -141,6 +182,7 @@ public class Project
 
 		sheets.add(new Sheet(Sheet.getDefaultName(res)));
 		sheets.trimToSize();
+		requestMetadataSave();
 	}
 
 	/**
@@ -177,9 +219,9 @@ public class Project
 	}
 
 	/**
-	 * Sets the sketchbook's metadata file.
+	 * Sets the sketchbook's legacy metadata file.
 	 * This contains general data about the sketchbook such as the sketchbook name, number of sheets,
-	 * the order of the sheets, the stroke count, etc.
+	 * the order of the sheets, the stroke count, etc. It has been superseded by the {@link ProjectIndex index}.
 	 */
 	private void setMetadataFile()
 	{
@@ -268,18 +310,33 @@ public class Project
 	}
 
 	/**
-	 * Saves the current sheet and loads another one.
+	 * Switches to another sheet and moves the camera to it.
+	 * The loaded chunks of the sheet that is left are kept in the {@link SheetCache}, and if the next sheet is still
+	 * cached, its chunks are shown straight away. Any other chunks in view are loaded in the background.
 	 * @param index The index of the sheet to load (NOT the sheet ID).
 	 */
 	public void setCurrentSheet(final NotepadView notepadView, final int index)
 	{
-		saveAllLoadedChunks(true, false);
-		getCurrentSheet().saveMetadata();
-		loadedChunks.clear();
-		loadedStrokes.clear();
-		currentSheet = index;
-		notepadView.loadAllVisibleChunks(false, false);
-		getCurrentSheet().loadMetadata();
+		// Every chunk is saved as soon as a stroke is committed to it, so once the committer is idle,
+		// the loaded chunks can be kept as they are.
+		strokeCommitter.awaitIdle();
+		Sheet previousSheet = getCurrentSheet();
+		Sheet nextSheet = getSheetAt(index);
+		if (previousSheet != nextSheet)
+		{
+			sheetCompactor.cancel(nextSheet);
+			LongSparseArray<Project.Sheet.Chunk> cachedChunks = sheetCache.take(nextSheet);
+			sheetCache.put(previousSheet, replaceLoadedChunks(
+					cachedChunks != null ? cachedChunks : new LongSparseArray<Project.Sheet.Chunk>()));
+			loadedStrokesVersion.incrementAndGet();
+			if (tileCache != null) tileCache.invalidateAll();
+			currentSheet = index;
+		}
+		notepadView.setCameraFromCurrentSheet();
+		requestMetadataSave();
+
+		// The sheet that was left has been saved, so it can be compacted.
+		if (previousSheet != nextSheet) sheetCompactor.schedule(previousSheet);
 	}
 
 	/**
@@ -310,6 +367,7 @@ public class Project
 		Sheet newSheet = new Sheet(name);
 		sheets.add(newSheet);
 		setUnsavedChanges(true);
+		requestMetadataSave();
 	}
 
 	/**
@@ -330,6 +388,7 @@ public class Project
 	{
 		getSheetAt(index).setName(name);
 		setUnsavedChanges(true);
+		requestMetadataSave();
 	}
 
 	/**
@@ -339,13 +398,29 @@ public class Project
 	 */
 	public void deleteSheet(int index)
 	{
-		getSheetAt(index).getFile().delete();
+		Sheet sheet = getSheetAt(index);
+		sheetCompactor.cancel(sheet);
+		sheetCache.drop(sheet);
+		if (index == currentSheet)
+		{
+			// The loaded chunks belong to the deleted sheet, so they are dropped rather than kept for it.
+			strokeCommitter.awaitIdle();
+			replaceLoadedChunks(new LongSparseArray<Project.Sheet.Chunk>());
+			loadedStrokesVersion.incrementAndGet();
+			if (tileCache != null) tileCache.invalidateAll();
+		}
+		sheet.getFile().delete();
 		sheets.remove(index);
-		if (currentSheet >= sheets.size())
+		if (index < currentSheet)
+		{
+			currentSheet--;
+		}
+		else if (currentSheet >= sheets.size())
 		{
 			currentSheet = sheets.size() - 1;
 		}
 		setUnsavedChanges(true);
+		requestMetadataSave();
 	}
 
 	/**
@@ -367,6 +442,7 @@ public class Project
 		Sheet firstSheet = sheets.set(index1, getSheetAt(index2));
 		sheets.set(index2, firstSheet);
 		setUnsavedChanges(true);
+		requestMetadataSave();
 	}
 
 	/**
@@ -410,16 +486,53 @@ public class Project
 	}
 
 	/**
-	 * Gets the array of currently loaded strokes.
-	 * @return The array of loaded strokes.
+	 * Gets the strokes of every loaded chunk, in drawing order.
+	 * The list is built on every call, so this shouldn't be used for rendering; see
+	 * {@link #findLoadedStrokes(int, int, int, int, List)} instead.
+	 * @return A new list of the loaded strokes.
 	 */
 	public ArrayList<Stroke> getLoadedStrokes()
 	{
-		return loadedStrokes;
+		ArrayList<Stroke> result = new ArrayList<>();
+		StrokeMerger merger = new StrokeMerger();
+		int chunks = loadedChunks.size();
+		for (int c = 0; c < chunks; c++)
+		{
+			Project.Sheet.Chunk chunk;
+			try
+			{
+				chunk = getChunk(c);
+			}
+			catch (ArrayIndexOutOfBoundsException e)
+			{
+				break;
+			}
+			if (chunk == null) continue;
+
+			PackedStrokes strokes = chunk.getStrokes();
+			IntArrayList run = merger.beginRun(strokes);
+			int size = strokes.size();
+			for (int s = 0; s < size; s++)
+			{
+				run.add(s);
+			}
+		}
+		merger.merge(result);
+		return result;
+	}
+
+	/**
+	 * Gets the version of the loaded strokes, which changes whenever a stroke is added to or removed from them.
+	 * @return The version.
+	 */
+	public int getLoadedStrokesVersion()
+	{
+		return loadedStrokesVersion.get();
 	}
 
 	/**
-	 * Gets the loaded stroke at the given index. Not to be confused with the stroke ID or chunk ID!
+	 * Gets the loaded stroke at the given index in drawing order. Not to be confused with the stroke ID or chunk ID!
+	 * Like {@link #getLoadedStrokes()}, this gathers every loaded stroke.
 	 * @param index The index.
 	 * @return The stroke at that index.
 	 */
@@ -427,7 +540,7 @@ public class Project
 	{
 		try
 		{
-			return loadedStrokes.get(index);
+			return getLoadedStrokes().get(index);
 		}
 		catch (IndexOutOfBoundsException e)
 		{
@@ -435,6 +548,40 @@ public class Project
 		}
 	}
 
+	/**
+	 * Finds the loaded strokes that may touch a rectangle, from the spatial index of each loaded chunk.
+	 * Must only be called from the OpenGL thread. Chunks that are loaded or unloaded in the meantime may be missed.
+	 * @param left The smallest X coordinate of the rectangle, in pixels.
+	 * @param top The smallest Y coordinate of the rectangle, in pixels.
+	 * @param right The greatest X coordinate of the rectangle, in pixels.
+	 * @param bottom The greatest Y coordinate of the rectangle, in pixels.
+	 * @param result The list to fill with the strokes, in stroke ID order. It is cleared first.
+	 * @see StrokeIndex
+	 */
+	public void findLoadedStrokes(int left, int top, int right, int bottom, List<Stroke> result)
+	{
+		result.clear();
+		int chunks = loadedChunks.size();
+		for (int c = 0; c < chunks; c++)
+		{
+			Project.Sheet.Chunk chunk;
+			try
+			{
+				chunk = getChunk(c);
+			}
+			catch (ArrayIndexOutOfBoundsException e)
+			{
+				break;
+			}
+			if (chunk == null) continue;
+
+			PackedStrokes strokes = chunk.getStrokes();
+			strokes.findStrokes(left, top, right, bottom, foundStrokeMerger.beginRun(strokes));
+		}
+		// Each chunk's strokes are found in order, so their runs only have to be merged.
+		foundStrokeMerger.merge(result);
+	}
+
 	/**
 	 * Returns the IDs of the currently loaded chunks in a list.
 	 * @return A list of loaded chunk IDs.
@@ -482,37 +629,79 @@ public class Project
 	}
 
 	/**
-	 * Adds a chunk to the array of loaded chunks.
+	 * Replaces the loaded chunks, so that none of them is considered in range any more.
+	 * Any chunks still being loaded or saved in the background for the previous loaded chunks are dropped.
+	 * @param chunks The new loaded chunks.
+	 * @return The previous loaded chunks.
+	 */
+	private LongSparseArray<Project.Sheet.Chunk> replaceLoadedChunks(LongSparseArray<Project.Sheet.Chunk> chunks)
+	{
+		synchronized (chunksInRange)
+		{
+			LongSparseArray<Project.Sheet.Chunk> previousChunks = loadedChunks;
+			chunksInRange.clear();
+			loadedChunks = chunks;
+			loadedChunksGeneration++;
+			return previousChunks;
+		}
+	}
+
+	/**
+	 * Gets the generation of the loaded chunks, which changes whenever they are replaced, such as when switching sheets.
+	 * A background task captures this along with the current sheet when it is created,
+	 * so that it only loads or unloads chunks if the loaded chunks are still the ones it was created for.
+	 * @return The generation.
+	 * @see LoadChunkTask
+	 * @see SaveChunkTask
+	 */
+	int getLoadedChunksGeneration()
+	{
+		synchronized (chunksInRange)
+		{
+			return loadedChunksGeneration;
+		}
+	}
+
+	/**
+	 * Adds a chunk to the array of loaded chunks. The chunk keeps its own strokes, so nothing else has to be updated.
 	 * @param chunk The chunk to add.
 	 * @see LoadChunkTask
 	 */
 	private void addChunk(Project.Sheet.Chunk chunk)
 	{
 		loadedChunks.put(chunk.getId(), chunk);
-		int strokes = chunk.getTotalStrokes();
-		for (int s = 0; s < strokes; s++)
-		{
-			addLoadedStroke(chunk.getStroke(s));
-		}
+		onLoadedChunkChanged(chunk);
 	}
 
 	/**
-	 * Removes a chunk from the array of loaded chunks.
+	 * Removes a chunk from the array of loaded chunks, along with its strokes.
 	 * @param chunkId The ID of the chunk to remove.
 	 * @see SaveChunkTask
 	 */
 	private void removeChunk(long chunkId)
 	{
+		Project.Sheet.Chunk chunk = loadedChunks.get(chunkId);
+		if (chunk == null) return;
+
 		loadedChunks.remove(chunkId);
-		removeLoadedStrokesWithChunkId(chunkId);
+		onLoadedChunkChanged(chunk);
 	}
 
 	/**
-	 * Sorts the loaded strokes in back-to-front drawing order.
+	 * Records that the strokes of a whole chunk have been loaded or unloaded,
+	 * marking the tiles of the chunk and of the chunks that its strokes reach into as out of date.
+	 * @param chunk The chunk.
 	 */
-	private void sortStrokes()
+	private void onLoadedChunkChanged(Project.Sheet.Chunk chunk)
 	{
-		Collections.sort(loadedStrokes);
+		loadedStrokesVersion.incrementAndGet();
+		if (tileCache == null || chunk.isChunkEmpty()) return;
+
+		tileCache.invalidateChunk(chunk.getId());
+		for (long chunkId : chunk.getStrokes().getReachedChunks())
+		{
+			tileCache.invalidateChunk(chunkId);
+		}
 	}
 
 	/**
@@ -569,6 +758,47 @@ public class Project
 		}
 	}
 
+	/**
+	 * Loads the specified chunks in one batch.
+	 * @param chunkIds The IDs of the chunks to load.
+	 * @param async Whether the task should be performed asynchronously.
+	 */
+	public void loadChunks(long[] chunkIds, boolean async)
+	{
+		if (chunkIds.length == 0) return;
+
+		if (async)
+		{
+			LoadChunkTask lct = new LoadChunkTask(this, chunkIds);
+			lct.execute();
+		}
+		else
+		{
+			loadChunks(chunkIds);
+		}
+	}
+
+	/**
+	 * Saves, and optionally unloads, the specified chunks in one batch.
+	 * @param chunkIds The IDs of the chunks to save.
+	 * @param unload Whether the chunks should be unloaded after saving.
+	 * @param async Whether the task should be performed asynchronously.
+	 */
+	public void saveChunks(long[] chunkIds, boolean unload, boolean async)
+	{
+		if (chunkIds.length == 0) return;
+
+		if (async)
+		{
+			SaveChunkTask sct = new SaveChunkTask(this, chunkIds, unload);
+			sct.execute();
+		}
+		else
+		{
+			saveChunks(chunkIds, unload);
+		}
+	}
+
 	/**
 	 * Saves, and optionally unloads, the chunks on a given column between inclusive vertical bounds.
 	 * @param x The column.
@@ -633,6 +863,17 @@ public class Project
 	 */
 	private void saveAllLoadedChunks(boolean unload, boolean async)
 	{
+		// Strokes that are still being committed must reach their chunks first.
+		strokeCommitter.awaitIdle();
+
+		if (unload)
+		{
+			synchronized (chunksInRange)
+			{
+				chunksInRange.clear();
+			}
+		}
+
 		int chunks = loadedChunks.size();
 		long[] chunksToSave = new long[chunks];
 		for (int c = 0; c < chunks; c++)
@@ -651,6 +892,15 @@ public class Project
 		}
 	}
 
+	/**
+	 * Saves and unloads all of the chunks currently loaded, so that none are considered in range any more.
+	 * This should be called before loading the chunks around a new camera position.
+	 */
+	public void unloadAllChunks()
+	{
+		saveAllLoadedChunks(true, false);
+	}
+
 	/**
 	 * Saves a single chunk.
 	 * A convenience method for {@link #saveChunks(long[], boolean)}.
@@ -665,31 +915,67 @@ public class Project
 
 	/**
 	 * Saves the chunks specified by the given chunk IDs, optionally unloading them.
+	 * When unloading, the chunks leave loading range. A chunk whose strokes reach into a chunk that is still in range
+	 * is saved but kept loaded, while the chunks whose strokes reached only into the chunks leaving range are unloaded too.
 	 * @param chunkIds The IDs of the chunks to save.
 	 * @param unload Whether the chunks should be unloaded after saving.
 	 * @see #saveChunk(long, boolean)
 	 */
 	public void saveChunks(long[] chunkIds, boolean unload)
+	{
+		saveChunks(getCurrentSheet(), getLoadedChunksGeneration(), chunkIds, unload);
+	}
+
+	/**
+	 * Saves the chunks specified by the given chunk IDs, optionally unloading them,
+	 * as long as the loaded chunks haven't been replaced since the given generation.
+	 * Once another sheet is current, the chunks of this one are kept by the {@link SheetCache} instead,
+	 * and were already saved as their strokes were committed.
+	 * @param sheet The sheet that was current when the chunks were to be saved.
+	 * @param generation The generation of the loaded chunks when the chunks were to be saved.
+	 * @param chunkIds The IDs of the chunks to save.
+	 * @param unload Whether the chunks should be unloaded after saving.
+	 * @see #getLoadedChunksGeneration()
+	 */
+	void saveChunks(Project.Sheet sheet, int generation, long[] chunkIds, boolean unload)
 	{
 		int nonEmptyChunksProcessed = 0;
 		int totalChunksProcessed = 0;
 		int totalStrokes = 0;
 
+		boolean chunksBecameOccupied = false;
+
+		if (unload)
+		{
+			synchronized (chunksInRange)
+			{
+				if (generation != loadedChunksGeneration) return;
+				for (long chunkId : chunkIds)
+				{
+					chunksInRange.remove(chunkId);
+				}
+			}
+			chunkIds = addChunksReachingInto(sheet, chunkIds);
+		}
+
 		Project.Sheet.Chunk chunk;
 		for (long chunkId : chunkIds)
 		{
-			if (!isChunkLoaded(chunkId)) continue;
+			synchronized (chunksInRange)
+			{
+				if (generation != loadedChunksGeneration) break;
+				chunk = getChunkFromId(chunkId);
+			}
+			if (chunk == null) continue;
 
 			totalChunksProcessed++;
 
-			chunk = getChunkFromId(chunkId);
+			if (writeChunk(sheet, chunk))
+			{
+				chunksBecameOccupied = true;
+			}
 			if (chunk.getTotalStrokes() == 0)
 			{
-				if (chunk.getFile().exists())
-				{
-					// If a file has existed for this chunk in the past, delete it.
-					chunk.getFile().delete();
-				}
 				// Skip processing the empty chunk.
 				continue;
 			}
@@ -697,154 +983,387 @@ public class Project
 			nonEmptyChunksProcessed++;
 			totalStrokes += chunk.getTotalStrokes();
 
-			chunk = getChunkFromId(chunkId);
-			ObjectOutputStream oos = null;
-			try
+			if (unload)
 			{
-				FileOutputStream fos = new FileOutputStream(chunk.getFile());
-				oos = new ObjectOutputStream(fos);
-				oos.writeObject(chunk);
-				oos.flush();
-			}
-			catch (IOException e)
-			{
-				e.printStackTrace();
+				synchronized (chunksInRange)
+				{
+					if (generation == loadedChunksGeneration && !isChunkNeeded(sheet, chunkId)) removeChunk(chunkId);
+				}
 			}
-			finally
+		}
+
+		sheet.getChunkPack().commit();
+
+		// Empty chunks are never read from disk, so a chunk that has just gained its first strokes
+		// is written to the index right away, rather than after the debounce delay, so that a crash can't lose track of it.
+		if (chunksBecameOccupied)
+		{
+			projectIndex.requestImmediateSave();
+		}
+	}
+
+	/**
+	 * Adds the loaded chunks whose strokes reach into any of the given chunks, and that are no longer needed, to the given chunks.
+	 * @param sheet The current sheet.
+	 * @param chunkIds The chunk IDs.
+	 * @return The chunk IDs followed by the IDs of the chunks reaching into them, each only once.
+	 */
+	private long[] addChunksReachingInto(Project.Sheet sheet, long[] chunkIds)
+	{
+		LongOpenHashSet added = new LongOpenHashSet();
+		LongArrayList result = new LongArrayList();
+		for (long chunkId : chunkIds)
+		{
+			added.add(chunkId);
+			result.add(chunkId);
+		}
+
+		for (long chunkId : chunkIds)
+		{
+			for (long fromChunkId : sheet.getChunksReachingInto(chunkId))
 			{
-				if (oos != null)
+				if (isChunkLoaded(fromChunkId) && !isChunkNeeded(sheet, fromChunkId) && added.add(fromChunkId))
 				{
-					try
-					{
-						oos.close();
-					}
-					catch (IOException e)
-					{
-						// Disregard exception.
-					}
+					result.add(fromChunkId);
 				}
 			}
+		}
+		return result.toArray();
+	}
 
-			if (unload) removeChunk(chunkId);
+	/**
+	 * Checks whether a chunk must stay loaded because it, or a chunk that its strokes reach into, is within loading range.
+	 * @param sheet The current sheet.
+	 * @param chunkId The chunk ID.
+	 * @return True if the chunk is needed; false otherwise.
+	 */
+	private boolean isChunkNeeded(Project.Sheet sheet, long chunkId)
+	{
+		long[] reachedChunkIds = sheet.getReachedChunks(chunkId);
+		synchronized (chunksInRange)
+		{
+			if (chunksInRange.contains(chunkId)) return true;
+			for (long reachedChunkId : reachedChunkIds)
+			{
+				if (chunksInRange.contains(reachedChunkId)) return true;
+			}
 		}
+		return false;
 	}
 
 	/**
-	 * Loads the specified chunks.
+	 * Saves a chunk that a stroke has just been committed to.
+	 * Unlike {@link #saveChunks(long[], boolean)}, this doesn't require the chunk to still be loaded,
+	 * so it is safe to call from the {@link StrokeCommitter} thread.
+	 * @param sheet The sheet that the chunk belongs to.
+	 * @param chunk The chunk.
+	 */
+	void saveCommittedChunk(Project.Sheet sheet, Project.Sheet.Chunk chunk)
+	{
+		boolean chunkBecameOccupied = writeChunk(sheet, chunk);
+		sheet.getChunkPack().commit();
+		if (chunkBecameOccupied)
+		{
+			projectIndex.requestImmediateSave();
+		}
+	}
+
+	/**
+	 * Writes a chunk to its pack and updates the sheet's occupancy index and chunk reach,
+	 * removing the chunk from the pack if it is empty.
+	 * @param sheet The sheet that the chunk belongs to.
+	 * @param chunk The chunk.
+	 * @return True if the chunk has just become occupied; false otherwise.
+	 */
+	private boolean writeChunk(Project.Sheet sheet, Project.Sheet.Chunk chunk)
+	{
+		long chunkId = chunk.getId();
+		boolean occupied = chunk.getTotalStrokes() > 0;
+		boolean becameOccupied = sheet.setChunkOccupied(chunkId, occupied) && occupied;
+		// A stroke reaching into a new chunk is still loaded with its own chunk, so the index can be saved later.
+		if (sheet.setReachedChunks(chunkId, chunk.getStrokes().getReachedChunks())) requestMetadataSave();
+		if (!occupied)
+		{
+			// If this chunk has been saved in the past, remove it from the pack.
+			chunk.getPack().remove(chunkId);
+			return becameOccupied;
+		}
+
+		try
+		{
+			chunk.getPack().write(chunkId, StrokeCodec.encodeChunk(chunk));
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+		}
+		return becameOccupied;
+	}
+
+	/**
+	 * Loads the specified chunks, which have come within loading range, along with the chunks whose strokes reach into them.
+	 * A chunk reached from several chunks in range is only loaded once.
+	 * Chunks that the current sheet's occupancy index marks as empty are skipped without touching the file system,
+	 * and no <code>Chunk</code> is created for them until a stroke is drawn in them.
 	 * @param chunkIds The IDs of the chunks to load.
+	 * @see #obtainChunk(long)
 	 */
 	public void loadChunks(long[] chunkIds)
 	{
-		int nonEmptyChunksProcessed = 0;
-		int totalChunksProcessed = 0;
-		int totalStrokes = 0;
+		loadChunks(getCurrentSheet(), getLoadedChunksGeneration(), chunkIds);
+	}
+
+	/**
+	 * Loads the specified chunks of a sheet, as long as the loaded chunks haven't been replaced since the given generation.
+	 * @param sheet The sheet that was current when the chunks were to be loaded.
+	 * @param generation The generation of the loaded chunks when the chunks were to be loaded.
+	 * @param chunkIds The IDs of the chunks to load.
+	 * @see #loadChunks(long[])
+	 * @see #getLoadedChunksGeneration()
+	 */
+	void loadChunks(Project.Sheet sheet, int generation, long[] chunkIds)
+	{
+		synchronized (chunksInRange)
+		{
+			if (generation != loadedChunksGeneration) return;
+			for (long chunkId : chunkIds)
+			{
+				chunksInRange.add(chunkId);
+			}
+		}
 
 		for (long chunkId : chunkIds)
 		{
-			if (isChunkLoaded(chunkId))
+			if (!loadChunk(sheet, generation, chunkId)) return;
+			for (long fromChunkId : sheet.getChunksReachingInto(chunkId))
 			{
-				continue;
+				if (!loadChunk(sheet, generation, fromChunkId)) return;
 			}
+		}
+	}
 
-			totalChunksProcessed++;
+	/**
+	 * Loads a chunk unless it is already loaded or empty.
+	 * The chunk is read without holding any lock, and dropped if the loaded chunks have been replaced in the meantime.
+	 * @param sheet The sheet that the chunk belongs to.
+	 * @param generation The generation of the loaded chunks that the chunk is for.
+	 * @param chunkId The chunk ID.
+	 * @return False if the loaded chunks have been replaced since the given generation; true otherwise.
+	 */
+	private boolean loadChunk(Project.Sheet sheet, int generation, long chunkId)
+	{
+		if (isChunkLoaded(chunkId) || !sheet.isChunkOccupied(chunkId))
+		{
+			return true;
+		}
 
-			File chunkFile = new File(getCurrentSheet().getFile(), Long.toString(chunkId));
+		Project.Sheet.Chunk chunk = readChunk(sheet.getChunkPack(), chunkId);
+		if (chunk == null)
+		{
+			chunk = new Project.Sheet.Chunk(this, chunkId);
+		}
 
-			Project.Sheet.Chunk chunk = null;
+		chunk.setWorkingFile(this);
+		synchronized (chunksInRange)
+		{
+			if (generation != loadedChunksGeneration) return false;
+			if (!isChunkLoaded(chunkId)) addChunk(chunk);
+		}
+		return true;
+	}
 
-			// Does a file exist for this chunk? Load it.
-			if (chunkFile.exists())
-			{
-				nonEmptyChunksProcessed++;
+	/**
+	 * Reads a chunk from a sheet's chunk pack.
+	 * @param pack The chunk pack.
+	 * @param chunkId The chunk ID.
+	 * @return The chunk, or <code>null</code> if it is not in the pack or could not be read.
+	 */
+	private Project.Sheet.Chunk readChunk(ChunkPack pack, long chunkId)
+	{
+		try
+		{
+			byte[] data = pack.read(chunkId);
+			return data == null ? null : StrokeCodec.decodeChunk(data);
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+			return null;
+		}
+	}
 
-				ObjectInputStream ois = null;
-				try
-				{
-					FileInputStream fis = new FileInputStream(chunkFile);
-					ois = new ObjectInputStream(fis);
-					chunk = (Project.Sheet.Chunk) ois.readObject();
-				}
-				catch (IOException | ClassNotFoundException e)
-				{
-					e.printStackTrace();
-				}
-				finally
-				{
-					if (ois != null)
-					{
-						try
-						{
-							ois.close();
-						}
-						catch (IOException e)
-						{
-							// Disregard exception.
-						}
-					}
-				}
-			}
-			// Otherwise, it must be an empty chunk. Make a new one.
-			else
+	/**
+	 * Returns the loaded chunk with the given ID, loading it or creating an empty one if necessary.
+	 * This should be used when a stroke is about to be added to a chunk,
+	 * since empty chunks are not loaded by {@link #loadChunks(long[])}.
+	 * @param chunkId The chunk ID.
+	 * @return The loaded chunk with that ID.
+	 */
+	public Project.Sheet.Chunk obtainChunk(long chunkId)
+	{
+		if (!isChunkLoaded(chunkId))
+		{
+			if (getCurrentSheet().isChunkOccupied(chunkId))
 			{
-				chunk = new Project.Sheet.Chunk(this, chunkId);
+				// The chunk may be out of range, so it is loaded without being marked as in range.
+				loadChunk(getCurrentSheet(), getLoadedChunksGeneration(), chunkId);
 			}
-
-			if (chunk == null)
+			if (!isChunkLoaded(chunkId))
 			{
-				chunk = new Project.Sheet.Chunk(this, chunkId);
+				Project.Sheet.Chunk chunk = new Project.Sheet.Chunk(this, chunkId);
+				chunk.setWorkingFile(this);
+				loadedChunks.put(chunkId, chunk);
 			}
+		}
+		return getChunkFromId(chunkId);
+	}
 
-			chunk.setWorkingFile(this);
-			addChunk(chunk);
-			totalStrokes += chunk.getTotalStrokes();
+	/**
+	 * Commits a stroke that the user has just finished drawing to the chunk that contains it.
+	 * The stroke is simplified, packed and saved in the background, and published once it is packed.
+	 * Must be called from the UI thread.
+	 * @param stroke The stroke, which must not be changed afterwards.
+	 * @param notepadView The view to render once the stroke has been published.
+	 * @see StrokeCommitter
+	 */
+	public void commitStroke(Stroke stroke, NotepadView notepadView)
+	{
+		// The chunk is chosen here, before the stroke is simplified, so it is found from the bounds of every point.
+		stroke.updateBounds();
+		strokeCommitter.commit(stroke, getCurrentSheet(), obtainChunk(stroke.chunkId), notepadView);
+	}
+
+	/**
+	 * Erases along an eraser stroke that the user has just finished drawing, removing or splitting the strokes it passes over.
+	 * This happens in the background, after any strokes that are still being committed.
+	 * Must be called from the UI thread.
+	 * @param eraser The eraser stroke, which must not be changed afterwards.
+	 * @param notepadView The view to render once the strokes have been erased.
+	 * @see StrokeEraser
+	 */
+	public void eraseStroke(Stroke eraser, NotepadView notepadView)
+	{
+		int chunks = loadedChunks.size();
+		Project.Sheet.Chunk[] chunksToErase = new Project.Sheet.Chunk[chunks];
+		for (int c = 0; c < chunks; c++)
+		{
+			chunksToErase[c] = getChunk(c);
 		}
+		strokeCommitter.erase(eraser, getCurrentSheet(), chunksToErase, notepadView);
+	}
 
-		sortStrokes();
+	/**
+	 * Records that an eraser stroke has changed the strokes of loaded chunks.
+	 * Every stroke that was erased or split lay under the eraser, so only the tiles under it are marked as out of date.
+	 * @param eraser The eraser stroke.
+	 */
+	void publishErasedStrokes(Stroke eraser)
+	{
+		loadedStrokesVersion.incrementAndGet();
+		if (tileCache != null) tileCache.invalidate(eraser);
 	}
 
 	/**
-	 * Adds a stroke to the list of loaded strokes.
-	 * @param stroke The stroke to add.
+	 * Gets the strokes that have been committed but not yet published.
+	 * @return The pending strokes, which may be read from any thread.
 	 */
-	public void addLoadedStroke(Stroke stroke)
+	public List<Stroke> getPendingStrokes()
 	{
-		loadedStrokes.add(stroke);
+		return strokeCommitter.getPendingStrokes();
 	}
 
 	/**
-	 * Removes a stroke from the list of loaded strokes.
-	 * @param stroke The stroke to remove.
+	 * Sets the cache of rendered tiles to invalidate whenever a loaded stroke is added or removed.
+	 * @param tileCache The tile cache.
 	 */
-	@SuppressWarnings("unused")
-	public void removeLoadedStroke(Stroke stroke)
+	void setTileCache(TileCache tileCache)
+	{
+		this.tileCache = tileCache;
+	}
+
+	/**
+	 * Drops the chunks of a sheet from the {@link SheetCache}, since its files are about to be changed by compaction.
+	 * May be called from any thread.
+	 * @param sheet The sheet, which isn't the current sheet.
+	 */
+	void dropCachedChunks(Sheet sheet)
+	{
+		sheetCache.drop(sheet);
+	}
+
+	/**
+	 * Sets the listener that is run whenever chunks have been loaded in the background,
+	 * so that their strokes can be drawn as they arrive.
+	 * @param listener The listener, which is run on the UI thread.
+	 */
+	void setOnChunksLoadedListener(Runnable listener)
 	{
-		loadedStrokes.remove(stroke);
+		onChunksLoadedListener = listener;
 	}
 
 	/**
-	 * Removes all strokes from the loaded strokes list that are contained in the chunk with the given ID.
-	 * @param chunkId The chunk ID that contains the strokes.
+	 * Called on the UI thread once a {@link LoadChunkTask} has finished.
 	 */
-	private void removeLoadedStrokesWithChunkId(long chunkId)
+	void onChunksLoaded()
 	{
-		int strokes = loadedStrokes.size();
-		for (int s = 0; s < strokes; /* do nothing */)
+		if (onChunksLoadedListener != null) onChunksLoadedListener.run();
+	}
+
+	/**
+	 * Records that a stroke has been added to a loaded chunk.
+	 * @param stroke The stroke.
+	 */
+	void publishStroke(Stroke stroke)
+	{
+		loadedStrokesVersion.incrementAndGet();
+		if (tileCache != null) tileCache.invalidate(stroke);
+	}
+
+	/**
+	 * Loads the sketchbook details and its sheets from the index file.
+	 * If the sketchbook was saved by an earlier version and has no index, the legacy metadata files are read instead.
+	 * @param res A <code>Resources</code> object.
+	 * @return True if the data could be read; false otherwise.
+	 */
+	public boolean loadMetadata(Resources res)
+	{
+		if (projectIndex.read()) return true;
+
+		if (!loadLegacyMetadata()) return false;
+		sheets.clear();
+		for (long sheetId : sheetOrder)
 		{
-			if (loadedStrokes.get(s).chunkId == chunkId)
-			{
-				loadedStrokes.remove(s);
-				strokes--;
-				continue;
-			}
-			s++;
+			loadSheet(res, sheetId);
 		}
+		return true;
 	}
 
 	/**
-	 * Loads the sketchbook details from the metadata file.
+	 * Restores the sketchbook details and sheets as read from the index file.
+	 * @param name The name of the sketchbook.
+	 * @param currentSheet The index of the current sheet.
+	 * @param strokeCount The stroke count.
+	 * @param sheets The sheets, in order.
+	 * @see ProjectIndex#read()
+	 */
+	void restoreFromIndex(String name, int currentSheet, long strokeCount, ArrayList<Sheet> sheets)
+	{
+		setName(name);
+		this.sheets = sheets;
+		for (Sheet sheet : sheets)
+		{
+			sheet.setWorkingFile();
+		}
+		totalSheets = sheets.size();
+		this.currentSheet = Math.min(currentSheet, totalSheets - 1);
+		this.strokeCount = strokeCount;
+	}
+
+	/**
+	 * Loads the sketchbook details from the legacy metadata file.
 	 * @return True if the data could be read; false otherwise.
 	 */
-	public boolean loadMetadata()
+	private boolean loadLegacyMetadata()
 	{
 		ObjectInputStream ois = null;
 		try
@@ -880,43 +1399,40 @@ public class Project
 	}
 
 	/**
-	 * Writes the sketchbook details to the metadata file.
+	 * Writes the sketchbook details to the index file immediately, then deletes any legacy metadata files.
 	 * @return True if the data was written successfully; false otherwise.
+	 * @see #requestMetadataSave()
 	 */
 	public boolean saveMetadata()
 	{
-		ObjectOutputStream oos = null;
-		try
-		{
-			FileOutputStream fos = new FileOutputStream(getMetadataFile());
-			oos = new ObjectOutputStream(fos);
-			oos.writeObject(getName()); // Name of project
-			oos.writeInt(getTotalSheets()); // Number of sheets
-			oos.writeInt(getCurrentSheetIndex()); // Current sheet
-			oos.writeLong(getStrokeCount()); // Stroke count
-			oos.writeObject(generateSheetOrder()); // Order of sheets
-			oos.flush();
-			return true;
-		}
-		catch (IOException e)
-		{
-			e.printStackTrace();
-			return false;
-		}
-		finally
+		if (!projectIndex.save()) return false;
+
+		getMetadataFile().delete();
+		for (Sheet sheet : sheets)
 		{
-			if (oos != null)
-			{
-				try
-				{
-					oos.close();
-				}
-				catch (IOException e)
-				{
-					// Disregard exception.
-				}
-			}
+			sheet.getMetadataFile().delete();
 		}
+		return true;
+	}
+
+	/**
+	 * Schedules the sketchbook details to be written to the index file shortly.
+	 * Repeated requests in quick succession result in a single write.
+	 * @see #saveMetadata()
+	 */
+	public void requestMetadataSave()
+	{
+		projectIndex.requestSave();
+	}
+
+	/**
+	 * Ensures that the stroke count is at least the given value.
+	 * Called during crash recovery, since the index may not have been written since the latest stroke.
+	 * @param minimum The minimum stroke count.
+	 */
+	public void ensureStrokeCountAtLeast(long minimum)
+	{
+		if (strokeCount < minimum) strokeCount = minimum;
 	}
 
 	/**
@@ -983,21 +1499,21 @@ public class Project
 	 */
 	public boolean load(Resources res)
 	{
-		IOUtils.deleteDirectory(IOUtils.getWorkingDirectory(), false);
-		try
+		// Skip the extraction if the working directory was retained from the last session and still matches the archive.
+		if (!WarmStartCache.claim(getName(), getArchiveFile()))
 		{
-			extract();
-		}
-		catch (IOException e)
-		{
-			e.printStackTrace();
-			return false;
-		}
-		loadMetadata();
-		for (long sheetId : sheetOrder)
-		{
-			loadSheet(res, sheetId);
+			IOUtils.deleteDirectory(IOUtils.getWorkingDirectory(), false);
+			try
+			{
+				extract();
+			}
+			catch (IOException e)
+			{
+				e.printStackTrace();
+				return false;
+			}
 		}
+		loadMetadata(res);
 		setUnsavedChanges(false);
 		return true;
 	}
@@ -1010,12 +1526,8 @@ public class Project
 	 */
 	public boolean save(boolean unload)
 	{
-		saveMetadata();
 		saveAllLoadedChunks(unload, false);
-		for (Sheet sheet : sheets)
-		{
-			sheet.saveMetadata();
-		}
+		saveMetadata();
 		try
 		{
 			archive();
@@ -1030,6 +1542,18 @@ public class Project
 		return true;
 	}
 
+	/**
+	 * Waits for the strokes being committed to be saved, stops sheet compaction and writes any pending index save,
+	 * so that nothing is left writing to the working directory in the background.
+	 * This should be called before the working directory is retained or deleted on exit. Must be called from the UI thread.
+	 */
+	public void finishBackgroundWrites()
+	{
+		strokeCommitter.awaitIdle();
+		sheetCompactor.cancelAll();
+		projectIndex.save();
+	}
+
 	/**
 	 * Archives the sketchbook as a gzipped tarball.
 	 * Called from {@link #save(boolean)}.
@@ -1037,7 +1561,11 @@ public class Project
 	 */
 	private void archive() throws IOException
 	{
-		IOUtils.archive(getName(), IOUtils.getDirectory(), IOUtils.getWorkingDirectory());
+		// Keep sheets from being compacted half-way through the archive.
+		synchronized (sheetCompactor.getWriteLock())
+		{
+			IOUtils.archive(getName(), IOUtils.getDirectory(), IOUtils.getWorkingDirectory());
+		}
 	}
 
 	/**
@@ -1106,7 +1634,10 @@ public class Project
 	}
 
 	/**
-	 * Loads a sheet with the given ID from its file in the working directory and adds it to the sketchbook.
+	 * Adds a sheet with the given ID from the working directory to the sketchbook.
+	 * This is only used for sketchbooks without an {@link ProjectIndex index}.
+	 * The sheet is only a handle at this point; its legacy metadata is read when it is first needed,
+	 * and its thumbnail is decoded by the {@link ironartichoke.sketchpad.adapter.SheetAdapter SheetAdapter} on demand.
 	 * @param res A <code>Resources</code> instance.
 	 * @param sheetId The ID of the sheet to load.
 	 */
@@ -1114,8 +1645,6 @@ public class Project
 	{
 		Sheet sheet = new Sheet(sheetId, res);
 		sheet.setWorkingFile();
-		sheet.loadMetadata();
-		sheet.loadThumbnail(res);
 		addLoadedSheet(sheet);
 	}
 
@@ -1139,19 +1668,33 @@ public class Project
 		private float cameraZoom = 1f;
 		/** The sheet's file in the working directory. */
 		private File file;
-		/** The sheet's thumbnail. */
-		private BitmapDrawable thumbnail;
+		/** The pack that holds the sheet's chunks. Created when first needed.
+		 * @see #getChunkPack() */
+		private ChunkPack chunkPack;
+		/** Whether the name and camera values have been read from the legacy metadata file yet.
+		 * @see #ensureMetadataLoaded() */
+		private boolean isMetadataLoaded = true;
+		/** The IDs of the chunks on this sheet that contain strokes. */
+		private ChunkOccupancy occupiedChunks = new ChunkOccupancy();
+		/** The chunks on this sheet that the strokes of each chunk reach into. */
+		private ChunkReach chunkReach = new ChunkReach();
+		/** Whether {@link #chunkReach} covers every chunk. Sheets saved by earlier versions only record the chunks
+		 * written since, until they are compacted.
+		 * @see SheetCompactor */
+		private boolean isChunkReachKnown = true;
 
 		/**
-		 * Creates a sheet with the given ID.
-		 * Its name is set to the default name according to the locale.
-		 * @param id The ID of the new sheet.
+		 * Creates a handle for an existing sheet with the given ID.
+		 * Its name is set to the default name according to the locale until the metadata is read.
+		 * @param id The ID of the sheet.
 		 * @param res A <code>Resources</code> object.
 		 */
 		public Sheet(long id, Resources res)
 		{
 			this.id = id;
 			this.name = Sheet.getDefaultName(res);
+			isMetadataLoaded = false;
+			isChunkReachKnown = false;
 		}
 
 		/**
@@ -1165,7 +1708,29 @@ public class Project
 			setName(name);
 			setWorkingFile();
 			getFile().mkdir();
-			saveMetadata();
+		}
+
+		/**
+		 * Creates a sheet as read from the sketchbook index.
+		 * @param id The ID of the sheet.
+		 * @param name The sheet name.
+		 * @param cameraX The camera X position.
+		 * @param cameraY The camera Y position.
+		 * @param cameraZoom The camera zoom.
+		 * @param occupiedChunks The chunks that contain strokes.
+		 * @param chunkReach The chunks that the strokes of each chunk reach into.
+		 * @param isChunkReachKnown Whether the chunk reach covers every chunk.
+		 * @see ProjectIndex#read()
+		 */
+		Sheet(long id, String name, float cameraX, float cameraY, float cameraZoom, ChunkOccupancy occupiedChunks,
+		      ChunkReach chunkReach, boolean isChunkReachKnown)
+		{
+			this.id = id;
+			setName(name);
+			setCamera(cameraX, cameraY, cameraZoom);
+			this.occupiedChunks = occupiedChunks;
+			this.chunkReach = chunkReach;
+			this.isChunkReachKnown = isChunkReachKnown;
 		}
 
 		/**
@@ -1176,11 +1741,23 @@ public class Project
 		{
 			id = sheetId;
 			setWorkingFile();
-			loadMetadata();
-			loadThumbnail(res);
+			isMetadataLoaded = false;
+			isChunkReachKnown = false;
 			project.addLoadedSheet(this);
 		}
 
+		/**
+		 * Reads the legacy metadata file if it hasn't been read yet.
+		 * Sheets of sketchbooks without an index are only handles until one of their values is needed.
+		 */
+		private void ensureMetadataLoaded()
+		{
+			if (!isMetadataLoaded)
+			{
+				loadMetadata();
+			}
+		}
+
 		public long getId()
 		{
 			return id;
@@ -1188,52 +1765,62 @@ public class Project
 
 		public String getName()
 		{
+			ensureMetadataLoaded();
 			return name;
 		}
 
 		public void setName(String name)
 		{
+			ensureMetadataLoaded();
 			this.name = name;
 		}
 
 		public float getCameraX()
 		{
+			ensureMetadataLoaded();
 			return cameraX;
 		}
 
 		public void setCameraX(float cameraX)
 		{
+			ensureMetadataLoaded();
 			this.cameraX = cameraX;
 		}
 
 		public float getCameraY()
 		{
+			ensureMetadataLoaded();
 			return cameraY;
 		}
 
 		public void setCameraY(float cameraY)
 		{
+			ensureMetadataLoaded();
 			this.cameraY = cameraY;
 		}
 
 		public void setCameraPosition(float x, float y)
 		{
+			ensureMetadataLoaded();
 			cameraX = x;
 			cameraY = y;
 		}
 
 		public float getCameraZoom()
 		{
+			ensureMetadataLoaded();
 			return cameraZoom;
 		}
 
 		public void setCameraZoom(float cameraZoom)
 		{
+			ensureMetadataLoaded();
 			this.cameraZoom = cameraZoom;
 		}
 
 		public void setCamera(float x, float y, float zoom)
 		{
+			ensureMetadataLoaded();
 			cameraX = x;
 			cameraY = y;
 			cameraZoom = zoom;
@@ -1244,11 +1831,22 @@ public class Project
 			return file;
 		}
 
-		public void setFile(File file)
+		public synchronized void setFile(File file)
 		{
+			if (!file.equals(this.file)) chunkPack = null;
 			this.file = file;
 		}
 
+		/**
+		 * Gets the pack that holds the sheet's chunks.
+		 * @return The chunk pack in the sheet folder.
+		 */
+		public synchronized ChunkPack getChunkPack()
+		{
+			if (chunkPack == null) chunkPack = new ChunkPack(getFile());
+			return chunkPack;
+		}
+
 		public void setWorkingFile()
 		{
 			setFile(new File(IOUtils.getWorkingDirectory(), Long.toString(id)));
@@ -1259,50 +1857,130 @@ public class Project
 			return new File(getFile(), METADATA);
 		}
 
-		public BitmapDrawable getThumbnail()
-		{
-			return thumbnail;
-		}
-
-		public void setThumbnail(BitmapDrawable thumbnail)
+		/**
+		 * Checks whether the chunk with the given ID contains any strokes, according to the index.
+		 * @param chunkId The chunk ID.
+		 * @return True if the chunk contains strokes; false otherwise.
+		 */
+		public synchronized boolean isChunkOccupied(long chunkId)
 		{
-			this.thumbnail = thumbnail;
+			ensureMetadataLoaded();
+			return occupiedChunks.contains(chunkId);
 		}
 
-		public void saveMetadata()
+		/**
+		 * Records whether the chunk with the given ID contains any strokes.
+		 * @param chunkId The chunk ID.
+		 * @param occupied True if the chunk contains strokes; false otherwise.
+		 * @return True if the occupancy of the chunk changed; false otherwise.
+		 */
+		public synchronized boolean setChunkOccupied(long chunkId, boolean occupied)
 		{
-			ObjectOutputStream oos = null;
-			try
+			ensureMetadataLoaded();
+			if (occupied)
 			{
-				FileOutputStream fos = new FileOutputStream(getMetadataFile());
-				oos = new ObjectOutputStream(fos);
-				oos.writeObject(getName()); // Name of sheet
-				oos.writeFloat(getCameraX()); oos.writeFloat(getCameraY()); // Camera position
-				oos.writeFloat(getCameraZoom()); // Camera zoom
-				oos.flush();
+				return occupiedChunks.add(chunkId);
 			}
-			catch (IOException e)
+			else
 			{
-				e.printStackTrace();
-			}
-			finally
-			{
-				if (oos != null)
-				{
-					try
-					{
-						oos.close();
-					}
-					catch (IOException e)
-					{
-						// Disregard exception.
-					}
-				}
+				return occupiedChunks.remove(chunkId);
 			}
 		}
 
-		public void loadMetadata()
+		/**
+		 * Gets the IDs of all chunks that contain strokes.
+		 * @return The occupied chunk IDs, in ascending order.
+		 */
+		public synchronized long[] getOccupiedChunkIds()
+		{
+			ensureMetadataLoaded();
+			return occupiedChunks.toArray();
+		}
+
+		/**
+		 * Writes the occupancy index of this sheet.
+		 * @param output The output.
+		 * @throws IOException
+		 * @see ProjectIndex
+		 */
+		synchronized void writeOccupiedChunks(DataOutput output) throws IOException
 		{
+			ensureMetadataLoaded();
+			occupiedChunks.write(output);
+		}
+
+		/**
+		 * Checks whether the chunks that strokes reach into are known for every chunk on this sheet.
+		 * If not, strokes crossing chunk borders are only loaded with the chunk that stores them.
+		 * @return True if the reach of every chunk is known; false otherwise.
+		 */
+		public synchronized boolean isChunkReachKnown()
+		{
+			return isChunkReachKnown;
+		}
+
+		/**
+		 * Records that the reach of every chunk on this sheet is now known.
+		 * @return True if it wasn't known before; false otherwise.
+		 */
+		synchronized boolean setChunkReachKnown()
+		{
+			if (isChunkReachKnown) return false;
+			isChunkReachKnown = true;
+			return true;
+		}
+
+		/**
+		 * Gets the other chunks that the strokes of a chunk reach into.
+		 * @param chunkId The chunk ID.
+		 * @return The IDs of the reached chunks, in ascending order.
+		 */
+		public synchronized long[] getReachedChunks(long chunkId)
+		{
+			return chunkReach.getReachedChunks(chunkId);
+		}
+
+		/**
+		 * Gets the chunks whose strokes reach into a chunk.
+		 * @param chunkId The chunk ID.
+		 * @return The IDs of the chunks storing the strokes, in ascending order.
+		 */
+		public synchronized long[] getChunksReachingInto(long chunkId)
+		{
+			return chunkReach.getChunksReachingInto(chunkId);
+		}
+
+		/**
+		 * Records the other chunks that the strokes of a chunk reach into.
+		 * @param chunkId The chunk ID.
+		 * @param reachedChunkIds The IDs of the reached chunks, in ascending order.
+		 * @return True if the reached chunks changed; false otherwise.
+		 */
+		public synchronized boolean setReachedChunks(long chunkId, long[] reachedChunkIds)
+		{
+			return chunkReach.set(chunkId, reachedChunkIds);
+		}
+
+		/**
+		 * Writes the chunk reach of this sheet, preceded by whether it covers every chunk.
+		 * @param output The output.
+		 * @throws IOException
+		 * @see ProjectIndex
+		 */
+		synchronized void writeChunkReach(DataOutput output) throws IOException
+		{
+			output.writeBoolean(isChunkReachKnown);
+			chunkReach.write(output);
+		}
+
+		/**
+		 * Reads the name and camera values from the legacy metadata file.
+		 * The occupied chunks are determined from the chunk pack, which takes in any loose chunk files.
+		 */
+		private void loadMetadata()
+		{
+			// Mark the metadata as loaded first so that the setters don't recurse back here.
+			isMetadataLoaded = true;
 			ObjectInputStream ois = null;
 			try
 			{
@@ -1329,6 +2007,11 @@ public class Project
 					}
 				}
 			}
+
+			for (long chunkId : getChunkPack().getChunkIds())
+			{
+				occupiedChunks.add(chunkId);
+			}
 		}
 
 		/**
@@ -1365,39 +2048,6 @@ public class Project
 			}
 		}
 
-		/**
-		 * Loads the thumbnail from the sheet folder.
-		 */
-		public void loadThumbnail(Resources res)
-		{
-			BufferedInputStream bis = null;
-			try
-			{
-				FileInputStream fis = new FileInputStream(getThumbnailFile());
-				bis = new BufferedInputStream(fis);
-				Bitmap thumbnailBitmap = BitmapFactory.decodeStream(bis);
-				setThumbnail(new BitmapDrawable(res, thumbnailBitmap));
-			}
-			catch (Exception e)
-			{
-				e.printStackTrace();
-			}
-			finally
-			{
-				if (bis != null)
-				{
-					try
-					{
-						bis.close();
-					}
-					catch (IOException e)
-					{
-						// Disregard exception.
-					}
-				}
-			}
-		}
-
 		public File getThumbnailFile()
 		{
 			return new File(getFile(), THUMBNAIL_FILE);
@@ -1411,8 +2061,10 @@ public class Project
 		public static class Chunk implements Externalizable
 		{
 			private long id;
-			private File file;
-			private ExternalizableArrayList<Stroke> strokes = new ExternalizableArrayList<>();
+			private ChunkPack pack;
+			/** The strokes of the chunk. Erasing replaces them on the {@link StrokeCommitter} thread while the
+			 * OpenGL thread draws them, so they are volatile. */
+			private volatile PackedStrokes strokes;
 
 			/**
 			 * Used for serialisation only.
@@ -1427,9 +2079,22 @@ public class Project
 			public Chunk(Project project, long id)
 			{
 				setId(id);
+				setStrokes(new PackedStrokes(id));
 				setWorkingFile(project);
 			}
 
+			/**
+			 * Creates a chunk from decoded strokes. Its pack must be set before it is saved.
+			 * @param id The chunk ID.
+			 * @param strokes The strokes.
+			 * @see StrokeCodec#decodeChunk(byte[])
+			 */
+			Chunk(long id, PackedStrokes strokes)
+			{
+				setId(id);
+				setStrokes(strokes);
+			}
+
 			public long getId()
 			{
 				return id;
@@ -1445,32 +2110,31 @@ public class Project
 				this.id = id;
 			}
 
-			public File getFile()
+			/**
+			 * Gets the pack that this chunk is saved to.
+			 * @return The chunk pack of the chunk's sheet.
+			 */
+			public ChunkPack getPack()
 			{
-				return file;
+				return pack;
 			}
 
-			public void setFile(File file)
+			public void setPack(ChunkPack pack)
 			{
-				this.file = file;
+				this.pack = pack;
 			}
 
 			public void setWorkingFile(Project project)
 			{
-				setFile(new File(project.getCurrentSheet().getFile(), Long.toString(id)));
+				setPack(project.getCurrentSheet().getChunkPack());
 			}
 
-			public Iterator<Stroke> getStrokeIterator()
-			{
-				return strokes.iterator();
-			}
-
-			public ExternalizableArrayList<Stroke> getStrokes()
+			PackedStrokes getStrokes()
 			{
 				return strokes;
 			}
 
-			public void setStrokes(ExternalizableArrayList<Stroke> strokes)
+			void setStrokes(PackedStrokes strokes)
 			{
 				this.strokes = strokes;
 			}
@@ -1481,12 +2145,14 @@ public class Project
 			}
 
 			/**
-			 * Adds a stroke to this chunk.
+			 * Adds a finished stroke to this chunk.
+			 * The stroke's data is copied into the chunk's packed strokes.
 			 * @param stroke The stroke to add.
+			 * @return The view of the stroke in this chunk, which should be used from now on.
 			 */
-			public void addStroke(@NonNull Stroke stroke)
+			public Stroke addStroke(@NonNull Stroke stroke)
 			{
-				strokes.add(stroke);
+				return strokes.add(stroke);
 			}
 
 			/**
@@ -1497,7 +2163,7 @@ public class Project
 			 */
 			public Stroke getStroke(int index)
 			{
-				return strokes.get(index);
+				return strokes.getStroke(index);
 			}
 
 			public boolean isChunkEmpty()
@@ -1510,14 +2176,24 @@ public class Project
 			public void readExternal(ObjectInput input) throws IOException, ClassNotFoundException
 			{
 				setId(input.readLong()); // Chunk ID
-				setStrokes((ExternalizableArrayList<Stroke>) input.readObject()); // Strokes array
+				ExternalizableArrayList<Stroke> strokeList = (ExternalizableArrayList<Stroke>) input.readObject(); // Strokes array
+				setStrokes(new PackedStrokes(id));
+				for (Stroke stroke : strokeList)
+				{
+					strokes.add(stroke);
+				}
 			}
 
 			@Override
 			public void writeExternal(ObjectOutput output) throws IOException
 			{
 				output.writeLong(id); // Chunk ID
-				output.writeObject(strokes); // Stroke array
+				ExternalizableArrayList<Stroke> strokeList = new ExternalizableArrayList<>();
+				for (int s = 0; s < strokes.size(); s++)
+				{
+					strokeList.add(strokes.getStroke(s));
+				}
+				output.writeObject(strokeList); // Stroke array
 			}
 		}
 	}
@@ -0,0 +1,334 @@
+package ironartichoke.sketchpad;
+
+import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+
+import ironartichoke.sketchpad.util.ChunkOccupancy;
+import ironartichoke.sketchpad.util.ChunkReach;
+import ironartichoke.sketchpad.util.io.IOUtils;
+
+/**
+ * The sketchbook index.
+ * <br\><br\>
+ * This is a single, versioned file in the working directory that holds everything needed to open
+ * a sketchbook without visiting the sheet folders: the sketchbook name, the current sheet, the
+ * stroke count, and the ID, name, camera, occupied chunks and chunk reach of every sheet, in order.
+ * The occupied chunks are stored as a {@link ChunkOccupancy} bitmap, so that empty chunks can be
+ * skipped without probing the file system. The {@link ChunkReach chunk reach} lists the chunks that
+ * strokes reach into beyond the chunk that stores them, so that those strokes are loaded with any of them.
+ * It replaces the sketchbook and sheet metadata files of earlier versions, which are still read
+ * when a sketchbook without an index is opened.
+ * <br\><br\>
+ * Since the index changes on every pen-up, saves are debounced with {@link #requestSave()}.
+ * Every write goes to a temporary file first, which is then renamed over the index, so that a crash
+ * can never leave a half-written index behind.
+ * <br\><br\>
+ * The sheet list is only changed on the UI thread, so snapshots are only taken there. Background threads that need
+ * the index written promptly use {@link #requestImmediateSave()}, and only the finished snapshot is passed on to the
+ * thread that writes it.
+ */
+final class ProjectIndex
+{
+	/** The name of the index file in the working directory. */
+	public static final String FILE = "index";
+	/** The suffix of the temporary file that is written before being renamed over the index. */
+	private static final String TEMP_SUFFIX = ".tmp";
+
+	/** The magic number at the start of the index file. */
+	private static final int MAGIC = 0x6E4C4958;
+	/** The version of the index file format. */
+	private static final int VERSION = 1;
+
+	/** How long to wait after the latest change before writing the index, in milliseconds. */
+	private static final long SAVE_DELAY = 1000;
+
+	/** The sketchbook that this index describes. */
+	private final Project project;
+	/** Schedules the debounced saves on the UI thread. */
+	private final Handler handler = new Handler(Looper.getMainLooper());
+	/** The generation of the most recent snapshot. Each snapshot gets a greater generation than the last.
+	 * Only used on the UI thread. */
+	private long snapshotGeneration = 0;
+	/** The generation of the snapshot most recently written to the file.
+	 * Used so that an older snapshot can never overwrite a newer one. */
+	private long writtenGeneration = 0;
+
+	/** Saves the index when the debounce delay expires. */
+	private final Runnable saveRunnable = new Runnable()
+	{
+		@Override
+		public void run()
+		{
+			saveAsync();
+		}
+	};
+	/** Saves the index as soon as the UI thread gets to it. Kept apart from {@link #saveRunnable} so debouncing doesn't delay it. */
+	private final Runnable immediateSaveRunnable = new Runnable()
+	{
+		@Override
+		public void run()
+		{
+			saveAsync();
+		}
+	};
+
+	/**
+	 * A copy of the sketchbook details, ready to be written.
+	 */
+	private static final class Snapshot
+	{
+		/** The contents of the index file. */
+		final byte[] data;
+		/** The generation of the snapshot. */
+		final long generation;
+
+		Snapshot(byte[] data, long generation)
+		{
+			this.data = data;
+			this.generation = generation;
+		}
+	}
+
+	/**
+	 * Creates an index for the given sketchbook.
+	 * @param project The sketchbook.
+	 */
+	ProjectIndex(Project project)
+	{
+		this.project = project;
+	}
+
+	/**
+	 * Gets the index file in the working directory.
+	 * @return The index file.
+	 */
+	static File getFile()
+	{
+		return new File(IOUtils.getWorkingDirectory(), FILE);
+	}
+
+	/**
+	 * Schedules the index to be saved once no further changes have been made for {@link #SAVE_DELAY} milliseconds.
+	 */
+	void requestSave()
+	{
+		handler.removeCallbacks(saveRunnable);
+		handler.postDelayed(saveRunnable, SAVE_DELAY);
+	}
+
+	/**
+	 * Schedules the index to be saved as soon as possible, without waiting for further changes.
+	 * May be called from any thread. The snapshot is taken on the UI thread and written in the background.
+	 */
+	void requestImmediateSave()
+	{
+		handler.post(immediateSaveRunnable);
+	}
+
+	/**
+	 * Cancels any pending save.
+	 */
+	void cancelPendingSave()
+	{
+		handler.removeCallbacks(saveRunnable);
+		handler.removeCallbacks(immediateSaveRunnable);
+	}
+
+	/**
+	 * Saves the index immediately, cancelling any pending save.
+	 * Must be called from the UI thread.
+	 * @return True if the index was written successfully; false otherwise.
+	 */
+	boolean save()
+	{
+		cancelPendingSave();
+		try
+		{
+			Snapshot snapshot = snapshot();
+			return write(snapshot.data, snapshot.generation);
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+			return false;
+		}
+	}
+
+	/**
+	 * Takes a snapshot of the sketchbook on the UI thread and writes it in the background.
+	 */
+	private void saveAsync()
+	{
+		final Snapshot snapshot;
+		try
+		{
+			snapshot = snapshot();
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+			return;
+		}
+
+		new AsyncTask<Void, Void, Void>()
+		{
+			@Override
+			protected Void doInBackground(Void... params)
+			{
+				write(snapshot.data, snapshot.generation);
+				return null;
+			}
+		}.execute();
+	}
+
+	/**
+	 * Serializes the sketchbook details and gives them the next generation.
+	 * Must be called from the UI thread, which is the only thread that changes the sheet list.
+	 * @return The snapshot.
+	 * @throws IOException
+	 */
+	private Snapshot snapshot() throws IOException
+	{
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		DataOutputStream dos = new DataOutputStream(bos);
+		dos.writeInt(MAGIC); // Magic number
+		dos.writeInt(VERSION); // Version
+		dos.writeUTF(project.getName()); // Name of project
+		dos.writeInt(project.getCurrentSheetIndex()); // Current sheet
+		dos.writeLong(project.getStrokeCount()); // Stroke count
+
+		int sheets = project.getTotalSheets();
+		dos.writeInt(sheets); // Number of sheets
+		for (int s = 0; s < sheets; s++) // Sheets, in order
+		{
+			Project.Sheet sheet = project.getSheetAt(s);
+			dos.writeLong(sheet.getId()); // Sheet ID
+			dos.writeUTF(sheet.getName()); // Name of sheet
+			dos.writeFloat(sheet.getCameraX()); dos.writeFloat(sheet.getCameraY()); // Camera position
+			dos.writeFloat(sheet.getCameraZoom()); // Camera zoom
+			sheet.writeOccupiedChunks(dos); // Occupied chunks
+			sheet.writeChunkReach(dos); // Chunk reach
+		}
+		dos.flush();
+		return new Snapshot(bos.toByteArray(), ++snapshotGeneration);
+	}
+
+	/**
+	 * Writes a snapshot atomically, unless a newer snapshot has already been written.
+	 * @param data The snapshot.
+	 * @param generation The generation of the snapshot.
+	 * @return True if the snapshot was written or superseded; false if writing failed.
+	 */
+	private synchronized boolean write(byte[] data, long generation)
+	{
+		if (generation < writtenGeneration) return true;
+
+		File file = getFile();
+		File tempFile = new File(file.getParentFile(), FILE + TEMP_SUFFIX);
+		FileOutputStream fos = null;
+		try
+		{
+			fos = new FileOutputStream(tempFile);
+			fos.write(data);
+			fos.flush();
+			fos.getFD().sync();
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+			return false;
+		}
+		finally
+		{
+			if (fos != null)
+			{
+				try
+				{
+					fos.close();
+				}
+				catch (IOException e)
+				{
+					// Disregard exception.
+				}
+			}
+		}
+
+		if (!tempFile.renameTo(file))
+		{
+			tempFile.delete();
+			return false;
+		}
+		writtenGeneration = generation;
+		return true;
+	}
+
+	/**
+	 * Reads the index file and restores the sketchbook details and sheets from it.
+	 * @return True if the index was read; false if it is missing or unreadable.
+	 */
+	boolean read()
+	{
+		File file = getFile();
+		if (!file.exists()) return false;
+
+		DataInputStream dis = null;
+		try
+		{
+			dis = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			if (dis.readInt() != MAGIC) return false; // Magic number
+			int version = dis.readInt(); // Version
+			if (version != VERSION) return false;
+
+			String name = dis.readUTF(); // Name of project
+			int currentSheet = dis.readInt(); // Current sheet
+			long strokeCount = dis.readLong(); // Stroke count
+
+			int totalSheets = dis.readInt(); // Number of sheets
+			ArrayList<Project.Sheet> sheets = new ArrayList<>(totalSheets);
+			for (int s = 0; s < totalSheets; s++) // Sheets, in order
+			{
+				long id = dis.readLong(); // Sheet ID
+				String sheetName = dis.readUTF(); // Name of sheet
+				float cameraX = dis.readFloat(); float cameraY = dis.readFloat(); // Camera position
+				float cameraZoom = dis.readFloat(); // Camera zoom
+				ChunkOccupancy occupiedChunks = ChunkOccupancy.read(dis); // Occupied chunks
+				boolean isChunkReachKnown = dis.readBoolean(); // Whether the chunk reach covers every chunk
+				ChunkReach chunkReach = ChunkReach.read(dis); // Chunk reach
+				sheets.add(new Project.Sheet(id, sheetName, cameraX, cameraY, cameraZoom, occupiedChunks, chunkReach, isChunkReachKnown));
+			}
+
+			project.restoreFromIndex(name, currentSheet, strokeCount, sheets);
+			return true;
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+			return false;
+		}
+		finally
+		{
+			if (dis != null)
+			{
+				try
+				{
+					dis.close();
+				}
+				catch (IOException e)
+				{
+					// Disregard exception.
+				}
+			}
+		}
+	}
+}
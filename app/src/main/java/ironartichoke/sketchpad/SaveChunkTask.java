@@ -11,6 +11,11 @@ class SaveChunkTask extends AsyncTask<Void, Void, Void>
 	private Project project;
 	/** The list of chunk IDs which correspond to the chunks that are to be saved. */
 	private long[] chunkIds;
+	/** The sheet that was current when the task was created, which the chunks belong to. */
+	private Project.Sheet sheet;
+	/** The generation of the loaded chunks when the task was created.
+	 * @see Project#getLoadedChunksGeneration() */
+	private int generation;
 	/** Whether the chunks should be unloaded after saving. */
 	private boolean unload;
 
@@ -24,13 +29,15 @@ class SaveChunkTask extends AsyncTask<Void, Void, Void>
 	{
 		this.project = project;
 		this.chunkIds = chunkIds;
+		this.sheet = project.getCurrentSheet();
+		this.generation = project.getLoadedChunksGeneration();
 		this.unload = unload;
 	}
 
 	@Override
 	protected Void doInBackground(Void... params)
 	{
-		project.saveChunks(chunkIds, unload);
+		project.saveChunks(sheet, generation, chunkIds, unload);
 		return null;
 	}
 }
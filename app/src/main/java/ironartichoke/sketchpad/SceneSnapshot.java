@@ -0,0 +1,124 @@
+package ironartichoke.sketchpad;
+
+import android.opengl.GLES20;
+import android.opengl.Matrix;
+
+/**
+ * A copy of the rendered canvas, kept in a texture the size of the viewport.
+ * <br\><br\>
+ * While the user is drawing, the camera doesn't move and the loaded strokes rarely change, so the canvas is rendered
+ * into the snapshot once and every later frame only draws the snapshot and the stroke in progress.
+ * This keeps the cost of a frame independent of the number of strokes on the sheet.
+ * <br\><br\>
+ * This class must only be used from the OpenGL thread.
+ */
+final class SceneSnapshot
+{
+	/** The matrix that maps the snapshot quad onto the whole viewport. */
+	private static final float[] IDENTITY_MATRIX = new float[16];
+	static
+	{
+		Matrix.setIdentityM(IDENTITY_MATRIX, 0);
+	}
+
+	/** The texture holding the snapshot, or 0 if it hasn't been created yet. */
+	private int texture = 0;
+	/** The framebuffer that the snapshot is rendered through, or 0 if it hasn't been created yet. */
+	private int framebuffer = 0;
+	/** The width of the texture. */
+	private int width = 0;
+	/** The height of the texture. */
+	private int height = 0;
+	/** Whether the texture holds a snapshot that can be drawn. */
+	private boolean isValid = false;
+	/** The version of the loaded strokes when the snapshot was captured. */
+	private int version;
+
+	/**
+	 * Checks whether the snapshot can be drawn instead of the canvas.
+	 * @param version The current version of the loaded strokes.
+	 * @return True if the snapshot is up to date; false if it must be captured again.
+	 * @see Project#getLoadedStrokesVersion()
+	 */
+	boolean isCurrent(int version)
+	{
+		return isValid && this.version == version;
+	}
+
+	/**
+	 * Starts capturing a snapshot. Everything drawn until {@link #endCapture(int, int, int)} goes into the snapshot.
+	 * @param viewportWidth The width of the viewport.
+	 * @param viewportHeight The height of the viewport.
+	 */
+	void beginCapture(int viewportWidth, int viewportHeight)
+	{
+		int[] handles = new int[1];
+		if (texture == 0 || width != viewportWidth || height != viewportHeight)
+		{
+			if (texture != 0)
+			{
+				handles[0] = texture;
+				GLES20.glDeleteTextures(1, handles, 0);
+			}
+			GLES20.glGenTextures(1, handles, 0);
+			texture = handles[0];
+			width = viewportWidth;
+			height = viewportHeight;
+			GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, texture);
+			GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGB, width, height, 0, GLES20.GL_RGB, GLES20.GL_UNSIGNED_SHORT_5_6_5, null);
+			GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_NEAREST);
+			GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_NEAREST);
+			GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+			GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+		}
+		if (framebuffer == 0)
+		{
+			GLES20.glGenFramebuffers(1, handles, 0);
+			framebuffer = handles[0];
+		}
+		GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, framebuffer);
+		GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0, GLES20.GL_TEXTURE_2D, texture, 0);
+		GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+	}
+
+	/**
+	 * Finishes capturing a snapshot and switches back to drawing onto the screen.
+	 * @param version The version of the loaded strokes that were drawn.
+	 * @param viewportWidth The width of the viewport.
+	 * @param viewportHeight The height of the viewport.
+	 */
+	void endCapture(int version, int viewportWidth, int viewportHeight)
+	{
+		GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+		GLES20.glViewport(0, 0, viewportWidth, viewportHeight);
+		this.version = version;
+		isValid = true;
+	}
+
+	/**
+	 * Draws the snapshot over the whole viewport.
+	 */
+	void draw()
+	{
+		GLProgram.drawTexture(texture, -1, -1, 1, 1, IDENTITY_MATRIX);
+	}
+
+	/**
+	 * Marks the snapshot as out of date, keeping its texture for the next capture.
+	 */
+	void invalidate()
+	{
+		isValid = false;
+	}
+
+	/**
+	 * Forgets the snapshot without deleting its texture.
+	 * This should be called when the OpenGL context is recreated, since the old texture no longer exists.
+	 */
+	void reset()
+	{
+		texture = 0;
+		framebuffer = 0;
+		isValid = false;
+	}
+}
@@ -0,0 +1,126 @@
+package ironartichoke.sketchpad;
+
+import android.support.v4.util.LongSparseArray;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * Keeps the loaded chunks of the sheets that were viewed most recently, so that switching back to one of them
+ * shows its strokes straight away instead of reading its chunks again.
+ * <br\><br\>
+ * A sheet's chunks are put here when another sheet becomes current and taken back out when it becomes current again.
+ * The chunks have been saved by then, so a sheet can be dropped from the cache at any time without losing strokes.
+ * A cached sheet may still be compacted, but once the {@link SheetCompactor} writes to it, the cached chunks no longer
+ * match its files, so the compactor drops the sheet from the cache before its first write.
+ * The least recently viewed sheets are dropped first, once the cached chunks use more than {@link #MEMORY_BUDGET}
+ * bytes or more than {@link #MAX_SHEETS} sheets are cached. The vertex buffers of the chunks' strokes are kept
+ * with them, so they don't have to be expanded again either.
+ * <br\><br\>
+ * This class is thread-safe, since sheets are dropped from the compactor's thread.
+ */
+final class SheetCache
+{
+	/** The largest number of bytes that the strokes of the cached chunks may use. */
+	static final long MEMORY_BUDGET = 24L * 1024 * 1024;
+	/** The largest number of sheets whose chunks are kept. */
+	static final int MAX_SHEETS = 4;
+
+	/** The cached sheets, the most recently viewed first. */
+	private final LinkedList<Entry> entries = new LinkedList<>();
+	/** The approximate number of bytes used by all cached chunks. */
+	private long memoryUsage = 0;
+
+	/**
+	 * The loaded chunks of one sheet.
+	 */
+	private static final class Entry
+	{
+		final Project.Sheet sheet;
+		final LongSparseArray<Project.Sheet.Chunk> chunks;
+		/** The approximate number of bytes used by the chunks. */
+		final long memoryUsage;
+
+		Entry(Project.Sheet sheet, LongSparseArray<Project.Sheet.Chunk> chunks)
+		{
+			this.sheet = sheet;
+			this.chunks = chunks;
+			long bytes = 0;
+			for (int c = 0; c < chunks.size(); c++)
+			{
+				bytes += chunks.valueAt(c).getStrokes().getMemoryUsage();
+			}
+			memoryUsage = bytes;
+		}
+	}
+
+	/**
+	 * Keeps the loaded chunks of a sheet that is no longer current, dropping the least recently viewed sheets
+	 * if the cache is then over budget.
+	 * @param sheet The sheet.
+	 * @param chunks The saved chunks of the sheet. They mustn't be changed while they are cached.
+	 */
+	synchronized void put(Project.Sheet sheet, LongSparseArray<Project.Sheet.Chunk> chunks)
+	{
+		remove(sheet);
+		Entry entry = new Entry(sheet, chunks);
+		entries.addFirst(entry);
+		memoryUsage += entry.memoryUsage;
+
+		// A sheet whose chunks alone are over budget isn't kept either.
+		while (!entries.isEmpty() && (memoryUsage > MEMORY_BUDGET || entries.size() > MAX_SHEETS))
+		{
+			memoryUsage -= entries.removeLast().memoryUsage;
+		}
+	}
+
+	/**
+	 * Takes the cached chunks of a sheet that is becoming current out of the cache.
+	 * @param sheet The sheet.
+	 * @return The chunks, or <code>null</code> if the sheet isn't cached.
+	 */
+	synchronized LongSparseArray<Project.Sheet.Chunk> take(Project.Sheet sheet)
+	{
+		Entry entry = remove(sheet);
+		return entry == null ? null : entry.chunks;
+	}
+
+	/**
+	 * Drops the cached chunks of a sheet, if there are any.
+	 * @param sheet The sheet.
+	 * @return The dropped entry, or <code>null</code> if the sheet isn't cached.
+	 */
+	private synchronized Entry remove(Project.Sheet sheet)
+	{
+		Iterator<Entry> iterator = entries.iterator();
+		while (iterator.hasNext())
+		{
+			Entry entry = iterator.next();
+			if (entry.sheet == sheet)
+			{
+				iterator.remove();
+				memoryUsage -= entry.memoryUsage;
+				return entry;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Drops the cached chunks of a sheet that is being deleted, or whose files are about to be changed.
+	 * @param sheet The sheet.
+	 */
+	synchronized void drop(Project.Sheet sheet)
+	{
+		remove(sheet);
+	}
+
+	/**
+	 * Drops every cached sheet.
+	 */
+	synchronized void clear()
+	{
+		entries.clear();
+		memoryUsage = 0;
+	}
+}
@@ -0,0 +1,697 @@
+package ironartichoke.sketchpad;
+
+import android.util.Log;
+
+import com.carrotsearch.hppc.IntArrayList;
+import com.carrotsearch.hppc.LongObjectOpenHashMap;
+import com.carrotsearch.hppc.LongOpenHashSet;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compacts sheets in the background by dropping the strokes that eraser strokes from earlier versions have painted over.
+ * <br\><br\>
+ * Before erasing became geometric, an eraser stroke was saved like any other stroke and drawn in the background color,
+ * so everything under it was still loaded, drawn and saved. Compaction drops every stroke whose drawn area lies entirely
+ * under later eraser strokes, then every eraser stroke that no longer has an earlier stroke under it.
+ * Neither changes how the sheet looks, and strokes that are only partly painted over are kept as they are.
+ * <br\><br\>
+ * Coverage is checked conservatively: samples along the centerline of a stroke, at most a pixel apart, must each lie
+ * inside a later eraser stroke by at least the stroke's half-thickness plus a pixel.
+ * <br\><br\>
+ * A sheet is compacted in steps on a background thread, one chunk at a time. A chunk is checked against the eraser
+ * strokes of the chunks around it, found from the chunks that strokes reach into, and the {@link StrokeIndex} of each
+ * of those chunks finds the eraser strokes that may cover a stroke, so only a few chunks are ever held in memory.
+ * Every chunk is first checked for strokes that are painted over, then for eraser strokes left with nothing under them,
+ * so the sheet looks the same after every step. Each step reads or writes about {@link #BYTES_PER_STEP} bytes,
+ * or more for a single crowded chunk, and is followed by a pause, so compaction doesn't compete with drawing for storage.
+ * If the sheet was saved before the chunks that strokes reach into were recorded (see
+ * {@link Project.Sheet#isChunkReachKnown()}), they are recorded first, and they are updated for every chunk that is written.
+ * What was dropped is written to the log once the sheet is done, since the sheet isn't on screen while it is compacted.
+ * <br\><br\>
+ * Only sheets other than the current one are compacted, and compaction is cancelled before a sheet becomes current or is deleted.
+ */
+final class SheetCompactor
+{
+	/** The tag of the compaction reports in the log. */
+	private static final String TAG = "SheetCompactor";
+	/** The number of bytes that are read or written in each step. */
+	private static final int BYTES_PER_STEP = 256 * 1024;
+	/** The pause after each step, in milliseconds. */
+	private static final long STEP_DELAY = 100;
+	/** The greatest distance between the samples taken along a stroke, in pixels. */
+	private static final float SAMPLE_SPACING = 1f;
+	/** The extra distance, in pixels, by which every sample must lie inside an eraser stroke. */
+	private static final float COVERAGE_MARGIN = 1f;
+
+	/** The stage of a job that records the chunks that strokes reach into. */
+	private static final int STAGE_RECORDING_REACH = 0;
+	/** The stage of a job that drops painted over strokes. */
+	private static final int STAGE_DROPPING_STROKES = 1;
+	/** The stage of a job that drops eraser strokes with nothing left under them. */
+	private static final int STAGE_DROPPING_ERASERS = 2;
+
+	/** The sketchbook whose sheets are compacted. */
+	private final Project project;
+	/** The thread that compacts sheets, one step at a time. */
+	private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+	{
+		@Override
+		public Thread newThread(Runnable runnable)
+		{
+			Thread thread = new Thread(runnable, "SheetCompactor");
+			thread.setPriority(Thread.MIN_PRIORITY);
+			return thread;
+		}
+	});
+	/** Held while a job writes to its sheet, so that a cancelled job never writes again once {@link #cancel(Project.Sheet)} returns. */
+	private final Object writeLock = new Object();
+	/** The jobs waiting to be started. */
+	private final ArrayDeque<Job> queue = new ArrayDeque<>();
+	/** The job in progress, or <code>null</code> if there is none. */
+	private Job currentJob = null;
+
+	/**
+	 * The strokes removed from a sheet by compaction.
+	 */
+	static final class Report
+	{
+		/** The number of strokes dropped because they were painted over. */
+		int strokes;
+		/** The number of eraser strokes dropped. */
+		int erasers;
+		/** The number of vertices that no longer have to be drawn. */
+		long vertices;
+		/** The number of bytes that the sheet's chunks shrank by. */
+		long bytes;
+
+		/**
+		 * Counts the strokes and vertices that are dropped from a chunk.
+		 * @param chunk The chunk.
+		 */
+		void add(CompactedChunk chunk)
+		{
+			strokes += chunk.strokesRemoved;
+			erasers += chunk.erasersRemoved;
+			for (int s = 0; s < chunk.isRemoved.length; s++)
+			{
+				// Each point has a vertex on either side of the strip, and the first point is preceded by another pair.
+				if (chunk.isRemoved[s]) vertices += (chunk.strokes.getNumberOfPoints(s) + 1) * 2;
+			}
+		}
+
+		@Override
+		public String toString()
+		{
+			return "dropped " + strokes + " strokes and " + erasers + " eraser strokes, reclaiming "
+					+ vertices + " vertices and " + bytes + " bytes";
+		}
+	}
+
+	/**
+	 * A chunk of the sheet being compacted.
+	 */
+	static final class CompactedChunk
+	{
+		/** The chunk ID. */
+		final long id;
+		/** The strokes of the chunk as they were read. */
+		final PackedStrokes strokes;
+		/** The length of the saved chunk, in bytes. */
+		final int length;
+		/** Whether each stroke is dropped, by index. */
+		final boolean[] isRemoved;
+		/** The number of strokes that are dropped, not counting eraser strokes. */
+		int strokesRemoved = 0;
+		/** The number of eraser strokes that are dropped. */
+		int erasersRemoved = 0;
+
+		/**
+		 * Creates a chunk to be compacted.
+		 * @param id The chunk ID.
+		 * @param strokes The strokes of the chunk.
+		 * @param length The length of the saved chunk, in bytes.
+		 */
+		CompactedChunk(long id, PackedStrokes strokes, int length)
+		{
+			this.id = id;
+			this.strokes = strokes;
+			this.length = length;
+			isRemoved = new boolean[strokes.size()];
+		}
+	}
+
+	/**
+	 * An eraser stroke on the sheet being compacted.
+	 */
+	private static final class SavedEraser
+	{
+		/** The stroke ID. */
+		final long id;
+		/** The path of the eraser stroke. */
+		final StrokeEraser eraser;
+		/** The bounds of the drawn eraser stroke, in pixels. */
+		final float left, top, right, bottom;
+
+		SavedEraser(PackedStrokes strokes, int index)
+		{
+			id = strokes.getId(index);
+			eraser = new StrokeEraser(strokes, index);
+			float margin = getMargin(strokes, index);
+			left = strokes.getBoundLeft(index) - margin;
+			top = strokes.getBoundTop(index) - margin;
+			right = strokes.getBoundRight(index) + margin;
+			bottom = strokes.getBoundBottom(index) + margin;
+		}
+
+		/**
+		 * Checks whether the eraser stroke may overlap a stroke.
+		 * @param strokes The packed strokes.
+		 * @param index The index of the stroke.
+		 * @return True if the bounds of the drawn strokes overlap; false otherwise.
+		 */
+		boolean overlaps(PackedStrokes strokes, int index)
+		{
+			float margin = getMargin(strokes, index);
+			return strokes.getBoundLeft(index) - margin <= right && strokes.getBoundRight(index) + margin >= left
+					&& strokes.getBoundTop(index) - margin <= bottom && strokes.getBoundBottom(index) + margin >= top;
+		}
+	}
+
+	/**
+	 * The compaction of one sheet, which runs one step at a time.
+	 */
+	private final class Job implements Runnable
+	{
+		/** The sheet. */
+		final Project.Sheet sheet;
+		/** Whether the job has been cancelled. */
+		volatile boolean isCancelled = false;
+		/** The IDs of the sheet's saved chunks. */
+		private long[] chunkIds;
+		/** The stage of the job, one of the <code>STAGE_</code> constants. */
+		private int stage = STAGE_RECORDING_REACH;
+		/** The index of the next chunk to check in the current stage. */
+		private int next = 0;
+		/** The chunks that the strokes of each chunk reach into, by index, while they are being recorded. */
+		private long[][] reachedChunkIds;
+		/** The chunks read during the current step, by ID. A missing chunk is kept as <code>null</code>. */
+		private final LongObjectOpenHashMap<CompactedChunk> readChunks = new LongObjectOpenHashMap<>();
+		/** The number of bytes read or written during the current step. */
+		private int bytes;
+		/** What the job has dropped so far. */
+		private final Report report = new Report();
+
+		Job(Project.Sheet sheet)
+		{
+			this.sheet = sheet;
+		}
+
+		@Override
+		public void run()
+		{
+			boolean isDone;
+			try
+			{
+				isDone = isCancelled || step();
+			}
+			catch (IOException e)
+			{
+				e.printStackTrace();
+				isDone = true;
+			}
+			readChunks.clear();
+
+			if (isDone)
+			{
+				if (!isCancelled && report.strokes + report.erasers > 0) Log.i(TAG, "Sheet " + sheet.getId() + ": " + report);
+				startNextJob(this);
+			}
+			else
+			{
+				executor.schedule(this, STEP_DELAY, TimeUnit.MILLISECONDS);
+			}
+		}
+
+		/**
+		 * Checks the next few chunks and writes back the ones that changed.
+		 * @return True if the job is finished; false otherwise.
+		 * @throws IOException
+		 */
+		private boolean step() throws IOException
+		{
+			ChunkPack pack = sheet.getChunkPack();
+			if (chunkIds == null)
+			{
+				chunkIds = pack.getChunkIds();
+				if (sheet.isChunkReachKnown())
+				{
+					stage = STAGE_DROPPING_STROKES;
+				}
+				else
+				{
+					reachedChunkIds = new long[chunkIds.length][];
+				}
+			}
+
+			bytes = 0;
+			List<CompactedChunk> changedChunks = new ArrayList<>();
+			while (next < chunkIds.length && bytes < BYTES_PER_STEP)
+			{
+				long chunkId = chunkIds[next];
+				if (stage == STAGE_RECORDING_REACH)
+				{
+					CompactedChunk chunk = readChunk(pack, chunkId);
+					reachedChunkIds[next] = chunk != null ? chunk.strokes.getReachedChunks() : new long[0];
+				}
+				else
+				{
+					CompactedChunk chunk = readChunk(pack, chunkId);
+					if (chunk != null)
+					{
+						List<PackedStrokes> neighborhood = readNeighborhood(pack, chunkId);
+						if (stage == STAGE_DROPPING_STROKES)
+						{
+							findPaintedOverStrokes(chunk, neighborhood);
+						}
+						else
+						{
+							findUnneededErasers(chunk, neighborhood);
+						}
+						if (chunk.strokesRemoved + chunk.erasersRemoved > 0) changedChunks.add(chunk);
+					}
+				}
+				next++;
+			}
+
+			if (stage == STAGE_RECORDING_REACH)
+			{
+				if (next == chunkIds.length) recordChunkReach();
+			}
+			else if (!changedChunks.isEmpty())
+			{
+				write(pack, changedChunks);
+			}
+			if (isCancelled || next < chunkIds.length) return isCancelled;
+
+			// Every stage starts on a new step, so that it reads the chunks as the previous stage left them.
+			stage++;
+			next = 0;
+			return stage > STAGE_DROPPING_ERASERS;
+		}
+
+		/**
+		 * Reads a chunk of the sheet, unless it has already been read during this step.
+		 * @param pack The sheet's chunk pack.
+		 * @param chunkId The chunk ID.
+		 * @return The chunk, or <code>null</code> if it isn't saved.
+		 * @throws IOException
+		 */
+		private CompactedChunk readChunk(ChunkPack pack, long chunkId) throws IOException
+		{
+			if (readChunks.containsKey(chunkId)) return readChunks.lget();
+
+			byte[] data = pack.read(chunkId);
+			CompactedChunk chunk = null;
+			if (data != null)
+			{
+				chunk = new CompactedChunk(chunkId, StrokeCodec.decodeChunk(data).getStrokes(), data.length);
+				bytes += data.length;
+			}
+			readChunks.put(chunkId, chunk);
+			return chunk;
+		}
+
+		/**
+		 * Reads the chunks whose strokes may overlap the strokes of a chunk: the chunk itself, the chunks that its strokes
+		 * reach into, and the chunks whose strokes reach into any of those.
+		 * @param pack The sheet's chunk pack.
+		 * @param chunkId The chunk ID.
+		 * @return The strokes of the chunks.
+		 * @throws IOException
+		 */
+		private List<PackedStrokes> readNeighborhood(ChunkPack pack, long chunkId) throws IOException
+		{
+			LongOpenHashSet neighborIds = new LongOpenHashSet();
+			long[] reached = sheet.getReachedChunks(chunkId);
+			for (int r = -1; r < reached.length; r++)
+			{
+				long reachedChunkId = r < 0 ? chunkId : reached[r];
+				neighborIds.add(reachedChunkId);
+				for (long fromChunkId : sheet.getChunksReachingInto(reachedChunkId))
+				{
+					neighborIds.add(fromChunkId);
+				}
+			}
+
+			List<PackedStrokes> neighborhood = new ArrayList<>();
+			long[] ids = neighborIds.toArray();
+			for (long id : ids)
+			{
+				CompactedChunk neighbor = readChunk(pack, id);
+				if (neighbor != null) neighborhood.add(neighbor.strokes);
+			}
+			return neighborhood;
+		}
+
+		/**
+		 * Records the chunks that the strokes of every chunk reach into.
+		 */
+		private void recordChunkReach()
+		{
+			synchronized (writeLock)
+			{
+				if (isCancelled) return;
+
+				for (int c = 0; c < chunkIds.length; c++)
+				{
+					sheet.setReachedChunks(chunkIds[c], reachedChunkIds[c]);
+				}
+				sheet.setChunkReachKnown();
+			}
+			reachedChunkIds = null;
+			project.requestMetadataSave();
+		}
+
+		/**
+		 * Writes back the chunks that strokes were dropped from.
+		 * @param pack The sheet's chunk pack.
+		 * @param changedChunks The chunks.
+		 * @throws IOException
+		 */
+		private void write(ChunkPack pack, List<CompactedChunk> changedChunks) throws IOException
+		{
+			// Encode the chunks first, so that the sheet's files are only locked while they are written.
+			List<byte[]> encodedChunks = new ArrayList<>();
+			List<long[]> reachedChunkIds = new ArrayList<>();
+			for (CompactedChunk chunk : changedChunks)
+			{
+				PackedStrokes remaining = chunk.strokes.remove(chunk.isRemoved);
+				encodedChunks.add(remaining.size() > 0 ? StrokeCodec.encodeChunk(new Project.Sheet.Chunk(chunk.id, remaining)) : null);
+				reachedChunkIds.add(remaining.getReachedChunks());
+			}
+
+			boolean isIndexChanged = false;
+			synchronized (writeLock)
+			{
+				if (isCancelled) return;
+
+				// Chunks kept in memory for switching back to the sheet would no longer match its files.
+				project.dropCachedChunks(sheet);
+				for (int c = 0; c < changedChunks.size(); c++)
+				{
+					CompactedChunk chunk = changedChunks.get(c);
+					byte[] data = encodedChunks.get(c);
+					if (data != null)
+					{
+						pack.write(chunk.id, data);
+					}
+					else
+					{
+						pack.remove(chunk.id);
+						isIndexChanged |= sheet.setChunkOccupied(chunk.id, false);
+					}
+					isIndexChanged |= sheet.setReachedChunks(chunk.id, reachedChunkIds.get(c));
+
+					int length = data != null ? data.length : 0;
+					bytes += length;
+					report.add(chunk);
+					report.bytes += chunk.length - length;
+				}
+				pack.commit();
+			}
+			if (isIndexChanged) project.requestMetadataSave();
+		}
+	}
+
+	/**
+	 * Creates a compactor for the sheets of the given sketchbook.
+	 * @param project The sketchbook.
+	 */
+	SheetCompactor(Project project)
+	{
+		this.project = project;
+	}
+
+	/**
+	 * Schedules a sheet to be compacted, unless it already is.
+	 * The sheet must not be the current sheet, and all of its chunks must have been saved.
+	 * @param sheet The sheet.
+	 */
+	synchronized void schedule(Project.Sheet sheet)
+	{
+		if (currentJob != null && currentJob.sheet == sheet && !currentJob.isCancelled) return;
+		for (Job job : queue)
+		{
+			if (job.sheet == sheet && !job.isCancelled) return;
+		}
+
+		queue.add(new Job(sheet));
+		if (currentJob == null) startNextJob(null);
+	}
+
+	/**
+	 * Cancels the compaction of a sheet. Once this returns, nothing more is written to the sheet.
+	 * Chunks that have already been written stay compacted, which doesn't change how the sheet looks.
+	 * @param sheet The sheet.
+	 */
+	void cancel(Project.Sheet sheet)
+	{
+		synchronized (this)
+		{
+			for (Job job : queue)
+			{
+				if (job.sheet == sheet) job.isCancelled = true;
+			}
+			if (currentJob != null && currentJob.sheet == sheet) currentJob.isCancelled = true;
+		}
+
+		// Wait for a write in progress.
+		synchronized (writeLock) {}
+	}
+
+	/**
+	 * Cancels the compaction of every sheet. Once this returns, nothing more is written to any sheet.
+	 */
+	void cancelAll()
+	{
+		synchronized (this)
+		{
+			for (Job job : queue)
+			{
+				job.isCancelled = true;
+			}
+			if (currentJob != null) currentJob.isCancelled = true;
+		}
+
+		synchronized (writeLock) {}
+	}
+
+	/**
+	 * Gets the lock that is held while a sheet is being written to.
+	 * Holding it keeps compaction from changing any sheet's files, e.g. while the sketchbook is being archived.
+	 * @return The lock.
+	 */
+	Object getWriteLock()
+	{
+		return writeLock;
+	}
+
+	/**
+	 * Starts the next job in the queue, if there is one.
+	 * @param finishedJob The job that has just finished, or <code>null</code> if no job was in progress.
+	 */
+	private synchronized void startNextJob(Job finishedJob)
+	{
+		if (currentJob != finishedJob) return;
+
+		currentJob = queue.poll();
+		if (currentJob != null) executor.execute(currentJob);
+	}
+
+	/**
+	 * Marks the strokes of a chunk that are painted over by later eraser strokes.
+	 * @param chunk The chunk.
+	 * @param neighborhood The strokes of every chunk whose strokes may overlap those of the chunk, including its own.
+	 */
+	static void findPaintedOverStrokes(CompactedChunk chunk, List<PackedStrokes> neighborhood)
+	{
+		// Each eraser stroke is only prepared once, however many strokes it may cover.
+		LongObjectOpenHashMap<SavedEraser> savedErasers = new LongObjectOpenHashMap<>();
+		IntArrayList found = new IntArrayList();
+		List<SavedEraser> candidates = new ArrayList<>();
+		PackedStrokes strokes = chunk.strokes;
+		for (int s = 0; s < strokes.size(); s++)
+		{
+			if (strokes.isEraser(s)) continue;
+
+			candidates.clear();
+			long id = strokes.getId(s);
+			float margin = getMargin(strokes, s);
+			for (PackedStrokes neighbor : neighborhood)
+			{
+				found.clear();
+				neighbor.findStrokes((int) Math.floor(strokes.getBoundLeft(s) - margin), (int) Math.floor(strokes.getBoundTop(s) - margin),
+						(int) Math.ceil(strokes.getBoundRight(s) + margin), (int) Math.ceil(strokes.getBoundBottom(s) + margin), found);
+				for (int f = 0; f < found.size(); f++)
+				{
+					int e = found.get(f);
+					if (!neighbor.isEraser(e) || neighbor.getId(e) <= id) continue;
+
+					SavedEraser eraser = savedErasers.get(neighbor.getId(e));
+					if (eraser == null)
+					{
+						eraser = new SavedEraser(neighbor, e);
+						savedErasers.put(eraser.id, eraser);
+					}
+					if (eraser.overlaps(strokes, s)) candidates.add(eraser);
+				}
+			}
+			if (!candidates.isEmpty() && isDrawnOver(strokes, s, candidates))
+			{
+				chunk.isRemoved[s] = true;
+				chunk.strokesRemoved++;
+			}
+		}
+	}
+
+	/**
+	 * Marks the eraser strokes of a chunk that don't overlap any earlier stroke that is kept.
+	 * @param chunk The chunk.
+	 * @param neighborhood The strokes of every chunk whose strokes may overlap those of the chunk, including its own.
+	 *                     Strokes of the chunk itself that are already marked are left out.
+	 */
+	static void findUnneededErasers(CompactedChunk chunk, List<PackedStrokes> neighborhood)
+	{
+		IntArrayList found = new IntArrayList();
+		PackedStrokes strokes = chunk.strokes;
+		for (int s = 0; s < strokes.size(); s++)
+		{
+			if (!strokes.isEraser(s)) continue;
+
+			SavedEraser eraser = new SavedEraser(strokes, s);
+			if (!isOverAnyStroke(eraser, chunk, neighborhood, found))
+			{
+				chunk.isRemoved[s] = true;
+				chunk.erasersRemoved++;
+			}
+		}
+	}
+
+	/**
+	 * Checks whether a stroke is painted over by eraser strokes.
+	 * @param strokes The packed strokes.
+	 * @param index The index of the stroke.
+	 * @param erasers The later eraser strokes that may cover it.
+	 * @return True if every sample along the stroke is well inside one of the eraser strokes; false otherwise.
+	 */
+	private static boolean isDrawnOver(PackedStrokes strokes, int index, List<SavedEraser> erasers)
+	{
+		float inset = Stroke.getRealThickness(strokes.getThicknessByte(index), false) * 0.5f + SAMPLE_SPACING * 0.5f + COVERAGE_MARGIN;
+		int points = strokes.getNumberOfPoints(index);
+		float prevX = 0;
+		float prevY = 0;
+		for (int p = 0; p < points; p++)
+		{
+			float x = strokes.getCoordX(index, p);
+			float y = strokes.getCoordY(index, p);
+			if (p == 0)
+			{
+				if (!isDrawnOver(x, y, inset, erasers)) return false;
+			}
+			else
+			{
+				float segmentX = x - prevX;
+				float segmentY = y - prevY;
+				int samples = Math.max(1, (int) Math.ceil(Math.sqrt(segmentX * segmentX + segmentY * segmentY) / SAMPLE_SPACING));
+				for (int k = 1; k <= samples; k++)
+				{
+					if (!isDrawnOver(prevX + segmentX * k / samples, prevY + segmentY * k / samples, inset, erasers)) return false;
+				}
+			}
+			prevX = x;
+			prevY = y;
+		}
+		return true;
+	}
+
+	/**
+	 * Checks whether a point is painted over by any of the given eraser strokes.
+	 * The eraser stroke that covers the point is moved to the front, since it is likely to cover the next point as well.
+	 * @param x The X coordinate, in pixels.
+	 * @param y The Y coordinate, in pixels.
+	 * @param inset The distance, in pixels, that the point must be from the edge of the eraser stroke.
+	 * @param erasers The eraser strokes.
+	 * @return True if the point is covered; false otherwise.
+	 */
+	private static boolean isDrawnOver(float x, float y, float inset, List<SavedEraser> erasers)
+	{
+		for (int e = 0; e < erasers.size(); e++)
+		{
+			if (erasers.get(e).eraser.isDrawnOver(x, y, inset))
+			{
+				if (e > 0) erasers.add(0, erasers.remove(e));
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Checks whether an eraser stroke may paint over any earlier stroke that is kept.
+	 * @param eraser The eraser stroke.
+	 * @param chunk The chunk that the eraser stroke is saved in.
+	 * @param neighborhood The strokes of every chunk whose strokes may overlap the eraser stroke.
+	 * @param found A list to find the strokes in.
+	 * @return True if the eraser stroke overlaps an earlier stroke; false otherwise.
+	 */
+	private static boolean isOverAnyStroke(SavedEraser eraser, CompactedChunk chunk, List<PackedStrokes> neighborhood, IntArrayList found)
+	{
+		for (PackedStrokes strokes : neighborhood)
+		{
+			found.clear();
+			strokes.findStrokes((int) Math.floor(eraser.left), (int) Math.floor(eraser.top),
+					(int) Math.ceil(eraser.right), (int) Math.ceil(eraser.bottom), found);
+			for (int f = 0; f < found.size(); f++)
+			{
+				int s = found.get(f);
+				if (strokes == chunk.strokes && chunk.isRemoved[s]) continue;
+				if (!strokes.isEraser(s) && strokes.getId(s) < eraser.id && eraser.overlaps(strokes, s)) return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Counts the strokes and vertices that are dropped from the given chunks.
+	 * @param chunks The chunks.
+	 * @return The report, without the number of bytes.
+	 */
+	static Report createReport(List<CompactedChunk> chunks)
+	{
+		Report report = new Report();
+		for (CompactedChunk chunk : chunks)
+		{
+			report.add(chunk);
+		}
+		return report;
+	}
+
+	/**
+	 * Gets the distance that a drawn stroke can reach beyond its bounds.
+	 * @param strokes The packed strokes.
+	 * @param index The index of the stroke.
+	 * @return Half of the drawn thickness, plus a pixel since the bounds are truncated to whole pixels.
+	 */
+	private static float getMargin(PackedStrokes strokes, int index)
+	{
+		return Stroke.getRealThickness(strokes.getThicknessByte(index), strokes.isEraser(index)) * 0.5f + 1;
+	}
+}
@@ -14,7 +14,6 @@ import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
 
 import ironartichoke.sketchpad.externalizable.ExternalizableFloatArrayList;
-import ironartichoke.sketchpad.util.AppearanceUtils;
 import ironartichoke.sketchpad.util.Atan2;
 import ironartichoke.sketchpad.util.ChunkUtils;
 import ironartichoke.sketchpad.util.ColorUtils;
@@ -22,6 +21,10 @@ import ironartichoke.sketchpad.util.MathUtils;
 
 /**
  * A class representing a single canvas stroke.
+ * <br\><br\>
+ * A stroke that is being drawn holds its own points and triangle strip. Once it is finished, it is added to
+ * the {@link PackedStrokes} of its chunk, and from then on it is represented by a lightweight view of the
+ * packed data.
  */
 public class Stroke implements Externalizable, Comparable<Stroke>
 {
@@ -45,8 +48,13 @@ public class Stroke implements Externalizable, Comparable<Stroke>
 	/** The color of the stroke as drawn by OpenGL. */
 	private float[] color = ColorUtils.COLORS[colorByte];
 
-	/** The array of coordinates that make up the stroke. Contains alternating X and Y coordinates. */
+	/** The array of coordinates that make up the stroke. Contains alternating X and Y coordinates.
+	 * This is <code>null</code> if the stroke is a view of packed strokes. */
 	private ExternalizableFloatArrayList coords = new ExternalizableFloatArrayList();
+	/** The packed strokes that this stroke is a view of, or <code>null</code> if the stroke holds its own data. */
+	private PackedStrokes store;
+	/** The index of this stroke in {@link #store}. */
+	private int index;
 	/** The number of points in this stroke. */
 	private int numberOfPoints = 0;
 	/** The left bound of the stroke, i.e. the smallest X coordinate of all points on the stroke. */
@@ -66,16 +74,12 @@ public class Stroke implements Externalizable, Comparable<Stroke>
 	/** The thickness of eraser strokes compared to the thickness of pen strokes. */
 	private final static float THICKNESS_ERASER_MODIFIER = 8.0f;
 
-	/** The RGBA values for the color black. */
-	private final static float[] COLOR_BLACK = new float[]{0.0f, 0.0f, 0.0f, 1.0f};
-	/** The RGBA values for the color white. */
-	private final static float[] COLOR_WHITE = new float[]{1.0f, 1.0f, 1.0f, 1.0f};
 
 	/** The minimum length of the individual segments of a stroke. */
 	public static final float SEGMENT_THRESHOLD = 0.2f;
 	/** The angle threshold between to segments of a stroke.
 	 * Angles below this will prompt optimization.
-	 * @see #optimize(NotepadView) */
+	 * @see #optimize() */
 	private final static float SEGMENT_ANGLE_THRESHOLD = 0.01f;
 
 	/**
@@ -97,21 +101,41 @@ public class Stroke implements Externalizable, Comparable<Stroke>
 	}
 
 	/**
-	 * Gets the real thickness.
-	 * @return The real thickness.
+	 * Instantiates a view of a packed stroke.
+	 * @param store The packed strokes.
+	 * @param index The index of the stroke in the packed strokes.
+	 * @see PackedStrokes#getStroke(int)
+	 */
+	Stroke(PackedStrokes store, int index)
+	{
+		this.store = store;
+		this.index = index;
+		coords = null;
+		id = store.getId(index);
+		chunkId = store.getChunkId();
+		isEraser = store.isEraser(index);
+		boundLeft = store.getBoundLeft(index);
+		boundTop = store.getBoundTop(index);
+		boundRight = store.getBoundRight(index);
+		boundBottom = store.getBoundBottom(index);
+	}
+
+	/**
+	 * Gets the stroke ID.
+	 * @return The stroke ID.
 	 */
-	private float getThickness()
+	long getId()
 	{
-		return thickness;
+		return id;
 	}
 
 	/**
 	 * Gets the thickness as a byte.
 	 * @return The thickness byte value.
 	 */
-	private byte getThicknessByte()
+	byte getThicknessByte()
 	{
-		return thicknessByte;
+		return store == null ? thicknessByte : store.getThicknessByte(index);
 	}
 
 	/**
@@ -138,9 +162,9 @@ public class Stroke implements Externalizable, Comparable<Stroke>
 	 * Gets the color as a byte.
 	 * @return The color byte value.
 	 */
-	private byte getColorByte()
+	byte getColorByte()
 	{
-		return colorByte;
+		return store == null ? colorByte : store.getColorByte(index);
 	}
 
 	/**
@@ -156,11 +180,43 @@ public class Stroke implements Externalizable, Comparable<Stroke>
 
 	/**
 	 * Renders the stroke.
+	 * Finished strokes are drawn at a level of detail that suits the zoom, or not at all if they would be too small to see.
 	 * @param mvpMatrix The model-view-projection matrix.
+	 * @param zoom The camera zoom.
+	 */
+	public void draw(float[] mvpMatrix, float zoom)
+	{
+		if (store == null)
+		{
+			triangleStrip.draw(mvpMatrix);
+		}
+		else
+		{
+			store.draw(index, mvpMatrix, zoom);
+		}
+	}
+
+	/**
+	 * Gets the thickness of a stroke as drawn by OpenGL.
+	 * @param thicknessByte The thickness byte value.
+	 * @param isEraser Whether the stroke was drawn with the eraser tool.
+	 * @return The real thickness.
+	 */
+	static float getRealThickness(byte thicknessByte, boolean isEraser)
+	{
+		return THICKNESSES[thicknessByte] * (isEraser ? THICKNESS_ERASER_MODIFIER : 1);
+	}
+
+	/**
+	 * Gets the index of a stroke's color in the shader's palette.
+	 * The shader adapts black and eraser strokes to the current theme.
+	 * @param colorByte The color byte value.
+	 * @param isEraser Whether the stroke was drawn with the eraser tool.
+	 * @return The palette index.
 	 */
-	public void draw(float[] mvpMatrix)
+	static int getColorIndex(byte colorByte, boolean isEraser)
 	{
-		triangleStrip.draw(mvpMatrix);
+		return isEraser ? GLProgram.ERASER_COLOR_INDEX : colorByte;
 	}
 
 	/**
@@ -168,9 +224,9 @@ public class Stroke implements Externalizable, Comparable<Stroke>
 	 * @param index The index of the point.
 	 * @return The X coordinate of that point.
 	 */
-	private float getCoordX(int index)
+	float getCoordX(int index)
 	{
-		return coords.get(index * 2);
+		return store == null ? coords.get(index * 2) : store.getCoordX(this.index, index);
 	}
 
 	/**
@@ -178,9 +234,19 @@ public class Stroke implements Externalizable, Comparable<Stroke>
 	 * @param index The index of the point.
 	 * @return The Y coordinate of that point.
 	 */
-	private float getCoordY(int index)
+	float getCoordY(int index)
+	{
+		return store == null ? coords.get(index * 2 + 1) : store.getCoordY(this.index, index);
+	}
+
+	/**
+	 * Gets a coordinate of the stroke in grid steps.
+	 * @param coordIndex The index of the coordinate, where X and Y coordinates alternate.
+	 * @return The coordinate in steps of 1/{@link StrokeCodec#PRECISION} pixels.
+	 */
+	int getCoordSteps(int coordIndex)
 	{
-		return coords.get(index * 2 + 1);
+		return store == null ? StrokeCodec.quantize(coords.get(coordIndex)) : store.getCoordSteps(index, coordIndex);
 	}
 
 	/**
@@ -189,7 +255,7 @@ public class Stroke implements Externalizable, Comparable<Stroke>
 	 */
 	public int getNumberOfPoints()
 	{
-		return coords.size() / 2;
+		return store == null ? coords.size() / 2 : store.getNumberOfPoints(index);
 	}
 
 	/**
@@ -228,9 +294,9 @@ public class Stroke implements Externalizable, Comparable<Stroke>
 	}
 
 	/**
-	 * Updates the bounding box of the stroke, i.e. the minimum/maximum X/Y coordinates.
+	 * Updates the bounding box of the stroke, i.e. the minimum/maximum X/Y coordinates, and the chunk that contains it.
 	 */
-	private void updateBounds()
+	void updateBounds()
 	{
 		boundLeft = Integer.MAX_VALUE;
 		boundRight = Integer.MIN_VALUE;
@@ -267,13 +333,34 @@ public class Stroke implements Externalizable, Comparable<Stroke>
 		chunkId = getContainingChunk();
 	}
 
+	int getBoundLeft()
+	{
+		return boundLeft;
+	}
+
+	int getBoundRight()
+	{
+		return boundRight;
+	}
+
+	int getBoundTop()
+	{
+		return boundTop;
+	}
+
+	int getBoundBottom()
+	{
+		return boundBottom;
+	}
+
 	/**
 	 * Attempts to optimize the stroke by removing vertices that are collinear, or
-	 * near-collinear, to neighboring vertices. The triangle strip is regenerated to
-	 * reflect the new geometry.
-	 * @param view The <code>NotepadView</code>.
+	 * near-collinear, to neighboring vertices. The triangle strip is left as it is,
+	 * since the stroke is drawn from its packed form once it has been committed.
+	 * May be called from any thread, as long as no more points are added to the stroke.
+	 * @see StrokeCommitter
 	 */
-	public void optimize(NotepadView view)
+	public void optimize()
 	{
 		int initialVertices = getNumberOfPoints();
 
@@ -352,7 +439,6 @@ public class Stroke implements Externalizable, Comparable<Stroke>
 		}
 
 		updateBounds();
-		triangleStrip = new TriangleStrip(view, this, false);
 	}
 
 	/**
@@ -370,43 +456,36 @@ public class Stroke implements Externalizable, Comparable<Stroke>
 	/**
 	 * A class that represents a stroke's triangle strip.
 	 * This contains the geometry needed by OpenGL to render the stroke.
+	 * <br\><br\>
+	 * Each point on the stroke is stored twice, once for either side of the strip, and the vertex shader moves each
+	 * vertex away from the centerline by half of the stroke thickness. A phantom point before the first point gives the
+	 * first point the same direction as the first segment.
 	 */
 	public static class TriangleStrip
 	{
 		/** The stroke that this triangle strip belongs to. */
 		Stroke stroke;
 
-		/** A buffer of coordinates. */
+		/** A buffer of coordinates. For finished strokes, this is only created when the stroke is first drawn. */
 		FloatBuffer vertexBuffer;
 		/** The size of the vertex buffer. */
 		int vertexBufferSize = 0;
 		/** The number of points on the stroke (not vertices). */
 		int pointCount = 0;
 
-		/** The thickness of the stroke. */
+		/** The thickness of the stroke as drawn, including the eraser modifier. */
 		float thickness;
-		/** The RGBA color of the stroke. */
-		float[] color;
-
-		/** The pointer to the position variable in the vertex shader. */
-		int positionHandle;
-		/** The pointer to the color variable in the fragment shader. */
-		int colorHandle;
-		/** The pointer to the model-view-projection matrix in the vertex shader. */
-		int mvpMatrixHandle;
-
-		/** The number of coordinates per vertex. */
-		private static final int COORDS_PER_VERTEX = 3;
-		/** The number of vertices per point, i.e. per line segment (two triangles). */
-		private static final int VERTICES_PER_POINT = COORDS_PER_VERTEX * 2;
-		/** The vertex stride, i.e. 4 unique vertices per line segment. */
-		private static final int VERTEX_STRIDE = COORDS_PER_VERTEX * 4;
+		/** The index of the stroke's color in the shader's palette. */
+		int colorIndex;
+
 		/** The number of bytes per float. */
 		private static final int BYTES_PER_FLOAT = 4;
+		/** The number of floats per point, i.e. two vertices. */
+		private static final int FLOATS_PER_POINT = GLProgram.COMPONENTS_PER_VERTEX * 2;
 		/** The upper bound on the number of points in a stroke. */
 		public  static final int STROKE_POINT_LIMIT = 10000;
-		/** The upper bound on the number of floats in the vertex buffer. */
-		private static final int FLOAT_LIMIT = STROKE_POINT_LIMIT * VERTICES_PER_POINT;
+		/** The upper bound on the number of floats in the vertex buffer, including the phantom point. */
+		private static final int FLOAT_LIMIT = (STROKE_POINT_LIMIT + 1) * FLOATS_PER_POINT;
 
 		/**
 		 * Instantiates a triangle strip, optionally containing the given stroke's geometry.
@@ -419,47 +498,50 @@ public class Stroke implements Externalizable, Comparable<Stroke>
 			this.stroke = stroke;
 			updateThickness();
 			updateColor();
-			ByteBuffer bb = ByteBuffer.allocateDirect(isTemporary ? FLOAT_LIMIT * BYTES_PER_FLOAT : stroke.coords.size() * COORDS_PER_VERTEX * BYTES_PER_FLOAT);
+
+			if (isTemporary)
+			{
+				ByteBuffer bb = ByteBuffer.allocateDirect(FLOAT_LIMIT * BYTES_PER_FLOAT);
+				bb.order(ByteOrder.nativeOrder());
+				vertexBuffer = bb.asFloatBuffer();
+				vertexBuffer.position(0);
+			}
+		}
+
+		/**
+		 * Copies the backing stroke's points into the vertex buffer, unless this has already been done.
+		 */
+		private void ensureVertices()
+		{
+			if (vertexBuffer != null) return;
+
+			int points = stroke.getNumberOfPoints();
+			ByteBuffer bb = ByteBuffer.allocateDirect((points + 1) * FLOATS_PER_POINT * BYTES_PER_FLOAT);
 			bb.order(ByteOrder.nativeOrder());
 			vertexBuffer = bb.asFloatBuffer();
 			vertexBuffer.position(0);
 
-			if (!isTemporary)
+			for (int c = 0; c < points; c++)
 			{
-				int points = stroke.getNumberOfPoints();
-				for (int c = 0; c < points; c++)
-				{
-					addPoint(view, stroke.getCoordX(c), stroke.getCoordY(c), false);
-				}
+				addPoint(null, stroke.getCoordX(c), stroke.getCoordY(c), false);
 			}
 		}
 
 		/**
 		 * Copies the backing stroke's thickness.
+		 * Since the strip is widened in the vertex shader, this doesn't require the vertices to be rebuilt.
 		 */
 		public void updateThickness()
 		{
-			thickness = THICKNESSES[stroke.getThicknessByte()];
+			thickness = getRealThickness(stroke.getThicknessByte(), stroke.isEraser);
 		}
 
 		/**
-		 * Copies the backing stroke's color, incorporating the current theme.
+		 * Copies the backing stroke's color.
 		 */
 		public void updateColor()
 		{
-			byte colorByte = stroke.getColorByte();
-			if (stroke.isEraser)
-			{
-				color = AppearanceUtils.isThemeDark() ? COLOR_BLACK : COLOR_WHITE;
-			}
-			else if (colorByte == 0 && AppearanceUtils.isThemeDark())
-			{
-				color = COLOR_WHITE;
-			}
-			else
-			{
-				color = ColorUtils.COLORS[colorByte];
-			}
+			colorIndex = getColorIndex(stroke.getColorByte(), stroke.isEraser);
 		}
 
 		/**
@@ -468,23 +550,18 @@ public class Stroke implements Externalizable, Comparable<Stroke>
 		 */
 		public void draw(float[] mvpMatrix)
 		{
+			ensureVertices();
+			if (pointCount < 2) return;
+
+			// The vertices are absolute coordinates.
 			vertexBuffer.position(0);
-			positionHandle = GLES20.glGetAttribLocation(GLProgram.glProgram, "vPosition");
-			GLES20.glEnableVertexAttribArray(positionHandle);
-			GLES20.glVertexAttribPointer(positionHandle, COORDS_PER_VERTEX, GLES20.GL_FLOAT, false, VERTEX_STRIDE, vertexBuffer);
-			colorHandle = GLES20.glGetUniformLocation(GLProgram.glProgram, "vColor");
-			GLES20.glUniform4fv(colorHandle, 1, color, 0);
-			mvpMatrixHandle = GLES20.glGetUniformLocation(GLProgram.glProgram, "uMVPMatrix");
-			GLES20.glUniformMatrix4fv(mvpMatrixHandle, 1, false, mvpMatrix, 0);
-			GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, pointCount * 2);
-			GLES20.glDisableVertexAttribArray(positionHandle);
+			GLProgram.drawStrip(vertexBuffer, GLES20.GL_FLOAT, 0, pointCount * 2, 0, 0, 1, thickness * 0.5f, colorIndex, mvpMatrix);
 		}
 
 		/**
 		 * Adds the given vertices to the end of the triangle strip.
 		 * Note that vertices have 3 components.
-		 * @param vertices The vertices as a strided list of X,Y,Z coordinates.
-		 *                 The Z values are irrelevant due to the projection.
+		 * @param vertices The vertices as a strided list of X,Y coordinates and the side of the strip (1 or -1).
 		 */
 		public void addVertices(float[] vertices)
 		{
@@ -507,54 +584,38 @@ public class Stroke implements Externalizable, Comparable<Stroke>
 				stroke.addScreenCoords(view, x, y);
 			}
 
-			float rightHandVectorX;
-			float rightHandVectorY;
-			float vectorMagnitude;
-
-			// Has a point already been added?
-			if (pointCount > 0)
+			float[] vertices = null;
+			// Will this point form the first stroke segment?
+			if (pointCount == 1)
+			{
+				float x0 = stroke.getCoordX(0);
+				float y0 = stroke.getCoordY(0);
+				float x1 = stroke.getCoordX(1);
+				float y1 = stroke.getCoordY(1);
+				// The phantom point mirrors the second point around the first.
+				float phantomX = x0 * 2 - x1;
+				float phantomY = y0 * 2 - y1;
+				vertices = new float[]{
+						phantomX, phantomY, 1,
+						phantomX, phantomY, -1,
+						x0, y0, 1,
+						x0, y0, -1,
+						x1, y1, 1,
+						x1, y1, -1
+				};
+			}
+			// Has the first stroke segment already been formed?
+			else if (pointCount > 1)
+			{
+				float px = stroke.getCoordX(pointCount);
+				float py = stroke.getCoordY(pointCount);
+				vertices = new float[]{
+						px, py, 1,
+						px, py, -1
+				};
+			}
+			if (vertices != null)
 			{
-				// NOTE: The X and Y values are swapped deliberately!
-				rightHandVectorX = stroke.getCoordY(pointCount) - stroke.getCoordY(pointCount - 1);
-				rightHandVectorY = stroke.getCoordX(pointCount) - stroke.getCoordX(pointCount - 1);
-
-				vectorMagnitude = (float) Math.sqrt(rightHandVectorX * rightHandVectorX + rightHandVectorY * rightHandVectorY);
-
-				// Set the vector's magnitude to half of the stroke thickness
-				rightHandVectorX = (rightHandVectorX / vectorMagnitude) * stroke.getThickness() * (stroke.isEraser ? THICKNESS_ERASER_MODIFIER : 1) * 0.5f;
-				rightHandVectorY = (rightHandVectorY / vectorMagnitude) * stroke.getThickness() * (stroke.isEraser ? THICKNESS_ERASER_MODIFIER : 1) * -0.5f;
-
-				float[] vertices;
-				// Will this point form the first stroke segment?
-				if (pointCount == 1)
-				{
-					vertices = new float[]{
-							stroke.getCoordX(0) + rightHandVectorX,
-							stroke.getCoordY(0) + rightHandVectorY,
-							0,
-							stroke.getCoordX(0) - rightHandVectorX,
-							stroke.getCoordY(0) - rightHandVectorY,
-							0,
-							stroke.getCoordX(1) + rightHandVectorX,
-							stroke.getCoordY(1) + rightHandVectorY,
-							0,
-							stroke.getCoordX(1) - rightHandVectorX,
-							stroke.getCoordY(1) - rightHandVectorY,
-							0
-					};
-				}
-				// Has the first stroke segment already been formed?
-				else
-				{
-					vertices = new float[]{
-							stroke.getCoordX(pointCount) + rightHandVectorX,
-							stroke.getCoordY(pointCount) + rightHandVectorY,
-							0,
-							stroke.getCoordX(pointCount) - rightHandVectorX,
-							stroke.getCoordY(pointCount) - rightHandVectorY,
-							0
-					};
-				}
 				addVertices(vertices);
 			}
 
@@ -567,9 +628,19 @@ public class Stroke implements Externalizable, Comparable<Stroke>
 	{
 		output.writeLong(id); // ID
 		output.writeLong(chunkId); // Chunk ID
-		output.writeObject(coords); // Vertices
-		output.writeByte(colorByte); // Colour
-		output.writeByte(thicknessByte); // Thickness
+		ExternalizableFloatArrayList coordList = coords;
+		if (store != null)
+		{
+			int length = getNumberOfPoints() * 2;
+			coordList = new ExternalizableFloatArrayList(length);
+			for (int c = 0; c < length; c++)
+			{
+				coordList.add(StrokeCodec.dequantize(getCoordSteps(c)));
+			}
+		}
+		output.writeObject(coordList); // Vertices
+		output.writeByte(getColorByte()); // Colour
+		output.writeByte(getThicknessByte()); // Thickness
 		output.writeBoolean(isEraser); // Is eraser stroke
 	}
 
@@ -582,7 +653,6 @@ public class Stroke implements Externalizable, Comparable<Stroke>
 		setColor(input.readByte()); // Color
 		setThickness(input.readByte()); // Thickness
 		isEraser = input.readBoolean(); // Is eraser stroke
-		triangleStrip = new TriangleStrip(null, this, false);
 		updateBounds();
 	}
 
@@ -0,0 +1,341 @@
+package ironartichoke.sketchpad;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.util.zip.Deflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * A utility class that encodes chunks in a compact binary form for the chunk pack.
+ * <br\><br\>
+ * Stroke coordinates are quantized to a grid of {@link #PRECISION} steps per pixel, which is finer than
+ * {@link Stroke#SEGMENT_THRESHOLD}. The first point of a stroke is stored as is and every later point as the
+ * difference to the point before it. Since consecutive points are only a few pixels apart, these values are
+ * small, and they are written as zigzag-encoded varints of one or two bytes each instead of 4-byte floats.
+ * <br\><br\>
+ * Large chunks are additionally compressed with <code>Deflater</code> when that makes them smaller.
+ * Chunks written by earlier versions with Java serialization are recognised and read as before.
+ */
+public final class StrokeCodec
+{
+	/** The number of grid steps per pixel that coordinates are quantized to. */
+	public static final int PRECISION = 8;
+
+	/** The magic number at the start of an encoded chunk. It can never be mistaken for the Java serialization magic number. */
+	private static final short MAGIC = 0x534B;
+	/** The first two bytes of a chunk written with Java serialization by an earlier version. */
+	private static final short SERIALIZATION_MAGIC = (short) 0xACED;
+	/** The version of the encoding. */
+	private static final byte VERSION = 1;
+
+	/** The flag that is set if the body of the chunk is compressed. */
+	private static final byte FLAG_DEFLATE = 1;
+	/** The flag that is set if a stroke was drawn with the eraser tool. */
+	private static final byte FLAG_ERASER = 1;
+
+	/** Chunks whose body is larger than this (in bytes) are compressed. */
+	private static final int COMPRESSION_THRESHOLD = 4 * 1024;
+
+	/**
+	 * Encodes a chunk.
+	 * @param chunk The chunk.
+	 * @return The encoded chunk.
+	 * @throws IOException
+	 */
+	public static byte[] encodeChunk(Project.Sheet.Chunk chunk) throws IOException
+	{
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		DataOutputStream dos = new DataOutputStream(body);
+		PackedStrokes strokes = chunk.getStrokes();
+		synchronized (strokes) // Strokes may be committed to the chunk on another thread.
+		{
+			int size = strokes.size();
+			writeVarint(dos, size); // Number of strokes
+			long previousId = 0;
+			for (int s = 0; s < size; s++) // Strokes
+			{
+				writeVarlong(dos, strokes.getId(s) - previousId); // ID, relative to the previous stroke
+				previousId = strokes.getId(s);
+				dos.writeByte(strokes.getColorByte(s)); // Color
+				dos.writeByte(strokes.getThicknessByte(s)); // Thickness
+				dos.writeByte(strokes.isEraser(s) ? FLAG_ERASER : 0); // Flags
+				writeCoords(dos, strokes, s); // Points
+			}
+		}
+		dos.flush();
+
+		byte[] data = body.toByteArray();
+		byte flags = 0;
+		if (data.length > COMPRESSION_THRESHOLD)
+		{
+			byte[] compressed = deflate(data);
+			if (compressed.length < data.length)
+			{
+				data = compressed;
+				flags |= FLAG_DEFLATE;
+			}
+		}
+
+		ByteArrayOutputStream bos = new ByteArrayOutputStream(data.length + 12);
+		DataOutputStream header = new DataOutputStream(bos);
+		header.writeShort(MAGIC); // Magic number
+		header.writeByte(VERSION); // Version
+		header.writeByte(flags); // Flags
+		header.writeLong(chunk.getId()); // Chunk ID
+		header.write(data); // Strokes
+		header.flush();
+		return bos.toByteArray();
+	}
+
+	/**
+	 * Decodes a chunk, whether it was written by {@link #encodeChunk(Project.Sheet.Chunk)} or with Java serialization.
+	 * @param data The encoded chunk.
+	 * @return The chunk.
+	 * @throws IOException
+	 */
+	public static Project.Sheet.Chunk decodeChunk(byte[] data) throws IOException
+	{
+		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+		short magic = dis.readShort(); // Magic number
+		if (magic == SERIALIZATION_MAGIC)
+		{
+			return decodeSerializedChunk(data);
+		}
+		if (magic != MAGIC) throw new IOException("Not an encoded chunk");
+		if (dis.readByte() > VERSION) throw new IOException("Unsupported chunk version"); // Version
+		byte flags = dis.readByte(); // Flags
+		long chunkId = dis.readLong(); // Chunk ID
+
+		DataInput body = dis;
+		InflaterInputStream inflater = null;
+		if ((flags & FLAG_DEFLATE) != 0)
+		{
+			inflater = new InflaterInputStream(dis);
+			body = new DataInputStream(inflater);
+		}
+
+		PackedStrokes strokes = new PackedStrokes(chunkId);
+		try
+		{
+			int size = readVarint(body); // Number of strokes
+			long id = 0;
+			for (int s = 0; s < size; s++) // Strokes
+			{
+				id += readVarlong(body); // ID, relative to the previous stroke
+				byte color = body.readByte(); // Color
+				byte thickness = body.readByte(); // Thickness
+				boolean isEraser = (body.readByte() & FLAG_ERASER) != 0; // Flags
+				int[] coordSteps = readCoords(body); // Points
+				strokes.add(id, color, thickness, isEraser, coordSteps, coordSteps.length);
+			}
+		}
+		finally
+		{
+			// Closing the stream releases the native memory of its inflater.
+			if (inflater != null)
+			{
+				try
+				{
+					inflater.close();
+				}
+				catch (IOException e)
+				{
+					// Disregard exception.
+				}
+			}
+		}
+		return new Project.Sheet.Chunk(chunkId, strokes);
+	}
+
+	/**
+	 * Reads a chunk written with Java serialization by an earlier version.
+	 * @param data The serialized chunk.
+	 * @return The chunk.
+	 * @throws IOException
+	 */
+	private static Project.Sheet.Chunk decodeSerializedChunk(byte[] data) throws IOException
+	{
+		ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(data));
+		try
+		{
+			return (Project.Sheet.Chunk) ois.readObject();
+		}
+		catch (ClassNotFoundException e)
+		{
+			throw new IOException(e);
+		}
+		finally
+		{
+			ois.close();
+		}
+	}
+
+	/**
+	 * Quantizes a coordinate to the grid.
+	 * @param coord The coordinate.
+	 * @return The number of grid steps from the origin.
+	 */
+	static int quantize(float coord)
+	{
+		return Math.round(coord * PRECISION);
+	}
+
+	/**
+	 * Converts a quantized coordinate back into a float.
+	 * @param steps The number of grid steps from the origin.
+	 * @return The coordinate.
+	 */
+	static float dequantize(int steps)
+	{
+		return steps / (float) PRECISION;
+	}
+
+	/**
+	 * Writes the coordinates of a packed stroke as quantized deltas.
+	 * @param output The output.
+	 * @param strokes The packed strokes.
+	 * @param index The index of the stroke.
+	 * @throws IOException
+	 */
+	static void writeCoords(DataOutput output, PackedStrokes strokes, int index) throws IOException
+	{
+		int length = strokes.getNumberOfPoints(index) * 2;
+		writeVarint(output, length / 2); // Number of points
+		int previousX = 0;
+		int previousY = 0;
+		for (int c = 0; c < length; c += 2) // Points, relative to the previous point
+		{
+			int x = strokes.getCoordSteps(index, c);
+			int y = strokes.getCoordSteps(index, c + 1);
+			writeVarint(output, x - previousX);
+			writeVarint(output, y - previousY);
+			previousX = x;
+			previousY = y;
+		}
+	}
+
+	/**
+	 * Reads the coordinates of a stroke written by {@link #writeCoords(DataOutput, PackedStrokes, int)}.
+	 * @param input The input.
+	 * @return The alternating X and Y coordinates, in grid steps.
+	 * @throws IOException
+	 */
+	static int[] readCoords(DataInput input) throws IOException
+	{
+		int points = readVarint(input); // Number of points
+		int[] coords = new int[points * 2];
+		int x = 0;
+		int y = 0;
+		for (int c = 0; c < coords.length; c += 2) // Points, relative to the previous point
+		{
+			x += readVarint(input);
+			y += readVarint(input);
+			coords[c] = x;
+			coords[c + 1] = y;
+		}
+		return coords;
+	}
+
+	/**
+	 * Writes a signed integer as a zigzag-encoded varint, using one byte for values between -64 and 63.
+	 * @param output The output.
+	 * @param value The value.
+	 * @throws IOException
+	 */
+	static void writeVarint(DataOutput output, int value) throws IOException
+	{
+		int zigzag = (value << 1) ^ (value >> 31);
+		while ((zigzag & ~0x7F) != 0)
+		{
+			output.writeByte((zigzag & 0x7F) | 0x80);
+			zigzag >>>= 7;
+		}
+		output.writeByte(zigzag);
+	}
+
+	/**
+	 * Reads a signed integer written by {@link #writeVarint(DataOutput, int)}.
+	 * @param input The input.
+	 * @return The value.
+	 * @throws IOException
+	 */
+	static int readVarint(DataInput input) throws IOException
+	{
+		int zigzag = 0;
+		for (int shift = 0; shift < 35; shift += 7)
+		{
+			byte b = input.readByte();
+			zigzag |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+			{
+				return (zigzag >>> 1) ^ -(zigzag & 1);
+			}
+		}
+		throw new IOException("Malformed varint");
+	}
+
+	/**
+	 * Writes a signed long as a zigzag-encoded varint.
+	 * @param output The output.
+	 * @param value The value.
+	 * @throws IOException
+	 */
+	static void writeVarlong(DataOutput output, long value) throws IOException
+	{
+		long zigzag = (value << 1) ^ (value >> 63);
+		while ((zigzag & ~0x7FL) != 0)
+		{
+			output.writeByte((int) (zigzag & 0x7F) | 0x80);
+			zigzag >>>= 7;
+		}
+		output.writeByte((int) zigzag);
+	}
+
+	/**
+	 * Reads a signed long written by {@link #writeVarlong(DataOutput, long)}.
+	 * @param input The input.
+	 * @return The value.
+	 * @throws IOException
+	 */
+	static long readVarlong(DataInput input) throws IOException
+	{
+		long zigzag = 0;
+		for (int shift = 0; shift < 70; shift += 7)
+		{
+			byte b = input.readByte();
+			zigzag |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+			{
+				return (zigzag >>> 1) ^ -(zigzag & 1);
+			}
+		}
+		throw new IOException("Malformed varint");
+	}
+
+	/**
+	 * Compresses data with <code>Deflater</code>.
+	 * @param data The data.
+	 * @return The compressed data.
+	 */
+	private static byte[] deflate(byte[] data)
+	{
+		Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		deflater.setInput(data);
+		deflater.finish();
+		ByteArrayOutputStream bos = new ByteArrayOutputStream(data.length / 2);
+		byte[] buffer = new byte[4096];
+		while (!deflater.finished())
+		{
+			int length = deflater.deflate(buffer);
+			bos.write(buffer, 0, length);
+		}
+		deflater.end();
+		return bos.toByteArray();
+	}
+}
@@ -0,0 +1,184 @@
+package ironartichoke.sketchpad;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Finishes strokes on a background thread once the user lifts their finger.
+ * <br\><br\>
+ * A committed stroke is simplified, packed into its chunk (which tessellates its levels of detail), published
+ * on the UI thread and finally saved. Until it is published, the stroke stays in the list of pending
+ * strokes, so it can still be drawn from its live geometry.
+ * <br\><br\>
+ * Eraser strokes go through the same thread, so they always apply to every stroke committed before them.
+ * Instead of being packed, they erase the strokes they pass over from the loaded chunks, which are then republished and saved.
+ * <br\><br\>
+ * All commits run on one thread in the order they were made, so the strokes of each chunk keep their stroke ID order
+ * even when the user draws faster than strokes are committed.
+ */
+final class StrokeCommitter
+{
+	/** The sketchbook that strokes are committed to. */
+	private final Project project;
+	/** The thread that commits strokes, one at a time. */
+	private final ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory()
+	{
+		@Override
+		public Thread newThread(Runnable runnable)
+		{
+			Thread thread = new Thread(runnable, "StrokeCommitter");
+			thread.setPriority(Thread.NORM_PRIORITY - 1);
+			return thread;
+		}
+	});
+	/** Publishes committed strokes on the UI thread. */
+	private final Handler handler = new Handler(Looper.getMainLooper());
+	/** The strokes that have been committed but not yet published, in stroke ID order. */
+	private final List<Stroke> pendingStrokes = new CopyOnWriteArrayList<>();
+
+	/**
+	 * Creates a committer for the given sketchbook.
+	 * @param project The sketchbook.
+	 */
+	StrokeCommitter(Project project)
+	{
+		this.project = project;
+	}
+
+	/**
+	 * Commits a stroke that the user has just finished drawing.
+	 * Must be called from the UI thread.
+	 * @param stroke The stroke. It must not be changed by the caller afterwards.
+	 * @param sheet The sheet that the stroke was drawn on.
+	 * @param chunk The chunk that the stroke belongs to.
+	 * @param view The view to render once the stroke has been published.
+	 */
+	void commit(final Stroke stroke, final Project.Sheet sheet, final Project.Sheet.Chunk chunk, final NotepadView view)
+	{
+		pendingStrokes.add(stroke);
+		executor.execute(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				// Simplify the stroke and pack it, which tessellates it.
+				stroke.optimize();
+				final Stroke packed = chunk.addStroke(stroke);
+
+				// Publish it. If the chunk was unloaded in the meantime, the stroke will appear when the chunk is loaded again.
+				handler.post(new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						if (project.getChunkFromId(chunk.getId()) == chunk)
+						{
+							project.publishStroke(packed);
+						}
+						pendingStrokes.remove(stroke);
+						view.requestRender();
+					}
+				});
+
+				// Save it.
+				project.saveCommittedChunk(sheet, chunk);
+				project.requestMetadataSave();
+			}
+		});
+	}
+
+	/**
+	 * Erases along an eraser stroke that the user has just finished drawing.
+	 * Must be called from the UI thread.
+	 * @param eraser The eraser stroke. It must not be changed by the caller afterwards.
+	 * @param sheet The sheet that the stroke was drawn on.
+	 * @param chunks The chunks that were loaded when the stroke was drawn.
+	 * @param view The view to render once the erased chunks have been published.
+	 * @see StrokeEraser
+	 */
+	void erase(final Stroke eraser, final Project.Sheet sheet, final Project.Sheet.Chunk[] chunks, final NotepadView view)
+	{
+		pendingStrokes.add(eraser);
+		executor.execute(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				// Erase from each chunk. The strokes of a chunk are replaced as a whole, so the renderer draws either
+				// the old strokes or the remaining ones, never a mix. Its tiles are refreshed once the change is published.
+				StrokeEraser strokeEraser = new StrokeEraser(eraser);
+				final List<Project.Sheet.Chunk> erasedChunks = new ArrayList<>();
+				for (Project.Sheet.Chunk chunk : chunks)
+				{
+					PackedStrokes remaining = chunk.getStrokes().erase(strokeEraser);
+					if (remaining != null)
+					{
+						chunk.setStrokes(remaining);
+						erasedChunks.add(chunk);
+					}
+				}
+
+				// Publish the remaining strokes.
+				handler.post(new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						if (!erasedChunks.isEmpty()) project.publishErasedStrokes(eraser);
+						pendingStrokes.remove(eraser);
+						view.requestRender();
+					}
+				});
+
+				// Save them.
+				for (Project.Sheet.Chunk chunk : erasedChunks)
+				{
+					project.saveCommittedChunk(sheet, chunk);
+				}
+				if (!erasedChunks.isEmpty()) project.requestMetadataSave();
+			}
+		});
+	}
+
+	/**
+	 * Gets the strokes that have been committed but not yet published.
+	 * The list may be read from any thread.
+	 * @return The pending strokes.
+	 */
+	List<Stroke> getPendingStrokes()
+	{
+		return pendingStrokes;
+	}
+
+	/**
+	 * Blocks until every stroke committed so far has been saved.
+	 * This should be called before chunks are saved or unloaded in bulk.
+	 */
+	void awaitIdle()
+	{
+		try
+		{
+			executor.submit(new Runnable()
+			{
+				@Override
+				public void run() {}
+			}).get();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+		catch (ExecutionException e)
+		{
+			e.printStackTrace();
+		}
+	}
+}
@@ -0,0 +1,344 @@
+package ironartichoke.sketchpad;
+
+import com.carrotsearch.hppc.IntArrayList;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Erases strokes geometrically along the path of an eraser stroke.
+ * <br\><br\>
+ * Instead of being kept as a stroke drawn in the background color, the eraser removes the parts of other strokes whose
+ * centerline it passes over. A stroke that is erased in the middle is split into pieces, and a stroke that is erased
+ * completely is deleted, so erasing makes a sheet lighter rather than heavier.
+ * <br\><br\>
+ * The eraser covers everything within half of its drawn thickness of its path. Segments of a stroke are walked in small
+ * steps, so that a long, straight segment is cut where the eraser crosses it and not only at its points.
+ */
+final class StrokeEraser
+{
+	/** The alternating X and Y coordinates of the eraser path, in pixels. */
+	private final float[] path;
+	/** The distance from the path, in pixels, that is erased. */
+	private final float radius;
+	/** The distance from each segment of the path, in pixels, that the drawn eraser stroke is certain to cover. */
+	private final float[] drawnRadii;
+	/** The distance, in pixels, between the samples taken along a segment of an erased stroke. */
+	private final float step;
+	/** The bounds of the path, including the radius. */
+	private final float left, top, right, bottom;
+
+	/**
+	 * Prepares to erase along the path of an eraser stroke.
+	 * @param eraser The eraser stroke.
+	 */
+	StrokeEraser(Stroke eraser)
+	{
+		this(getPath(eraser), eraser.getThicknessByte());
+	}
+
+	/**
+	 * Prepares to erase along the path of an eraser stroke that was drawn by an earlier version and saved as a stroke.
+	 * @param strokes The packed strokes.
+	 * @param index The index of the eraser stroke.
+	 * @see SheetCompactor
+	 */
+	StrokeEraser(PackedStrokes strokes, int index)
+	{
+		this(getPath(strokes, index), strokes.getThicknessByte(index));
+	}
+
+	/**
+	 * Prepares to erase along a path.
+	 * @param path The alternating X and Y coordinates of the path, in pixels.
+	 * @param thicknessByte The thickness byte value of the eraser stroke.
+	 */
+	private StrokeEraser(float[] path, byte thicknessByte)
+	{
+		this.path = path;
+		float minX = Float.MAX_VALUE;
+		float minY = Float.MAX_VALUE;
+		float maxX = -Float.MAX_VALUE;
+		float maxY = -Float.MAX_VALUE;
+		for (int c = 0; c < path.length; c += 2)
+		{
+			minX = Math.min(minX, path[c]);
+			minY = Math.min(minY, path[c + 1]);
+			maxX = Math.max(maxX, path[c]);
+			maxY = Math.max(maxY, path[c + 1]);
+		}
+		radius = Stroke.getRealThickness(thicknessByte, true) * 0.5f;
+		step = Math.max(radius * 0.25f, 0.5f);
+		left = minX - radius;
+		top = minY - radius;
+		right = maxX + radius;
+		bottom = maxY + radius;
+
+		// The strip of a drawn stroke is widened at each point across the segment before it, so where the path turns,
+		// a segment's strip is skewed and narrower than the radius. Count only the part that is certainly covered.
+		int segments = Math.max(0, path.length / 2 - 1);
+		drawnRadii = new float[segments];
+		for (int s = 0; s < segments; s++)
+		{
+			float factor = Math.min(getTurnFactor(s - 1, s), getTurnFactor(s, s + 1));
+			drawnRadii[s] = radius * Math.max(0, factor);
+		}
+	}
+
+	float getLeft()
+	{
+		return left;
+	}
+
+	float getTop()
+	{
+		return top;
+	}
+
+	float getRight()
+	{
+		return right;
+	}
+
+	float getBottom()
+	{
+		return bottom;
+	}
+
+	/**
+	 * Gets the alternating X and Y coordinates of a stroke that has just been drawn.
+	 * @param stroke The stroke.
+	 * @return The coordinates, in pixels.
+	 */
+	private static float[] getPath(Stroke stroke)
+	{
+		int points = stroke.getNumberOfPoints();
+		float[] path = new float[points * 2];
+		for (int p = 0; p < points; p++)
+		{
+			path[p * 2] = stroke.getCoordX(p);
+			path[p * 2 + 1] = stroke.getCoordY(p);
+		}
+		return path;
+	}
+
+	/**
+	 * Gets the alternating X and Y coordinates of a packed stroke.
+	 * @param strokes The packed strokes.
+	 * @param index The index of the stroke.
+	 * @return The coordinates, in pixels.
+	 */
+	private static float[] getPath(PackedStrokes strokes, int index)
+	{
+		int points = strokes.getNumberOfPoints(index);
+		float[] path = new float[points * 2];
+		for (int p = 0; p < points; p++)
+		{
+			path[p * 2] = strokes.getCoordX(index, p);
+			path[p * 2 + 1] = strokes.getCoordY(index, p);
+		}
+		return path;
+	}
+
+	/**
+	 * Gets how much of the radius is left across a segment after the path turns between it and another segment,
+	 * i.e. the cosine minus the sine of the angle of the turn.
+	 * @param first The index of the earlier segment, which may be outside the path.
+	 * @param second The index of the later segment, which may be outside the path.
+	 * @return 1 for a straight path or an end of the path, down to a negative value for sharp turns.
+	 */
+	private float getTurnFactor(int first, int second)
+	{
+		int segments = path.length / 2 - 1;
+		if (first < 0 || second >= segments) return 1;
+
+		float firstX = path[first * 2 + 2] - path[first * 2];
+		float firstY = path[first * 2 + 3] - path[first * 2 + 1];
+		float secondX = path[second * 2 + 2] - path[second * 2];
+		float secondY = path[second * 2 + 3] - path[second * 2 + 1];
+		float lengths = (float) Math.sqrt((firstX * firstX + firstY * firstY) * (secondX * secondX + secondY * secondY));
+		if (lengths == 0) return 0;
+		float cos = (firstX * secondX + firstY * secondY) / lengths;
+		float sin = Math.abs(firstX * secondY - firstY * secondX) / lengths;
+		return cos - sin;
+	}
+
+	/**
+	 * Checks whether a point is covered by the eraser.
+	 * @param x The X coordinate, in pixels.
+	 * @param y The Y coordinate, in pixels.
+	 * @return True if the point is erased; false otherwise.
+	 */
+	boolean isHit(float x, float y)
+	{
+		if (x < left || x > right || y < top || y > bottom) return false;
+
+		float radiusSquared = radius * radius;
+		if (path.length == 2)
+		{
+			float dx = x - path[0];
+			float dy = y - path[1];
+			return dx * dx + dy * dy <= radiusSquared;
+		}
+		for (int c = 2; c < path.length; c += 2)
+		{
+			float startX = path[c - 2];
+			float startY = path[c - 1];
+			float endX = path[c];
+			float endY = path[c + 1];
+			if (x < Math.min(startX, endX) - radius || x > Math.max(startX, endX) + radius
+					|| y < Math.min(startY, endY) - radius || y > Math.max(startY, endY) + radius)
+			{
+				continue;
+			}
+
+			float segmentX = endX - startX;
+			float segmentY = endY - startY;
+			float lengthSquared = segmentX * segmentX + segmentY * segmentY;
+			float t = lengthSquared > 0 ? Math.max(0, Math.min(1, ((x - startX) * segmentX + (y - startY) * segmentY) / lengthSquared)) : 0;
+			float dx = x - (startX + t * segmentX);
+			float dy = y - (startY + t * segmentY);
+			if (dx * dx + dy * dy <= radiusSquared) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Checks whether a point lies well inside the eraser stroke as it was drawn by earlier versions,
+	 * i.e. in the background color, without round ends or joins.
+	 * @param x The X coordinate, in pixels.
+	 * @param y The Y coordinate, in pixels.
+	 * @param inset The distance, in pixels, that the point must be from the edge of the drawn stroke.
+	 * @return True if everything within the inset of the point is painted over by the eraser stroke; false otherwise.
+	 * @see SheetCompactor
+	 */
+	boolean isDrawnOver(float x, float y, float inset)
+	{
+		if (x < left + inset || x > right - inset || y < top + inset || y > bottom - inset) return false;
+
+		for (int s = 0; s < drawnRadii.length; s++)
+		{
+			float coveredRadius = drawnRadii[s] - inset;
+			if (coveredRadius <= 0) continue;
+
+			float startX = path[s * 2];
+			float startY = path[s * 2 + 1];
+			float segmentX = path[s * 2 + 2] - startX;
+			float segmentY = path[s * 2 + 3] - startY;
+			float lengthSquared = segmentX * segmentX + segmentY * segmentY;
+			if (lengthSquared == 0) continue;
+
+			// The strip is cut off square at both ends of the path.
+			float t = ((x - startX) * segmentX + (y - startY) * segmentY) / lengthSquared;
+			if ((s == 0 && t < 0) || (s == drawnRadii.length - 1 && t > 1)) continue;
+			t = Math.max(0, Math.min(1, t));
+			float dx = x - (startX + t * segmentX);
+			float dy = y - (startY + t * segmentY);
+			if (dx * dx + dy * dy <= coveredRadius * coveredRadius) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Splits a packed stroke into the pieces that the eraser leaves behind.
+	 * Pieces with fewer than two points are dropped.
+	 * @param strokes The packed strokes.
+	 * @param index The index of the stroke.
+	 * @return The alternating X and Y coordinates of each remaining piece, in grid steps,
+	 *         or <code>null</code> if the eraser doesn't touch the stroke.
+	 */
+	List<int[]> split(PackedStrokes strokes, int index)
+	{
+		// The bounds are truncated to whole pixels, so allow for one more.
+		if (strokes.getBoundRight(index) + 1 < left || strokes.getBoundLeft(index) - 1 > right
+				|| strokes.getBoundBottom(index) + 1 < top || strokes.getBoundTop(index) - 1 > bottom)
+		{
+			return null;
+		}
+
+		List<int[]> pieces = new ArrayList<>();
+		IntArrayList piece = new IntArrayList();
+		boolean isTouched = false;
+		float prevX = 0;
+		float prevY = 0;
+		boolean isPrevHit = false;
+		int points = strokes.getNumberOfPoints(index);
+		for (int p = 0; p < points; p++)
+		{
+			float x = strokes.getCoordX(index, p);
+			float y = strokes.getCoordY(index, p);
+			boolean isPointHit = isHit(x, y);
+			isTouched |= isPointHit;
+
+			if (p > 0)
+			{
+				// Walk along the segment to find where the eraser starts or stops covering it.
+				// Samples between two kept points lie on the segment, so only the ones next to a cut are added.
+				float segmentX = x - prevX;
+				float segmentY = y - prevY;
+				int samples = Math.max(1, (int) Math.ceil(Math.sqrt(segmentX * segmentX + segmentY * segmentY) / step));
+				boolean isSampleHit = isPrevHit;
+				for (int k = 1; k <= samples; k++)
+				{
+					boolean isCovered = k == samples ? isPointHit : isHit(prevX + segmentX * k / samples, prevY + segmentY * k / samples);
+					if (isCovered && !isSampleHit)
+					{
+						// The eraser starts here, so end the piece at the sample before.
+						isTouched = true;
+						if (k > 1)
+						{
+							addSample(piece, prevX + segmentX * (k - 1) / samples, prevY + segmentY * (k - 1) / samples);
+						}
+						finishPiece(pieces, piece);
+					}
+					else if (!isCovered && isSampleHit && k < samples)
+					{
+						// The eraser stops here, so start a new piece.
+						addSample(piece, prevX + segmentX * k / samples, prevY + segmentY * k / samples);
+					}
+					isSampleHit = isCovered;
+				}
+			}
+
+			if (!isPointHit)
+			{
+				piece.add(strokes.getCoordSteps(index, p * 2), strokes.getCoordSteps(index, p * 2 + 1));
+			}
+			prevX = x;
+			prevY = y;
+			isPrevHit = isPointHit;
+		}
+		finishPiece(pieces, piece);
+
+		return isTouched ? pieces : null;
+	}
+
+	/**
+	 * Adds a point to the end of a piece, unless it is already its last point.
+	 * @param piece The coordinates of the piece, in grid steps.
+	 * @param x The X coordinate, in pixels.
+	 * @param y The Y coordinate, in pixels.
+	 */
+	private static void addSample(IntArrayList piece, float x, float y)
+	{
+		int stepsX = StrokeCodec.quantize(x);
+		int stepsY = StrokeCodec.quantize(y);
+		int size = piece.size();
+		if (size >= 2 && piece.get(size - 2) == stepsX && piece.get(size - 1) == stepsY) return;
+		piece.add(stepsX, stepsY);
+	}
+
+	/**
+	 * Adds a piece to the list of pieces if it has at least two points, then clears it.
+	 * @param pieces The pieces.
+	 * @param piece The piece.
+	 */
+	private static void finishPiece(List<int[]> pieces, IntArrayList piece)
+	{
+		if (piece.size() >= 4)
+		{
+			pieces.add(piece.toArray());
+		}
+		piece.clear();
+	}
+}
@@ -0,0 +1,265 @@
+package ironartichoke.sketchpad;
+
+import com.carrotsearch.hppc.IntArrayList;
+import com.carrotsearch.hppc.LongOpenHashSet;
+
+import java.util.Arrays;
+
+import ironartichoke.sketchpad.util.ChunkUtils;
+
+/**
+ * A quadtree over the bounds of the strokes of one chunk, which finds the strokes that may touch a rectangle
+ * without checking every stroke.
+ * <br\><br\>
+ * The tree covers the area of the chunk. It is a loose quadtree: the area that each node holds strokes from reaches half its
+ * size beyond its edges, so a small stroke is kept deep in the tree even where it crosses the edge of a quadrant.
+ * Each stroke is kept in the deepest node whose loose area holds its bounds entirely, so a stroke that reaches far
+ * outside the chunk stays in the root. A leaf is split into four quadrants once it holds more than
+ * {@link #NODE_CAPACITY} strokes, moving the strokes that fit into a quadrant down, until the nodes are
+ * {@link #MIN_NODE_SIZE} pixels across.
+ * <br\><br\>
+ * Strokes are identified by their index in the chunk and are only ever added, like the strokes of {@link PackedStrokes}.
+ * This class isn't thread-safe; it is guarded by the strokes that own it.
+ */
+final class StrokeIndex
+{
+	/** The number of strokes that a leaf holds before it is split. */
+	private static final int NODE_CAPACITY = 16;
+	/** The size, in pixels, below which nodes aren't split. */
+	private static final int MIN_NODE_SIZE = 64;
+	/** The number of values in the bounds array per stroke. */
+	private static final int BOUNDS_PER_STROKE = 4;
+
+	/** The left, top, right and bottom bounds of each stroke, in pixels. */
+	private int[] bounds = new int[4 * BOUNDS_PER_STROKE];
+	/** The number of strokes. */
+	private int size = 0;
+	/** The ID of the chunk. */
+	private final long chunkId;
+	/** The node covering the whole chunk. */
+	private final Node root;
+
+	/**
+	 * A square area of the chunk and the strokes that fit in it but not in any of its quadrants.
+	 */
+	private static final class Node
+	{
+		/** The bounds of the area, in pixels. */
+		final int left, top, right, bottom;
+		/** The bounds of the loose area that the node holds strokes from, in pixels. */
+		final int looseLeft, looseTop, looseRight, looseBottom;
+		/** The indices of the strokes in this node. */
+		final IntArrayList strokes = new IntArrayList();
+		/** The quadrants, or <code>null</code> if the node hasn't been split. */
+		Node[] children;
+
+		Node(int left, int top, int right, int bottom)
+		{
+			this.left = left;
+			this.top = top;
+			this.right = right;
+			this.bottom = bottom;
+			int slack = (right - left) / 2;
+			looseLeft = left - slack;
+			looseTop = top - slack;
+			looseRight = right + slack;
+			looseBottom = bottom + slack;
+		}
+
+		/**
+		 * Checks whether the loose area of the node holds the given bounds entirely.
+		 */
+		boolean contains(int left, int top, int right, int bottom)
+		{
+			return left >= looseLeft && right <= looseRight && top >= looseTop && bottom <= looseBottom;
+		}
+
+		/**
+		 * Checks whether the loose area of the node overlaps the given bounds.
+		 */
+		boolean overlaps(int left, int top, int right, int bottom)
+		{
+			return left <= looseRight && right >= looseLeft && top <= looseBottom && bottom >= looseTop;
+		}
+	}
+
+	/**
+	 * Creates an empty index for the given chunk.
+	 * @param chunkId The chunk ID.
+	 */
+	StrokeIndex(long chunkId)
+	{
+		this.chunkId = chunkId;
+		int left = ChunkUtils.getChunkCenterX(chunkId) - ChunkUtils.CHUNK_SIZE / 2;
+		int top = ChunkUtils.getChunkCenterY(chunkId) - ChunkUtils.CHUNK_SIZE / 2;
+		root = new Node(left, top, left + ChunkUtils.CHUNK_SIZE, top + ChunkUtils.CHUNK_SIZE);
+	}
+
+	/**
+	 * Gets the number of strokes in the index.
+	 * @return The number of strokes.
+	 */
+	int size()
+	{
+		return size;
+	}
+
+	/**
+	 * Adds the next stroke, whose index is the number of strokes added before it.
+	 * @param left The smallest X coordinate that the drawn stroke reaches, in pixels.
+	 * @param top The smallest Y coordinate that the drawn stroke reaches, in pixels.
+	 * @param right The greatest X coordinate that the drawn stroke reaches, in pixels.
+	 * @param bottom The greatest Y coordinate that the drawn stroke reaches, in pixels.
+	 */
+	void add(int left, int top, int right, int bottom)
+	{
+		if (bounds.length < (size + 1) * BOUNDS_PER_STROKE)
+		{
+			bounds = Arrays.copyOf(bounds, bounds.length * 2);
+		}
+		bounds[size * BOUNDS_PER_STROKE] = left;
+		bounds[size * BOUNDS_PER_STROKE + 1] = top;
+		bounds[size * BOUNDS_PER_STROKE + 2] = right;
+		bounds[size * BOUNDS_PER_STROKE + 3] = bottom;
+		insert(root, size);
+		size++;
+	}
+
+	/**
+	 * Finds the strokes whose bounds overlap a rectangle.
+	 * @param left The smallest X coordinate of the rectangle, in pixels.
+	 * @param top The smallest Y coordinate of the rectangle, in pixels.
+	 * @param right The greatest X coordinate of the rectangle, in pixels.
+	 * @param bottom The greatest Y coordinate of the rectangle, in pixels.
+	 * @param result The list that the indices of the strokes are added to, in ascending order.
+	 */
+	void query(int left, int top, int right, int bottom, IntArrayList result)
+	{
+		int start = result.size();
+		// Strokes in the root may reach anywhere, so the root is always searched.
+		query(root, left, top, right, bottom, result);
+		Arrays.sort(result.buffer, start, result.size());
+	}
+
+	/**
+	 * Finds the other chunks that the bounds of the strokes reach into.
+	 * @return The IDs of the chunks, in ascending order.
+	 */
+	long[] getReachedChunks()
+	{
+		LongOpenHashSet reached = new LongOpenHashSet();
+		for (int s = 0; s < size; s++)
+		{
+			int b = s * BOUNDS_PER_STROKE;
+			if (bounds[b] >= root.left && bounds[b + 1] >= root.top && bounds[b + 2] < root.right && bounds[b + 3] < root.bottom)
+			{
+				continue;
+			}
+
+			int maxX = ChunkUtils.convertXCoord(bounds[b + 2]);
+			int maxY = ChunkUtils.convertYCoord(bounds[b + 3]);
+			for (int x = ChunkUtils.convertXCoord(bounds[b]); x <= maxX; x++)
+			{
+				for (int y = ChunkUtils.convertYCoord(bounds[b + 1]); y <= maxY; y++)
+				{
+					long reachedChunkId = ChunkUtils.pack(x, y);
+					if (reachedChunkId != chunkId) reached.add(reachedChunkId);
+				}
+			}
+		}
+		long[] chunkIds = reached.toArray();
+		Arrays.sort(chunkIds);
+		return chunkIds;
+	}
+
+	/**
+	 * Estimates the memory used by the index, counting the bounds and one entry per stroke in the nodes.
+	 * @return The approximate number of bytes.
+	 */
+	long getMemoryUsage()
+	{
+		return bounds.length * 4L + size * 4L;
+	}
+
+	/**
+	 * Adds a stroke to the subtree of a node.
+	 * @param node The node.
+	 * @param index The index of the stroke.
+	 */
+	private void insert(Node node, int index)
+	{
+		int b = index * BOUNDS_PER_STROKE;
+		while (node.children != null)
+		{
+			Node child = getContainingChild(node, bounds[b], bounds[b + 1], bounds[b + 2], bounds[b + 3]);
+			if (child == null) break;
+			node = child;
+		}
+		node.strokes.add(index);
+
+		if (node.children == null && node.strokes.size() > NODE_CAPACITY && node.right - node.left >= MIN_NODE_SIZE * 2)
+		{
+			split(node);
+		}
+	}
+
+	/**
+	 * Splits a leaf into quadrants, moving down the strokes that fit into one of them.
+	 * @param node The leaf.
+	 */
+	private void split(Node node)
+	{
+		int centerX = (node.left + node.right) / 2;
+		int centerY = (node.top + node.bottom) / 2;
+		node.children = new Node[]{
+				new Node(node.left, node.top, centerX, centerY),
+				new Node(centerX, node.top, node.right, centerY),
+				new Node(node.left, centerY, centerX, node.bottom),
+				new Node(centerX, centerY, node.right, node.bottom)};
+
+		int[] strokes = node.strokes.toArray();
+		node.strokes.clear();
+		for (int index : strokes)
+		{
+			insert(node, index);
+		}
+	}
+
+	/**
+	 * Gets the quadrant of a node that holds the given bounds entirely in its loose area.
+	 * Only the quadrant that holds the center of the bounds is considered.
+	 * @return The quadrant, or <code>null</code> if the bounds are too large for it.
+	 */
+	private static Node getContainingChild(Node node, int left, int top, int right, int bottom)
+	{
+		int centerX = (node.left + node.right) / 2;
+		int centerY = (node.top + node.bottom) / 2;
+		int quadrant = (left + right) / 2 < centerX ? 0 : 1;
+		if ((top + bottom) / 2 >= centerY) quadrant += 2;
+		Node child = node.children[quadrant];
+		return child.contains(left, top, right, bottom) ? child : null;
+	}
+
+	/**
+	 * Adds the strokes in the subtree of a node whose bounds overlap a rectangle.
+	 */
+	private void query(Node node, int left, int top, int right, int bottom, IntArrayList result)
+	{
+		int count = node.strokes.size();
+		for (int s = 0; s < count; s++)
+		{
+			int index = node.strokes.get(s);
+			int b = index * BOUNDS_PER_STROKE;
+			if (bounds[b] <= right && bounds[b + 2] >= left && bounds[b + 1] <= bottom && bounds[b + 3] >= top)
+			{
+				result.add(index);
+			}
+		}
+
+		if (node.children == null) return;
+		for (Node child : node.children)
+		{
+			if (child.overlaps(left, top, right, bottom)) query(child, left, top, right, bottom, result);
+		}
+	}
+}
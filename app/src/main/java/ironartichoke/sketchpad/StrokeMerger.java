@@ -0,0 +1,119 @@
+package ironartichoke.sketchpad;
+
+import com.carrotsearch.hppc.IntArrayList;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Merges strokes from several chunks into drawing order.
+ * <br\><br\>
+ * The strokes of each chunk are stored in stroke ID order, so the strokes taken from one chunk form a sorted run.
+ * The runs are merged through a binary heap holding the next stroke of each run, which takes O(n log k) time
+ * for n strokes from k chunks rather than sorting all of them. Strokes with the same ID keep the order of their runs.
+ * <br\><br\>
+ * The runs are kept between merges so that finding the strokes for a frame doesn't allocate.
+ * This class isn't thread-safe.
+ */
+final class StrokeMerger
+{
+	/** The strokes that each run indexes into. Only the first {@link #runCount} elements are in use. */
+	private PackedStrokes[] runStrokes = new PackedStrokes[8];
+	/** The indices of the strokes in each run, in ascending order. */
+	private IntArrayList[] runs = new IntArrayList[8];
+	/** The number of runs. */
+	private int runCount = 0;
+	/** The position of the next stroke of each run. */
+	private int[] positions = new int[8];
+	/** The runs that still have strokes, as a binary min-heap ordered by the ID of their next stroke. */
+	private int[] heap = new int[8];
+
+	/**
+	 * Starts a new run of strokes from one chunk.
+	 * @param strokes The strokes of the chunk.
+	 * @return The empty list to add the indices of the strokes to, in ascending order.
+	 */
+	IntArrayList beginRun(PackedStrokes strokes)
+	{
+		if (runCount == runs.length)
+		{
+			runStrokes = Arrays.copyOf(runStrokes, runCount * 2);
+			runs = Arrays.copyOf(runs, runCount * 2);
+			positions = new int[runCount * 2];
+			heap = new int[runCount * 2];
+		}
+		if (runs[runCount] == null) runs[runCount] = new IntArrayList();
+
+		IntArrayList run = runs[runCount];
+		run.clear();
+		runStrokes[runCount] = strokes;
+		runCount++;
+		return run;
+	}
+
+	/**
+	 * Merges the runs into drawing order, then forgets them.
+	 * @param result The list that the strokes are added to.
+	 */
+	void merge(List<Stroke> result)
+	{
+		int heapSize = 0;
+		for (int r = 0; r < runCount; r++)
+		{
+			positions[r] = 0;
+			if (!runs[r].isEmpty()) heap[heapSize++] = r;
+		}
+		for (int h = heapSize / 2 - 1; h >= 0; h--)
+		{
+			siftDown(h, heapSize);
+		}
+
+		while (heapSize > 0)
+		{
+			int r = heap[0];
+			result.add(runStrokes[r].getStroke(runs[r].get(positions[r])));
+			if (++positions[r] == runs[r].size())
+			{
+				heap[0] = heap[--heapSize];
+			}
+			siftDown(0, heapSize);
+		}
+
+		Arrays.fill(runStrokes, 0, runCount, null);
+		runCount = 0;
+	}
+
+	/**
+	 * Moves a run down the heap until neither of its children comes before it.
+	 * @param h The position of the run in the heap.
+	 * @param heapSize The number of runs in the heap.
+	 */
+	private void siftDown(int h, int heapSize)
+	{
+		int r = heap[h];
+		while (true)
+		{
+			int child = h * 2 + 1;
+			if (child >= heapSize) break;
+			if (child + 1 < heapSize && comesBefore(heap[child + 1], heap[child])) child++;
+			if (!comesBefore(heap[child], r)) break;
+
+			heap[h] = heap[child];
+			h = child;
+		}
+		heap[h] = r;
+	}
+
+	/**
+	 * Checks whether the next stroke of one run is drawn before the next stroke of another.
+	 * @param a The first run.
+	 * @param b The second run.
+	 * @return True if the first run's next stroke comes first; false otherwise.
+	 */
+	private boolean comesBefore(int a, int b)
+	{
+		long idA = runStrokes[a].getId(runs[a].get(positions[a]));
+		long idB = runStrokes[b].getId(runs[b].get(positions[b]));
+		return idA < idB || (idA == idB && a < b);
+	}
+}
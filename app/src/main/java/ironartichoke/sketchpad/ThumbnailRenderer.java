@@ -0,0 +1,215 @@
+package ironartichoke.sketchpad;
+
+import android.graphics.Bitmap;
+import android.opengl.GLES20;
+import android.opengl.Matrix;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Renders the thumbnails of a sheet and its sketchbook into a small offscreen framebuffer and saves them in the background.
+ * <br\><br\>
+ * The view is drawn straight into a texture the size of the sketchbook thumbnail, rather than read back from the screen
+ * at full resolution and scaled down. The projection is flipped vertically, so the rows are read back top row first,
+ * in the order that a bitmap expects. The pixels are read back during the frame after the thumbnail is rendered,
+ * once the GPU has had time to finish drawing it, so the read doesn't wait for the rendering.
+ * The sheet thumbnail is scaled down from the sketchbook thumbnail and both are encoded on a background thread.
+ * <br\><br\>
+ * Apart from the encoding, this class must only be used from the OpenGL thread.
+ */
+final class ThumbnailRenderer
+{
+	/** Sketchbook thumbnails are this many times smaller than the view, and sheet thumbnails are half their size. */
+	private static final int SHRINKING_FACTOR = 5;
+	/** The number of bytes per pixel that is read back. */
+	private static final int BYTES_PER_PIXEL = 4;
+
+	/** The texture holding the thumbnail, or 0 if it hasn't been created yet. */
+	private int texture = 0;
+	/** The framebuffer that the thumbnail is rendered through, or 0 if it hasn't been created yet. */
+	private int framebuffer = 0;
+	/** The width of the texture. */
+	private int width = 0;
+	/** The height of the texture. */
+	private int height = 0;
+	/** The projection matrix used to render the thumbnail. */
+	private final float[] thumbnailMatrix = new float[16];
+	/** The strokes in view while the thumbnail is rendered. */
+	private final ArrayList<Stroke> thumbnailStrokes = new ArrayList<>();
+
+	/** The sketchbook of the thumbnail waiting to be read back, or <code>null</code> if there is none. */
+	private Project pendingProject;
+	/** The sheet of the thumbnail waiting to be read back. */
+	private Project.Sheet pendingSheet;
+	/** Run on the encoding thread once the thumbnail waiting to be read back has been saved. */
+	private Runnable pendingListener;
+
+	/** The thread that scales and encodes the thumbnails. */
+	private final ExecutorService encoder = Executors.newSingleThreadExecutor(new ThreadFactory()
+	{
+		@Override
+		public Thread newThread(Runnable runnable)
+		{
+			Thread thread = new Thread(runnable, "ThumbnailRenderer");
+			thread.setPriority(Thread.MIN_PRIORITY);
+			return thread;
+		}
+	});
+
+	/**
+	 * Renders the thumbnail of a sheet as it is seen through the view. It is read back by {@link #readBack()}
+	 * during a later frame.
+	 * @param project The sketchbook.
+	 * @param sheet The sheet whose thumbnail is rendered. Its chunks in view must be loaded.
+	 * @param cameraX The X coordinate of the camera.
+	 * @param cameraY The Y coordinate of the camera.
+	 * @param zoom The camera zoom.
+	 * @param viewportWidth The width of the viewport.
+	 * @param viewportHeight The height of the viewport.
+	 * @param listener Run on a background thread once the sheet and sketchbook thumbnails have been saved.
+	 */
+	void render(Project project, Project.Sheet sheet, float cameraX, float cameraY, float zoom,
+				int viewportWidth, int viewportHeight, Runnable listener)
+	{
+		int thumbnailWidth = Math.max(2, viewportWidth / SHRINKING_FACTOR);
+		int thumbnailHeight = Math.max(2, viewportHeight / SHRINKING_FACTOR);
+		if (texture == 0 || width != thumbnailWidth || height != thumbnailHeight)
+		{
+			createTexture(thumbnailWidth, thumbnailHeight);
+		}
+
+		int[] handles = new int[1];
+		GLES20.glGetIntegerv(GLES20.GL_FRAMEBUFFER_BINDING, handles, 0);
+		int previousFramebuffer = handles[0];
+		GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, framebuffer);
+		GLES20.glViewport(0, 0, width, height);
+		GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+
+		float left = cameraX - viewportWidth / (2f * zoom);
+		float right = cameraX + viewportWidth / (2f * zoom);
+		float bottom = cameraY - viewportHeight / (2f * zoom);
+		float top = cameraY + viewportHeight / (2f * zoom);
+		// The top of the view goes into the first row of the framebuffer.
+		Matrix.orthoM(thumbnailMatrix, 0, left, right, top, bottom, -1, 1);
+		float scale = zoom * width / viewportWidth;
+
+		project.findLoadedStrokes((int) Math.floor(left), (int) Math.floor(bottom), (int) Math.ceil(right), (int) Math.ceil(top),
+				thumbnailStrokes);
+		for (Stroke stroke : thumbnailStrokes)
+		{
+			stroke.draw(thumbnailMatrix, scale);
+		}
+		thumbnailStrokes.clear();
+		for (Stroke stroke : project.getPendingStrokes())
+		{
+			stroke.draw(thumbnailMatrix, scale);
+		}
+
+		GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, previousFramebuffer);
+		GLES20.glViewport(0, 0, viewportWidth, viewportHeight);
+
+		pendingProject = project;
+		pendingSheet = sheet;
+		pendingListener = listener;
+	}
+
+	/**
+	 * Checks whether a rendered thumbnail is waiting to be read back.
+	 * @return True if {@link #readBack()} should be called; false otherwise.
+	 */
+	boolean isReadbackPending()
+	{
+		return pendingProject != null;
+	}
+
+	/**
+	 * Reads back the rendered thumbnail, then scales and saves the sheet and sketchbook thumbnails on a background thread.
+	 */
+	void readBack()
+	{
+		final ByteBuffer pixels = ByteBuffer.allocateDirect(width * height * BYTES_PER_PIXEL).order(ByteOrder.nativeOrder());
+		int[] handles = new int[1];
+		GLES20.glGetIntegerv(GLES20.GL_FRAMEBUFFER_BINDING, handles, 0);
+		GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, framebuffer);
+		GLES20.glReadPixels(0, 0, width, height, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, pixels);
+		GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, handles[0]);
+
+		final int thumbnailWidth = width;
+		final int thumbnailHeight = height;
+		final Project project = pendingProject;
+		final Project.Sheet sheet = pendingSheet;
+		final Runnable listener = pendingListener;
+		pendingProject = null;
+		pendingSheet = null;
+		pendingListener = null;
+
+		encoder.execute(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				Bitmap projectThumbnail = Bitmap.createBitmap(thumbnailWidth, thumbnailHeight, Bitmap.Config.ARGB_8888);
+				pixels.rewind();
+				projectThumbnail.copyPixelsFromBuffer(pixels);
+				Bitmap sheetThumbnail = Bitmap.createScaledBitmap(projectThumbnail, thumbnailWidth / 2, thumbnailHeight / 2, true);
+				sheet.saveThumbnail(sheetThumbnail);
+				project.saveThumbnail(projectThumbnail);
+				listener.run();
+			}
+		});
+	}
+
+	/**
+	 * Creates the texture and framebuffer that thumbnails are rendered into, deleting the previous texture.
+	 * @param width The width of the thumbnail.
+	 * @param height The height of the thumbnail.
+	 */
+	private void createTexture(int width, int height)
+	{
+		int[] handles = new int[1];
+		if (texture != 0)
+		{
+			handles[0] = texture;
+			GLES20.glDeleteTextures(1, handles, 0);
+		}
+		GLES20.glGenTextures(1, handles, 0);
+		texture = handles[0];
+		this.width = width;
+		this.height = height;
+		GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, texture);
+		GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, width, height, 0, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, null);
+		GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_NEAREST);
+		GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_NEAREST);
+
+		if (framebuffer == 0)
+		{
+			GLES20.glGenFramebuffers(1, handles, 0);
+			framebuffer = handles[0];
+		}
+		GLES20.glGetIntegerv(GLES20.GL_FRAMEBUFFER_BINDING, handles, 0);
+		int previousFramebuffer = handles[0];
+		GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, framebuffer);
+		GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0, GLES20.GL_TEXTURE_2D, texture, 0);
+		GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, previousFramebuffer);
+	}
+
+	/**
+	 * Forgets the texture and framebuffer without deleting them, along with any thumbnail waiting to be read back.
+	 * The listener of a forgotten thumbnail is still run, so that whatever was waiting for it goes ahead.
+	 * This should be called when the OpenGL context is recreated, since the old objects no longer exist.
+	 */
+	void reset()
+	{
+		if (pendingListener != null) encoder.execute(pendingListener);
+		texture = 0;
+		framebuffer = 0;
+		pendingProject = null;
+		pendingSheet = null;
+		pendingListener = null;
+	}
+}
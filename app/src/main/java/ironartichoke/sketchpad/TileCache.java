@@ -0,0 +1,373 @@
+package ironartichoke.sketchpad;
+
+import android.opengl.GLES20;
+import android.opengl.Matrix;
+
+import com.carrotsearch.hppc.LongOpenHashSet;
+import com.carrotsearch.hppc.cursors.LongCursor;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import ironartichoke.sketchpad.util.ChunkUtils;
+
+/**
+ * A cache of chunk-sized tiles, each holding the strokes over one chunk's area rendered into a texture.
+ * <br\><br\>
+ * When the camera is zoomed out to {@link #ZOOM_MAXIMUM} or further, the canvas is drawn as one textured quad per
+ * visible chunk instead of stroke by stroke. Tiles are rendered at a few fixed scales, so a tile can be reused while
+ * the zoom changes within the range of its scale. Each tile contains every loaded stroke that overlaps its area in the
+ * usual drawing order, so strokes that reach into neighbouring chunks and eraser strokes look the same as when drawn
+ * directly. A tile is rendered again only when a stroke overlapping it is added or removed.
+ * <br\><br\>
+ * The least recently used tiles are deleted when the textures exceed {@link #BUDGET_BYTES}.
+ * <br\><br\>
+ * Apart from {@link #invalidate(Stroke)} and {@link #invalidateAll()}, which may be called from any thread,
+ * this class must only be used from the OpenGL thread.
+ */
+final class TileCache
+{
+	/** The largest zoom at which tiles are used. */
+	static final float ZOOM_MAXIMUM = 0.25f;
+	/** The ratio between consecutive tile scales. */
+	private static final float SCALE_STEP = (float) Math.sqrt(2);
+	/** The number of tile scales. The smallest scale is below the minimum zoom. */
+	private static final int SCALES = 4;
+	/** The largest amount of texture memory, in bytes, that tiles may use. */
+	private static final long BUDGET_BYTES = 32L * 1024 * 1024;
+	/** The number of bytes per texel. Tiles use RGB565 to match the surface. */
+	private static final int BYTES_PER_TEXEL = 2;
+	/** The largest number of tiles that are rendered during one frame. */
+	private static final int MAX_RENDERS_PER_FRAME = 2;
+
+	/** The tiles, with the least recently used first. The key combines the chunk ID and the scale index. */
+	private final LinkedHashMap<Long, Tile> tiles = new LinkedHashMap<>(16, 0.75f, true);
+	/** The number of bytes used by the tile textures. */
+	private long usedBytes = 0;
+	/** The framebuffer that tiles are rendered through, or 0 if it hasn't been created yet. */
+	private int framebuffer = 0;
+	/** The number of the current frame, used to avoid evicting tiles that are on screen. */
+	private int frame = 0;
+	/** The projection matrix used to render a tile. */
+	private final float[] tileMatrix = new float[16];
+	/** The strokes that overlap the tile being rendered. */
+	private final ArrayList<Stroke> tileStrokes = new ArrayList<>();
+
+	/** The IDs of chunks whose tiles are out of date. Guarded by <code>this</code>. */
+	private LongOpenHashSet dirtyChunks = new LongOpenHashSet();
+	/** Whether all tiles are out of date. Guarded by <code>this</code>. */
+	private boolean isAllDirty = false;
+
+	/**
+	 * Checks whether tiles are used at the given zoom.
+	 * @param zoom The camera zoom.
+	 * @return True if the canvas should be drawn from tiles; false otherwise.
+	 */
+	static boolean isUsable(float zoom)
+	{
+		return zoom <= ZOOM_MAXIMUM;
+	}
+
+	/**
+	 * Gets the index of the tile scale for the given zoom. This is the smallest scale that isn't below the zoom.
+	 * @param zoom The camera zoom.
+	 * @return The scale index, where 0 is {@link #ZOOM_MAXIMUM}.
+	 */
+	private static int getScaleIndex(float zoom)
+	{
+		int index = 0;
+		while (index < SCALES - 1 && getScale(index + 1) >= zoom)
+		{
+			index++;
+		}
+		return index;
+	}
+
+	/**
+	 * Gets a tile scale.
+	 * @param index The scale index.
+	 * @return The number of texels per canvas pixel.
+	 */
+	private static float getScale(int index)
+	{
+		return ZOOM_MAXIMUM / (float) Math.pow(SCALE_STEP, index);
+	}
+
+	/**
+	 * Marks the tiles overlapped by a stroke as out of date.
+	 * @param stroke The stroke that was added or removed.
+	 */
+	void invalidate(Stroke stroke)
+	{
+		int margin = (int) Math.ceil(Stroke.getRealThickness(stroke.getThicknessByte(), stroke.isEraser) * 0.5f) + 1;
+		int left = ChunkUtils.convertXCoord(stroke.getBoundLeft() - margin);
+		int right = ChunkUtils.convertXCoord(stroke.getBoundRight() + margin);
+		int top = ChunkUtils.convertYCoord(stroke.getBoundTop() - margin);
+		int bottom = ChunkUtils.convertYCoord(stroke.getBoundBottom() + margin);
+		synchronized (this)
+		{
+			for (int x = left; x <= right; x++)
+			{
+				for (int y = top; y <= bottom; y++)
+				{
+					dirtyChunks.add(ChunkUtils.pack(x, y));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Marks the tile of a chunk as out of date.
+	 * @param chunkId The chunk ID.
+	 */
+	synchronized void invalidateChunk(long chunkId)
+	{
+		dirtyChunks.add(chunkId);
+	}
+
+	/**
+	 * Marks all tiles as out of date.
+	 * This should be called when the theme changes or the sheet is switched.
+	 */
+	synchronized void invalidateAll()
+	{
+		isAllDirty = true;
+		dirtyChunks.clear();
+	}
+
+	/**
+	 * Forgets all tiles without deleting their textures.
+	 * This should be called when the OpenGL context is recreated, since the old textures no longer exist.
+	 */
+	void reset()
+	{
+		tiles.clear();
+		usedBytes = 0;
+		framebuffer = 0;
+	}
+
+	/**
+	 * Draws the visible part of the canvas from tiles, rendering any missing tiles first.
+	 * At most {@link #MAX_RENDERS_PER_FRAME} tiles are rendered per frame. If more are missing, nothing is drawn,
+	 * and the caller should draw the strokes directly and request another render.
+	 * @param project The project.
+	 * @param zoom The camera zoom.
+	 * @param mvpMatrix The model-view-projection matrix.
+	 * @param left The canvas X coordinate of the left edge of the screen.
+	 * @param bottom The canvas Y coordinate of the bottom edge of the screen.
+	 * @param right The canvas X coordinate of the right edge of the screen.
+	 * @param top The canvas Y coordinate of the top edge of the screen.
+	 * @param viewportWidth The width of the viewport, which is restored after rendering a tile.
+	 * @param viewportHeight The height of the viewport, which is restored after rendering a tile.
+	 * @return True if the canvas was drawn; false if some tiles are still missing.
+	 */
+	boolean draw(Project project, float zoom, float[] mvpMatrix, float left, float bottom, float right, float top,
+	             int viewportWidth, int viewportHeight)
+	{
+		applyInvalidations();
+		frame++;
+
+		int scaleIndex = getScaleIndex(zoom);
+		int minX = ChunkUtils.convertXCoord((int) Math.floor(left));
+		int maxX = ChunkUtils.convertXCoord((int) Math.ceil(right));
+		int minY = ChunkUtils.convertYCoord((int) Math.floor(bottom));
+		int maxY = ChunkUtils.convertYCoord((int) Math.ceil(top));
+
+		// Make sure that every visible tile is ready.
+		int renders = 0;
+		boolean isComplete = true;
+		for (int x = minX; x <= maxX; x++)
+		{
+			for (int y = minY; y <= maxY; y++)
+			{
+				long chunkId = ChunkUtils.pack(x, y);
+				Tile tile = tiles.get(getKey(chunkId, scaleIndex));
+				if (tile == null)
+				{
+					if (renders == MAX_RENDERS_PER_FRAME)
+					{
+						isComplete = false;
+						continue;
+					}
+					tile = renderTile(project, chunkId, scaleIndex, viewportWidth, viewportHeight);
+					renders++;
+				}
+				tile.lastFrame = frame;
+			}
+		}
+		evict();
+		if (!isComplete) return false;
+
+		// Composite the tiles. Empty tiles have no texture, since the background is already cleared.
+		for (int x = minX; x <= maxX; x++)
+		{
+			for (int y = minY; y <= maxY; y++)
+			{
+				long chunkId = ChunkUtils.pack(x, y);
+				Tile tile = tiles.get(getKey(chunkId, scaleIndex));
+				if (tile.texture != 0)
+				{
+					int tileLeft = ChunkUtils.getChunkCenterX(chunkId) - ChunkUtils.CHUNK_SIZE / 2;
+					int tileBottom = ChunkUtils.getChunkCenterY(chunkId) - ChunkUtils.CHUNK_SIZE / 2;
+					GLProgram.drawTexture(tile.texture, tileLeft, tileBottom,
+							tileLeft + ChunkUtils.CHUNK_SIZE, tileBottom + ChunkUtils.CHUNK_SIZE, mvpMatrix);
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Renders the strokes over a chunk's area into a new tile.
+	 * @param project The project.
+	 * @param chunkId The chunk ID.
+	 * @param scaleIndex The scale index.
+	 * @param viewportWidth The width of the viewport to restore.
+	 * @param viewportHeight The height of the viewport to restore.
+	 * @return The tile.
+	 */
+	private Tile renderTile(Project project, long chunkId, int scaleIndex, int viewportWidth, int viewportHeight)
+	{
+		float scale = getScale(scaleIndex);
+		int tileLeft = ChunkUtils.getChunkCenterX(chunkId) - ChunkUtils.CHUNK_SIZE / 2;
+		int tileBottom = ChunkUtils.getChunkCenterY(chunkId) - ChunkUtils.CHUNK_SIZE / 2;
+		int tileRight = tileLeft + ChunkUtils.CHUNK_SIZE;
+		int tileTop = tileBottom + ChunkUtils.CHUNK_SIZE;
+
+		Tile tile = new Tile();
+		tiles.put(getKey(chunkId, scaleIndex), tile);
+
+		// Find the strokes that overlap the tile. If there are none, the tile doesn't need a texture.
+		project.findLoadedStrokes(tileLeft, tileBottom, tileRight, tileTop, tileStrokes);
+		if (tileStrokes.isEmpty()) return tile;
+
+		int size = Math.round(ChunkUtils.CHUNK_SIZE * scale);
+		int[] handles = new int[1];
+		GLES20.glGenTextures(1, handles, 0);
+		tile.texture = handles[0];
+		tile.bytes = (long) size * size * BYTES_PER_TEXEL;
+		usedBytes += tile.bytes;
+		GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, tile.texture);
+		GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGB, size, size, 0, GLES20.GL_RGB, GLES20.GL_UNSIGNED_SHORT_5_6_5, null);
+		GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
+		GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+		GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+		GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+
+		if (framebuffer == 0)
+		{
+			GLES20.glGenFramebuffers(1, handles, 0);
+			framebuffer = handles[0];
+		}
+		// The canvas may itself be drawn into a framebuffer, such as a scene snapshot.
+		GLES20.glGetIntegerv(GLES20.GL_FRAMEBUFFER_BINDING, handles, 0);
+		int previousFramebuffer = handles[0];
+		GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, framebuffer);
+		GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0, GLES20.GL_TEXTURE_2D, tile.texture, 0);
+		GLES20.glViewport(0, 0, size, size);
+		GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+
+		Matrix.orthoM(tileMatrix, 0, tileLeft, tileRight, tileBottom, tileTop, -1, 1);
+		for (Stroke stroke : tileStrokes)
+		{
+			stroke.draw(tileMatrix, scale);
+		}
+		tileStrokes.clear();
+
+		GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, previousFramebuffer);
+		GLES20.glViewport(0, 0, viewportWidth, viewportHeight);
+		return tile;
+	}
+
+	/**
+	 * Deletes the tiles of any chunks that have been marked as out of date.
+	 */
+	private void applyInvalidations()
+	{
+		LongOpenHashSet dirty;
+		boolean isAll;
+		synchronized (this)
+		{
+			if (!isAllDirty && dirtyChunks.isEmpty()) return;
+			dirty = dirtyChunks;
+			isAll = isAllDirty;
+			dirtyChunks = new LongOpenHashSet();
+			isAllDirty = false;
+		}
+
+		if (isAll)
+		{
+			for (Tile tile : tiles.values())
+			{
+				delete(tile);
+			}
+			tiles.clear();
+			return;
+		}
+		for (LongCursor cursor : dirty)
+		{
+			for (int scaleIndex = 0; scaleIndex < SCALES; scaleIndex++)
+			{
+				Tile tile = tiles.remove(getKey(cursor.value, scaleIndex));
+				if (tile != null)
+				{
+					delete(tile);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Deletes the least recently used tiles until the textures fit into the budget.
+	 * Tiles that are on screen in the current frame are kept.
+	 */
+	private void evict()
+	{
+		Iterator<Tile> iterator = tiles.values().iterator();
+		while (usedBytes > BUDGET_BYTES && iterator.hasNext())
+		{
+			Tile tile = iterator.next();
+			if (tile.lastFrame == frame) break;
+			delete(tile);
+			iterator.remove();
+		}
+	}
+
+	/**
+	 * Deletes the texture of a tile.
+	 * @param tile The tile.
+	 */
+	private void delete(Tile tile)
+	{
+		if (tile.texture != 0)
+		{
+			GLES20.glDeleteTextures(1, new int[]{tile.texture}, 0);
+			usedBytes -= tile.bytes;
+		}
+	}
+
+	/**
+	 * Gets the key of a tile.
+	 * @param chunkId The chunk ID, which uses the lower 48 bits.
+	 * @param scaleIndex The scale index.
+	 * @return The key.
+	 */
+	private static long getKey(long chunkId, int scaleIndex)
+	{
+		return chunkId | ((long) scaleIndex << 56);
+	}
+
+	/**
+	 * A rendered tile.
+	 */
+	private static final class Tile
+	{
+		/** The texture, or 0 if no strokes overlap the tile. */
+		int texture = 0;
+		/** The size of the texture in bytes. */
+		long bytes = 0;
+		/** The last frame that the tile was on screen. */
+		int lastFrame;
+	}
+}
@@ -11,6 +11,7 @@ import android.widget.TextView;
 
 import com.nhaarman.listviewanimations.itemmanipulation.DynamicListView;
 import com.nhaarman.listviewanimations.util.Swappable;
+import com.squareup.picasso.Picasso;
 import com.wnafee.vector.compat.ResourcesCompat;
 
 import ironartichoke.sketchpad.NotepadActivity;
@@ -26,11 +27,14 @@ public class SheetAdapter extends BaseAdapter implements Swappable
 {
 	private final NotepadActivity activity;
 	private Project project;
+	/** A Picasso instance for decoding the sheet thumbnails on demand. */
+	private Picasso picasso;
 
 	public SheetAdapter(NotepadActivity activity, Project project)
 	{
 		this.activity = activity;
 		this.project = project;
+		picasso = Picasso.with(activity);
 	}
 
 	@Override
@@ -117,7 +121,8 @@ public class SheetAdapter extends BaseAdapter implements Swappable
 			}
 		});
 
-		thumbnailView.setImageDrawable(sheet.getThumbnail());
+		// Decode the thumbnail only now that its row is visible, downsampled to the size of the view.
+		picasso.load(sheet.getThumbnailFile()).fit().centerInside().into(thumbnailView);
 
 		dragHandle.setImageDrawable(ResourcesCompat.getDrawable(activity, isCurrentSheet ? R.drawable.drag_vertical_white : R.drawable.drag_vertical));
 
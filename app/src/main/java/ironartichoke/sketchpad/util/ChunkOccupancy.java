@@ -0,0 +1,459 @@
+package ironartichoke.sketchpad.util;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A compact set of chunk IDs, used to record which chunks on a sheet contain strokes.
+ * <br\><br\>
+ * The set is a roaring-style bitmap. Since chunk coordinates fit into 16 bits each (see {@link ChunkUtils}),
+ * every chunk ID maps to a 32-bit key whose high half is the column (X) and whose low half is the row (Y).
+ * The set holds one container per occupied column. A sparse column is stored as a sorted array of rows,
+ * and a column with more than {@link #ARRAY_CONTAINER_MAX} rows is stored as a 65536-bit bitmap instead.
+ * <br\><br\>
+ * This class is not thread-safe.
+ */
+public final class ChunkOccupancy
+{
+	/** The maximum number of rows in an array container before it is converted to a bitmap container. */
+	private static final int ARRAY_CONTAINER_MAX = 4096;
+	/** The number of 64-bit words in a bitmap container. */
+	private static final int BITMAP_WORDS = 65536 / 64;
+
+	/** The identifier of an array container in the serialized form. */
+	private static final byte TYPE_ARRAY = 0;
+	/** The identifier of a bitmap container in the serialized form. */
+	private static final byte TYPE_BITMAP = 1;
+
+	/** The sorted column keys. Only the first {@link #size} elements are in use. */
+	private char[] keys = new char[4];
+	/** The containers for each column key, in the same order as {@link #keys}. */
+	private Container[] containers = new Container[4];
+	/** The number of containers in use. */
+	private int size = 0;
+	/** The total number of chunk IDs in the set. */
+	private int cardinality = 0;
+
+	/**
+	 * Gets the column key of a chunk ID.
+	 * @param chunkId The chunk ID.
+	 * @return The chunk's X coordinate as a 16-bit key.
+	 */
+	private static char highOf(long chunkId)
+	{
+		return (char) (chunkId >>> 32);
+	}
+
+	/**
+	 * Gets the row key of a chunk ID.
+	 * @param chunkId The chunk ID.
+	 * @return The chunk's Y coordinate as a 16-bit key.
+	 */
+	private static char lowOf(long chunkId)
+	{
+		return (char) chunkId;
+	}
+
+	/**
+	 * Finds the container index for a column key.
+	 * @param high The column key.
+	 * @return The index of the container if it exists; otherwise <code>-(insertion point) - 1</code>.
+	 */
+	private int indexOf(char high)
+	{
+		return Arrays.binarySearch(keys, 0, size, high);
+	}
+
+	/**
+	 * Checks whether the set contains the given chunk ID.
+	 * @param chunkId The chunk ID.
+	 * @return True if the chunk is in the set; false otherwise.
+	 */
+	public boolean contains(long chunkId)
+	{
+		int i = indexOf(highOf(chunkId));
+		return i >= 0 && containers[i].contains(lowOf(chunkId));
+	}
+
+	/**
+	 * Adds a chunk ID to the set.
+	 * @param chunkId The chunk ID.
+	 * @return True if the chunk was not already in the set; false otherwise.
+	 */
+	public boolean add(long chunkId)
+	{
+		char high = highOf(chunkId);
+		char low = lowOf(chunkId);
+		int i = indexOf(high);
+		if (i < 0)
+		{
+			i = -i - 1;
+			insertContainer(i, high, new ArrayContainer());
+		}
+
+		Container container = containers[i];
+		if (container.contains(low)) return false;
+		containers[i] = container.add(low);
+		cardinality++;
+		return true;
+	}
+
+	/**
+	 * Removes a chunk ID from the set.
+	 * @param chunkId The chunk ID.
+	 * @return True if the chunk was in the set; false otherwise.
+	 */
+	public boolean remove(long chunkId)
+	{
+		char low = lowOf(chunkId);
+		int i = indexOf(highOf(chunkId));
+		if (i < 0 || !containers[i].contains(low)) return false;
+
+		Container container = containers[i].remove(low);
+		cardinality--;
+		if (container.getCardinality() == 0)
+		{
+			removeContainer(i);
+		}
+		else
+		{
+			containers[i] = container;
+		}
+		return true;
+	}
+
+	/**
+	 * Removes all chunk IDs from the set.
+	 */
+	public void clear()
+	{
+		Arrays.fill(containers, 0, size, null);
+		size = 0;
+		cardinality = 0;
+	}
+
+	/**
+	 * Gets the number of chunk IDs in the set.
+	 * @return The number of chunk IDs.
+	 */
+	public int getCardinality()
+	{
+		return cardinality;
+	}
+
+	/**
+	 * Returns the chunk IDs in the set.
+	 * @return The chunk IDs, in ascending order.
+	 */
+	public long[] toArray()
+	{
+		long[] chunkIds = new long[cardinality];
+		int offset = 0;
+		for (int i = 0; i < size; i++)
+		{
+			offset = containers[i].fill(chunkIds, offset, (long) keys[i] << 32);
+		}
+		return chunkIds;
+	}
+
+	/**
+	 * Inserts a container at the given index.
+	 * @param index The index.
+	 * @param high The column key.
+	 * @param container The container.
+	 */
+	private void insertContainer(int index, char high, Container container)
+	{
+		if (size == keys.length)
+		{
+			keys = Arrays.copyOf(keys, size * 2);
+			containers = Arrays.copyOf(containers, size * 2);
+		}
+		System.arraycopy(keys, index, keys, index + 1, size - index);
+		System.arraycopy(containers, index, containers, index + 1, size - index);
+		keys[index] = high;
+		containers[index] = container;
+		size++;
+	}
+
+	/**
+	 * Removes the container at the given index.
+	 * @param index The index.
+	 */
+	private void removeContainer(int index)
+	{
+		System.arraycopy(keys, index + 1, keys, index, size - index - 1);
+		System.arraycopy(containers, index + 1, containers, index, size - index - 1);
+		size--;
+		containers[size] = null;
+	}
+
+	/**
+	 * Writes the set to the given output.
+	 * @param output The output.
+	 * @throws IOException
+	 */
+	public void write(DataOutput output) throws IOException
+	{
+		output.writeInt(size); // Number of containers
+		for (int i = 0; i < size; i++) // Containers
+		{
+			output.writeChar(keys[i]); // Column key
+			containers[i].write(output); // Rows
+		}
+	}
+
+	/**
+	 * Reads a set from the given input.
+	 * @param input The input.
+	 * @return The set.
+	 * @throws IOException
+	 */
+	public static ChunkOccupancy read(DataInput input) throws IOException
+	{
+		ChunkOccupancy occupancy = new ChunkOccupancy();
+		int containers = input.readInt(); // Number of containers
+		for (int i = 0; i < containers; i++) // Containers
+		{
+			char high = input.readChar(); // Column key
+			Container container;
+			byte type = input.readByte(); // Container type
+			if (type == TYPE_BITMAP)
+			{
+				container = BitmapContainer.read(input);
+			}
+			else if (type == TYPE_ARRAY)
+			{
+				container = ArrayContainer.read(input);
+			}
+			else
+			{
+				throw new IOException("Unknown container type " + type);
+			}
+			occupancy.insertContainer(occupancy.size, high, container);
+			occupancy.cardinality += container.getCardinality();
+		}
+		return occupancy;
+	}
+
+	/**
+	 * The set of occupied rows within a single column.
+	 */
+	private abstract static class Container
+	{
+		abstract boolean contains(char low);
+
+		/**
+		 * Adds a row that is not yet present.
+		 * @return This container, or a replacement container of a different type.
+		 */
+		abstract Container add(char low);
+
+		/**
+		 * Removes a row that is present.
+		 * @return This container, or a replacement container of a different type.
+		 */
+		abstract Container remove(char low);
+
+		abstract int getCardinality();
+
+		/**
+		 * Writes the full chunk IDs of the rows into an array, in ascending order.
+		 * @param dest The destination array.
+		 * @param offset The index of the first element to write.
+		 * @param high The column key, already shifted into the upper 32 bits.
+		 * @return The index after the last element written.
+		 */
+		abstract int fill(long[] dest, int offset, long high);
+
+		abstract void write(DataOutput output) throws IOException;
+	}
+
+	/**
+	 * A container for sparse columns, holding a sorted array of rows.
+	 */
+	private static final class ArrayContainer extends Container
+	{
+		private char[] values = new char[4];
+		private int cardinality = 0;
+
+		@Override
+		boolean contains(char low)
+		{
+			return Arrays.binarySearch(values, 0, cardinality, low) >= 0;
+		}
+
+		@Override
+		Container add(char low)
+		{
+			if (cardinality >= ARRAY_CONTAINER_MAX)
+			{
+				return toBitmap().add(low);
+			}
+			int i = -Arrays.binarySearch(values, 0, cardinality, low) - 1;
+			if (cardinality == values.length)
+			{
+				values = Arrays.copyOf(values, Math.min(cardinality * 2, ARRAY_CONTAINER_MAX));
+			}
+			System.arraycopy(values, i, values, i + 1, cardinality - i);
+			values[i] = low;
+			cardinality++;
+			return this;
+		}
+
+		@Override
+		Container remove(char low)
+		{
+			int i = Arrays.binarySearch(values, 0, cardinality, low);
+			System.arraycopy(values, i + 1, values, i, cardinality - i - 1);
+			cardinality--;
+			return this;
+		}
+
+		@Override
+		int getCardinality()
+		{
+			return cardinality;
+		}
+
+		@Override
+		int fill(long[] dest, int offset, long high)
+		{
+			for (int v = 0; v < cardinality; v++)
+			{
+				dest[offset++] = high | values[v];
+			}
+			return offset;
+		}
+
+		/**
+		 * Converts this container into a bitmap container with the same rows.
+		 * @return The bitmap container.
+		 */
+		private BitmapContainer toBitmap()
+		{
+			BitmapContainer bitmap = new BitmapContainer();
+			for (int v = 0; v < cardinality; v++)
+			{
+				bitmap.add(values[v]);
+			}
+			return bitmap;
+		}
+
+		@Override
+		void write(DataOutput output) throws IOException
+		{
+			output.writeByte(TYPE_ARRAY); // Container type
+			output.writeChar(cardinality); // Number of rows
+			for (int v = 0; v < cardinality; v++) // Rows
+			{
+				output.writeChar(values[v]);
+			}
+		}
+
+		static ArrayContainer read(DataInput input) throws IOException
+		{
+			ArrayContainer container = new ArrayContainer();
+			int cardinality = input.readChar(); // Number of rows
+			container.values = new char[Math.max(cardinality, 1)];
+			for (int v = 0; v < cardinality; v++) // Rows
+			{
+				container.values[v] = input.readChar();
+			}
+			container.cardinality = cardinality;
+			return container;
+		}
+	}
+
+	/**
+	 * A container for dense columns, holding one bit per row.
+	 */
+	private static final class BitmapContainer extends Container
+	{
+		private final long[] words = new long[BITMAP_WORDS];
+		private int cardinality = 0;
+
+		@Override
+		boolean contains(char low)
+		{
+			return (words[low >>> 6] & (1L << low)) != 0;
+		}
+
+		@Override
+		Container add(char low)
+		{
+			words[low >>> 6] |= 1L << low;
+			cardinality++;
+			return this;
+		}
+
+		@Override
+		Container remove(char low)
+		{
+			words[low >>> 6] &= ~(1L << low);
+			cardinality--;
+			return cardinality <= ARRAY_CONTAINER_MAX ? toArrayContainer() : this;
+		}
+
+		@Override
+		int getCardinality()
+		{
+			return cardinality;
+		}
+
+		@Override
+		int fill(long[] dest, int offset, long high)
+		{
+			for (int w = 0; w < BITMAP_WORDS; w++)
+			{
+				long word = words[w];
+				while (word != 0)
+				{
+					int bit = Long.numberOfTrailingZeros(word);
+					dest[offset++] = high | (w << 6 | bit);
+					word &= word - 1;
+				}
+			}
+			return offset;
+		}
+
+		/**
+		 * Converts this container into an array container with the same rows.
+		 * @return The array container.
+		 */
+		private ArrayContainer toArrayContainer()
+		{
+			ArrayContainer array = new ArrayContainer();
+			long[] rows = new long[cardinality];
+			fill(rows, 0, 0);
+			for (long row : rows)
+			{
+				array.add((char) row);
+			}
+			return array;
+		}
+
+		@Override
+		void write(DataOutput output) throws IOException
+		{
+			output.writeByte(TYPE_BITMAP); // Container type
+			for (long word : words) // Rows
+			{
+				output.writeLong(word);
+			}
+		}
+
+		static BitmapContainer read(DataInput input) throws IOException
+		{
+			BitmapContainer container = new BitmapContainer();
+			for (int w = 0; w < BITMAP_WORDS; w++) // Rows
+			{
+				container.words[w] = input.readLong();
+				container.cardinality += Long.bitCount(container.words[w]);
+			}
+			return container;
+		}
+	}
+}
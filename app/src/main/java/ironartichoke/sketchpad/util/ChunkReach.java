@@ -0,0 +1,165 @@
+package ironartichoke.sketchpad.util;
+
+import com.carrotsearch.hppc.LongObjectOpenHashMap;
+import com.carrotsearch.hppc.cursors.LongObjectCursor;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Records which chunks on a sheet the strokes of each chunk reach into, used to load strokes that cross chunk borders.
+ * <br\><br\>
+ * A stroke is stored once, in the chunk that holds the center of its bounds. When it reaches into other chunks,
+ * those chunks refer back to the chunk that stores it, so that it is loaded whenever any part of it is in range.
+ * Both directions are kept: the chunks reached from each chunk, and the chunks reaching into each chunk.
+ * <br\><br\>
+ * This class is not thread-safe.
+ */
+public final class ChunkReach
+{
+	/** An empty list of chunk IDs. */
+	private static final long[] NONE = new long[0];
+
+	/** The other chunks that the strokes of each chunk reach into, in ascending order. */
+	private final LongObjectOpenHashMap<long[]> reached = new LongObjectOpenHashMap<>();
+	/** The chunks whose strokes reach into each chunk, in ascending order. */
+	private final LongObjectOpenHashMap<long[]> reachedFrom = new LongObjectOpenHashMap<>();
+
+	/**
+	 * Gets the other chunks that the strokes of a chunk reach into.
+	 * @param chunkId The chunk ID.
+	 * @return The IDs of the reached chunks, in ascending order.
+	 */
+	public long[] getReachedChunks(long chunkId)
+	{
+		long[] chunkIds = reached.get(chunkId);
+		return chunkIds == null ? NONE : chunkIds;
+	}
+
+	/**
+	 * Gets the chunks whose strokes reach into a chunk.
+	 * @param chunkId The chunk ID.
+	 * @return The IDs of the chunks storing the strokes, in ascending order.
+	 */
+	public long[] getChunksReachingInto(long chunkId)
+	{
+		long[] chunkIds = reachedFrom.get(chunkId);
+		return chunkIds == null ? NONE : chunkIds;
+	}
+
+	/**
+	 * Sets the other chunks that the strokes of a chunk reach into.
+	 * @param chunkId The chunk ID.
+	 * @param reachedChunkIds The IDs of the reached chunks, in ascending order, not including the chunk itself.
+	 * @return True if the reached chunks changed; false otherwise.
+	 */
+	public boolean set(long chunkId, long[] reachedChunkIds)
+	{
+		long[] previous = getReachedChunks(chunkId);
+		if (Arrays.equals(previous, reachedChunkIds)) return false;
+
+		for (long reachedChunkId : previous)
+		{
+			removeReference(reachedChunkId, chunkId);
+		}
+		if (reachedChunkIds.length == 0)
+		{
+			reached.remove(chunkId);
+		}
+		else
+		{
+			reached.put(chunkId, reachedChunkIds);
+		}
+		for (long reachedChunkId : reachedChunkIds)
+		{
+			addReference(reachedChunkId, chunkId);
+		}
+		return true;
+	}
+
+	/**
+	 * Records that the strokes of one chunk reach into another.
+	 * @param chunkId The ID of the reached chunk.
+	 * @param fromChunkId The ID of the chunk storing the strokes.
+	 */
+	private void addReference(long chunkId, long fromChunkId)
+	{
+		long[] chunkIds = getChunksReachingInto(chunkId);
+		int i = Arrays.binarySearch(chunkIds, fromChunkId);
+		if (i >= 0) return;
+
+		i = -i - 1;
+		long[] newChunkIds = new long[chunkIds.length + 1];
+		System.arraycopy(chunkIds, 0, newChunkIds, 0, i);
+		newChunkIds[i] = fromChunkId;
+		System.arraycopy(chunkIds, i, newChunkIds, i + 1, chunkIds.length - i);
+		reachedFrom.put(chunkId, newChunkIds);
+	}
+
+	/**
+	 * Records that the strokes of one chunk no longer reach into another.
+	 * @param chunkId The ID of the reached chunk.
+	 * @param fromChunkId The ID of the chunk storing the strokes.
+	 */
+	private void removeReference(long chunkId, long fromChunkId)
+	{
+		long[] chunkIds = getChunksReachingInto(chunkId);
+		int i = Arrays.binarySearch(chunkIds, fromChunkId);
+		if (i < 0) return;
+
+		if (chunkIds.length == 1)
+		{
+			reachedFrom.remove(chunkId);
+			return;
+		}
+		long[] newChunkIds = new long[chunkIds.length - 1];
+		System.arraycopy(chunkIds, 0, newChunkIds, 0, i);
+		System.arraycopy(chunkIds, i + 1, newChunkIds, i, newChunkIds.length - i);
+		reachedFrom.put(chunkId, newChunkIds);
+	}
+
+	/**
+	 * Writes the reached chunks of every chunk.
+	 * @param output The output.
+	 * @throws IOException
+	 * @see #read(DataInput)
+	 */
+	public void write(DataOutput output) throws IOException
+	{
+		output.writeInt(reached.size()); // Number of chunks reaching into others
+		for (LongObjectCursor<long[]> cursor : reached)
+		{
+			output.writeLong(cursor.key); // Chunk ID
+			output.writeInt(cursor.value.length); // Number of reached chunks
+			for (long chunkId : cursor.value) // Reached chunks
+			{
+				output.writeLong(chunkId);
+			}
+		}
+	}
+
+	/**
+	 * Reads the reached chunks written by {@link #write(DataOutput)}.
+	 * @param input The input.
+	 * @return The chunk reach.
+	 * @throws IOException
+	 */
+	public static ChunkReach read(DataInput input) throws IOException
+	{
+		ChunkReach reach = new ChunkReach();
+		int chunks = input.readInt(); // Number of chunks reaching into others
+		for (int c = 0; c < chunks; c++)
+		{
+			long chunkId = input.readLong(); // Chunk ID
+			long[] reachedChunkIds = new long[input.readInt()]; // Number of reached chunks
+			for (int r = 0; r < reachedChunkIds.length; r++) // Reached chunks
+			{
+				reachedChunkIds[r] = input.readLong();
+			}
+			reach.set(chunkId, reachedChunkIds);
+		}
+		return reach;
+	}
+}
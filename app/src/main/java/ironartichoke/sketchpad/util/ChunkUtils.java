@@ -20,12 +20,16 @@ package ironartichoke.sketchpad.util;
 public final class ChunkUtils
 {
 	/** The width and height of a chunk in pixels. */
-	private static final int CHUNK_SIZE = 4000;
+	public static final int CHUNK_SIZE = 4000;
 	/** The constant for converting from the canvas coordinate system (with origin at 0,0) to the internal system. */
 	private static final int COORD_OFFSET = 32767;
 	/** The distance, in screen-widths or screen-heights, that the camera may be far away enough from a chunk to
-	 * unload it or close enough to a chunk to load it. */
-	public static final float LOADING_DISTANCE_FACTOR = 0.2f;
+	 * unload it or close enough to a chunk to load it. Strokes reaching into a chunk from the chunks around it
+	 * are loaded with it (see {@link ChunkReach}), so the margin only has to cover panning. */
+	public static final float LOADING_DISTANCE_FACTOR = 1f;
+	/** The loading distance factor for sheets whose chunk reach isn't known yet. The wide margin loads the chunks
+	 * holding strokes that reach far into view. */
+	public static final float LEGACY_LOADING_DISTANCE_FACTOR = 0.2f;
 
 	/**
 	 * Returns the containing chunk of a location on the canvas.
@@ -61,6 +65,26 @@ public final class ChunkUtils
 		return y / CHUNK_SIZE - (y < 0 ? 1 : 0) + COORD_OFFSET;
 	}
 
+	/**
+	 * Returns the canvas X coordinate of the center of a chunk.
+	 * @param chunkId The chunk ID.
+	 * @return The X canvas component of the chunk's center.
+	 */
+	public static int getChunkCenterX(long chunkId)
+	{
+		return (unpack(chunkId)[0] - COORD_OFFSET) * CHUNK_SIZE + CHUNK_SIZE / 2;
+	}
+
+	/**
+	 * Returns the canvas Y coordinate of the center of a chunk.
+	 * @param chunkId The chunk ID.
+	 * @return The Y canvas component of the chunk's center.
+	 */
+	public static int getChunkCenterY(long chunkId)
+	{
+		return (unpack(chunkId)[1] - COORD_OFFSET) * CHUNK_SIZE + CHUNK_SIZE / 2;
+	}
+
 	/**
 	 * Combines the given chunk coordinates into a unique long.
 	 * @param x The first coordinate (0 <= x <= 65535).
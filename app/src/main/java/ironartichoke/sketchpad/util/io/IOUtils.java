@@ -299,10 +299,20 @@ public final class IOUtils
 	 */
 	public static void deleteWorkingDirectories()
 	{
+		WarmStartCache.evict();
 		IOUtils.deleteDirectory(getWorkingDirectoryInternal(), true);
 		IOUtils.deleteDirectory(getWorkingDirectoryExternal(), true);
 	}
 
+	/**
+	 * Clears the working directory on whichever storage is <b>not</b> currently selected.
+	 * @see WarmStartCache#retain(String, File)
+	 */
+	public static void deleteInactiveWorkingDirectory()
+	{
+		IOUtils.deleteDirectory(isUsingExternalStorage() ? getWorkingDirectoryInternal() : getWorkingDirectoryExternal(), true);
+	}
+
 	/**
 	 * Creates a gzipped tarball.
 	 * @param name The name of the archive.
@@ -0,0 +1,222 @@
+package ironartichoke.sketchpad.util.io;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.zip.CRC32;
+
+import ironartichoke.sketchpad.Project;
+
+/**
+ * A utility class that allows the working directory to survive a clean exit.
+ * <br\><br\>
+ * Normally the working directory is deleted when the app is closed, and the last sketchbook is
+ * extracted from its archive again on the next launch. If the working directory still matches the
+ * archive when the app closes, it is kept instead and a fingerprint of the archive (its size,
+ * modification time and CRC32) is written next to it. On the next launch, the extraction is skipped
+ * if the archive still has the same fingerprint.
+ * <br\><br\>
+ * To avoid hogging storage space, only one working directory is ever retained, and it is evicted if
+ * it is too large, if it would leave too little free space, or if it has not been claimed for a while.
+ */
+public final class WarmStartCache
+{
+	/** The name of the fingerprint file, stored in the application directory alongside the working directory. */
+	public static final String FINGERPRINT_FILE = ".warm";
+	/** The version of the fingerprint file format. */
+	private static final int VERSION = 1;
+
+	/** A working directory larger than this (in bytes) will not be retained. */
+	private static final long MAX_RETAINED_BYTES = 64L * 1024L * 1024L;
+	/** A working directory will not be retained if less than this much space (in bytes) would remain free. */
+	private static final long MIN_FREE_BYTES = 32L * 1024L * 1024L;
+	/** A retained working directory that has not been claimed within this time (in milliseconds) is evicted. */
+	private static final long MAX_AGE = 7L * 24L * 60L * 60L * 1000L;
+
+	/** The size of the buffer used when hashing the archive. */
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * Attempts to retain the working directory after a clean exit.
+	 * This should only be called if the working directory has no unsaved changes and nothing is still writing to it
+	 * in the background (see {@link Project#finishBackgroundWrites()}).
+	 * @param projectName The name of the sketchbook in the working directory.
+	 * @param archive The sketchbook's archive file.
+	 * @return True if the working directory was retained; false if it should be deleted.
+	 */
+	public static boolean retain(String projectName, File archive)
+	{
+		evict();
+
+		if (Project.DEFAULT_NAME.equals(projectName) || Project.RECOVERY_NAME.equals(projectName)) return false;
+		if (archive == null || !archive.exists()) return false;
+
+		File workingDirectory = IOUtils.getWorkingDirectory();
+		File fingerprintFile = getFingerprintFile();
+		if (workingDirectory == null || fingerprintFile == null || !workingDirectory.exists()) return false;
+
+		// Check the storage space before committing to anything.
+		long size = FileUtils.sizeOfDirectory(workingDirectory);
+		if (size > MAX_RETAINED_BYTES || workingDirectory.getUsableSpace() < MIN_FREE_BYTES) return false;
+
+		ObjectOutputStream oos = null;
+		try
+		{
+			long crc = computeCrc(archive);
+			FileOutputStream fos = new FileOutputStream(fingerprintFile);
+			oos = new ObjectOutputStream(fos);
+			oos.writeInt(VERSION); // Version
+			oos.writeObject(projectName); // Name of project
+			oos.writeObject(workingDirectory.getAbsolutePath()); // Working directory
+			oos.writeLong(archive.length()); // Archive size
+			oos.writeLong(archive.lastModified()); // Archive modification time
+			oos.writeLong(crc); // Archive CRC32
+			oos.writeLong(System.currentTimeMillis()); // Time of retention
+			oos.flush();
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+			fingerprintFile.delete();
+			return false;
+		}
+		finally
+		{
+			if (oos != null)
+			{
+				try
+				{
+					oos.close();
+				}
+				catch (IOException e)
+				{
+					// Disregard exception.
+				}
+			}
+		}
+
+		// Only the working directory on the current storage is retained.
+		IOUtils.deleteInactiveWorkingDirectory();
+		return true;
+	}
+
+	/**
+	 * Checks whether the retained working directory can be used in place of extracting the given archive.
+	 * The fingerprint is consumed either way, since the working directory is about to be modified.
+	 * @param projectName The name of the sketchbook being loaded.
+	 * @param archive The sketchbook's archive file.
+	 * @return True if the working directory already holds the contents of the archive; false otherwise.
+	 */
+	public static boolean claim(String projectName, File archive)
+	{
+		File fingerprintFile = getFingerprintFile();
+		if (fingerprintFile == null || !fingerprintFile.exists()) return false;
+
+		boolean matches = false;
+		ObjectInputStream ois = null;
+		try
+		{
+			FileInputStream fis = new FileInputStream(fingerprintFile);
+			ois = new ObjectInputStream(fis);
+			File workingDirectory = IOUtils.getWorkingDirectory();
+			matches = ois.readInt() == VERSION // Version
+					&& projectName.equals(ois.readObject()) // Name of project
+					&& workingDirectory.getAbsolutePath().equals(ois.readObject()) // Working directory
+					&& archive.length() == ois.readLong() // Archive size
+					&& archive.lastModified() == ois.readLong(); // Archive modification time
+			if (matches)
+			{
+				long crc = ois.readLong(); // Archive CRC32
+				long retainedTime = ois.readLong(); // Time of retention
+				matches = System.currentTimeMillis() - retainedTime < MAX_AGE
+						&& workingDirectory.exists()
+						&& crc == computeCrc(archive);
+			}
+		}
+		catch (Exception e)
+		{
+			e.printStackTrace();
+			matches = false;
+		}
+		finally
+		{
+			if (ois != null)
+			{
+				try
+				{
+					ois.close();
+				}
+				catch (IOException e)
+				{
+					// Disregard exception.
+				}
+			}
+		}
+
+		fingerprintFile.delete();
+		return matches;
+	}
+
+	/**
+	 * Discards any fingerprint, so that the working directory will not be reused on the next launch.
+	 */
+	public static void evict()
+	{
+		File fingerprintFile = getFingerprintFile();
+		if (fingerprintFile != null) fingerprintFile.delete();
+	}
+
+	/**
+	 * Gets the fingerprint file for the current storage setting.
+	 * @return The fingerprint file, or <code>null</code> if the application directory is inaccessible.
+	 */
+	private static File getFingerprintFile()
+	{
+		File directory = IOUtils.getDirectory();
+		return directory == null ? null : new File(directory, FINGERPRINT_FILE);
+	}
+
+	/**
+	 * Computes the CRC32 checksum of a file.
+	 * @param file The file.
+	 * @return The checksum.
+	 * @throws IOException
+	 */
+	private static long computeCrc(File file) throws IOException
+	{
+		CRC32 crc = new CRC32();
+		InputStream is = null;
+		try
+		{
+			is = new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE);
+			byte[] buffer = new byte[BUFFER_SIZE];
+			int read;
+			while ((read = is.read(buffer)) != -1)
+			{
+				crc.update(buffer, 0, read);
+			}
+			return crc.getValue();
+		}
+		finally
+		{
+			if (is != null)
+			{
+				try
+				{
+					is.close();
+				}
+				catch (IOException e)
+				{
+					// Disregard exception.
+				}
+			}
+		}
+	}
+}